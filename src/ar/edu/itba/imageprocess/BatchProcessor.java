@@ -0,0 +1,409 @@
+package ar.edu.itba.imageprocess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ar.edu.itba.imageprocess.ParamAsker.Param;
+import ar.edu.itba.imageprocess.tiles.TileProcessor;
+import ar.edu.itba.imageprocess.utils.DaemonThreadFactory;
+import ar.edu.itba.imageprocess.utils.ExtImageIO;
+import ar.edu.itba.imageprocess.utils.FileUtils;
+import ar.edu.itba.imageprocess.utils.ImageFilter;
+import ar.edu.itba.imageprocess.utils.PixmapWriter;
+import ar.edu.itba.imageprocess.utils.RawFormat;
+import ar.edu.itba.imageprocess.utils.RowReader;
+import ar.edu.itba.imageprocess.utils.RowWriter;
+
+/**
+ * Runs an operation or a pipeline file on files from the command line,
+ * without any window:
+ *
+ * <pre>
+ * ImageProcess &lt;operation&gt; [param=value ...] [options] &lt;file or directory&gt; ...
+ * ImageProcess -p &lt;pipeline file&gt; [options] &lt;file or directory&gt; ...
+ * </pre>
+ *
+ * The files are processed in parallel by a bounded pool of workers, so only a
+ * few images are in memory at a time, and the time spent reading, processing
+ * and writing each file is reported. When possible, raw, pgm and ppm files can
+ * also be streamed by strips, or by tiles kept on disk when the image is too
+ * wide for strips, without ever holding the whole image
+ */
+public class BatchProcessor {
+
+	private static final String USAGE = "usage: ImageProcess <operation> [param=value ...] [options] <file or directory> ...\n" //
+			+ "       ImageProcess -p <pipeline file> [options] <file or directory> ...\n" //
+			+ "       ImageProcess -server [-port <port>] ...    serves the operations over http\n" //
+			+ "       ImageProcess -load <url> <image file> ...  measures the server\n" //
+			+ "       ImageProcess -coordinator <operation> ...  shares the files among worker processes\n" //
+			+ "       ImageProcess -worker <host>:<port> ...     processes files for a coordinator\n" //
+			+ "options:\n" //
+			+ "  -o <directory>  output directory, the current one by default\n" //
+			+ "  -f <extension>  output format, the format of each file by default\n" //
+			+ "  -j <threads>    files processed at the same time, one per core by default\n" //
+			+ "  -r <policy>     range of raw, pgm and ppm files (1=clamp 2=rescale 3=16 bits)\n" //
+			+ "  -raw <format>   format of the unknown raw files, for example \"256x256 8\"\n" //
+			+ "  -s              stream raw, pgm and ppm files by strips when possible\n" //
+			+ "  -l              lists the operations and their params";
+
+	private Pipeline mPipeline;
+	private List<File> mFiles;
+	private File mOutputDirectory;
+	private String mOutputFormat;
+	private int mThreads;
+	private int mRangePolicy;
+	private RawFormat mRawFormat;
+	private boolean mStream;
+	private PrintStream mOut;
+	private AtomicInteger mFailures;
+
+	public BatchProcessor(Pipeline pipeline, List<File> files) {
+		mPipeline = pipeline;
+		mFiles = files;
+		mOutputDirectory = new File(".");
+		mOutputFormat = null;
+		mThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		mRangePolicy = PixmapWriter.RANGE_CLAMP;
+		mRawFormat = null;
+		mStream = false;
+		mOut = System.out;
+		mFailures = new AtomicInteger();
+	}
+
+	/**
+	 * Parses the command line and runs the batch
+	 *
+	 * @return the exit code: 0 if all the files were processed, 1 if some
+	 *         failed, 2 if the command line is wrong
+	 */
+	public static int run(String[] args) {
+		if (args.length == 0) {
+			System.err.println(USAGE);
+			return 2;
+		}
+		if (args[0].equals("-l")) {
+			listOperations();
+			return 0;
+		}
+		List<String> options = new ArrayList<String>();
+		List<String> paths = new ArrayList<String>();
+		Pipeline pipeline = parsePipeline(args, 0, options, paths);
+		if (pipeline == null) {
+			return 2;
+		}
+		BatchProcessor processor = new BatchProcessor(pipeline, findFiles(paths));
+		for (int i = 0; i < options.size(); i++) {
+			String option = options.get(i);
+			if (option.equals("-s")) {
+				processor.mStream = true;
+				continue;
+			}
+			String value = options.get(++i);
+			try {
+				if (option.equals("-o")) {
+					processor.mOutputDirectory = new File(value);
+				} else if (option.equals("-f")) {
+					processor.mOutputFormat = value.toLowerCase();
+				} else if (option.equals("-j")) {
+					processor.mThreads = Math.max(1, Integer.parseInt(value));
+				} else if (option.equals("-r")) {
+					processor.mRangePolicy = Integer.parseInt(value);
+					if (processor.mRangePolicy < PixmapWriter.RANGE_CLAMP || processor.mRangePolicy > PixmapWriter.RANGE_16BIT) {
+						System.err.println("-r must be in the range [1, 3]");
+						return 2;
+					}
+				} else if (option.equals("-raw")) {
+					processor.mRawFormat = RawFormat.parse(value);
+					if (processor.mRawFormat == null) {
+						System.err.println("invalid raw format " + value);
+						return 2;
+					}
+				} else {
+					System.err.println("unknown option " + option + "\n" + USAGE);
+					return 2;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println(option + " must be an integer");
+				return 2;
+			}
+		}
+		if (processor.mFiles.isEmpty()) {
+			System.err.println("no image files given");
+			return 2;
+		}
+		String collision = findCollision(processor.mFiles, processor.mOutputDirectory, processor.mOutputFormat, pipeline.getName());
+		if (collision != null) {
+			System.err.println(collision);
+			return 2;
+		}
+		if (!processor.mOutputDirectory.isDirectory() && !processor.mOutputDirectory.mkdirs()) {
+			System.err.println("couldn't create " + processor.mOutputDirectory);
+			return 2;
+		}
+		return processor.process() ? 0 : 1;
+	}
+
+	/**
+	 * Parses the operation with its params, or the -p pipeline file, starting
+	 * at first, and splits the rest of the arguments in options, followed by
+	 * their values except for -s, and paths
+	 *
+	 * @return the pipeline, or null after printing why the arguments are wrong
+	 */
+	public static Pipeline parsePipeline(String[] args, int first, List<String> options, List<String> paths) {
+		if (first >= args.length) {
+			System.err.println(USAGE);
+			return null;
+		}
+		Pipeline pipeline;
+		ImageOperation operation = null;
+		ParamAsker params = null;
+		int i = first;
+		if (args[i].equals("-p") && i + 1 < args.length) {
+			try {
+				pipeline = Pipeline.read(new File(args[i + 1]));
+			} catch (IOException e) {
+				System.err.println("couldn't read pipeline " + e.getMessage());
+				return null;
+			}
+			if (pipeline.size() == 0) {
+				System.err.println("empty pipeline " + args[i + 1]);
+				return null;
+			}
+			i += 2;
+		} else {
+			operation = Operations.get(args[i]);
+			if (operation == null) {
+				System.err.println("unknown operation " + args[i] + ", use -l to list them");
+				return null;
+			}
+			pipeline = new Pipeline(operation.getName());
+			params = operation.getParams();
+			i++;
+		}
+		for (; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-s")) {
+				options.add(arg);
+			} else if (arg.startsWith("-") && arg.length() > 1) {
+				if (i + 1 == args.length) {
+					System.err.println("missing value for " + arg);
+					return null;
+				}
+				options.add(arg);
+				options.add(args[++i]);
+			} else if (arg.indexOf('=') > 0 && params != null) {
+				String name = arg.substring(0, arg.indexOf('='));
+				String error = params.setValue(name, arg.substring(arg.indexOf('=') + 1));
+				if (error.length() > 0) {
+					System.err.println(error);
+					return null;
+				}
+			} else {
+				paths.add(arg);
+			}
+		}
+		if (operation != null) {
+			String error = params.setDefaultValues();
+			if (error.length() > 0) {
+				System.err.println(error);
+				return null;
+			}
+			pipeline.add(operation, params);
+		}
+		return pipeline;
+	}
+
+	/**
+	 * Processes all the files
+	 *
+	 * @return true if all the files were processed
+	 */
+	public boolean process() {
+		long start = System.currentTimeMillis();
+		// a bounded queue, the caller runs the files the workers can't take
+		// yet, so the files are never all queued up
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(mThreads, mThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(mThreads), new DaemonThreadFactory("batch"), new ThreadPoolExecutor.CallerRunsPolicy());
+		for (final File file : mFiles) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					processFile(file);
+				}
+			});
+		}
+		workers.shutdown();
+		try {
+			while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+				// keep waiting
+			}
+		} catch (InterruptedException e) {
+			workers.shutdownNow();
+			return false;
+		}
+		int failures = mFailures.get();
+		mOut.println(mFiles.size() + " file(s), " + failures + " failed, " + (System.currentTimeMillis() - start) + "ms");
+		return failures == 0;
+	}
+
+	private void processFile(File file) {
+		File output = getOutputFile(file);
+		try {
+			String timings;
+			if (canStream(file, output)) {
+				long start = System.currentTimeMillis();
+				RowReader reader = ExtImageIO.openRowReader(file, mRawFormat);
+				RowWriter writer;
+				try {
+					writer = ExtImageIO.openRowWriter(output, reader.getWidth(), reader.getHeight(), mRangePolicy);
+				} catch (IOException e) {
+					reader.close();
+					throw e;
+				}
+				int halo = mPipeline.getHalo();
+				if (StripProcessor.fits(reader.getWidth(), halo, StripProcessor.getMemoryBudget())) {
+					StripProcessor.process(reader, writer, mPipeline.toFunction(), halo);
+					timings = "streamed in " + (System.currentTimeMillis() - start) + "ms";
+				} else {
+					// not even a row with its halo fits, go through tiles on
+					// disk, sharing the budget between source and result
+					TileProcessor.process(reader, writer, mPipeline.toFunction(), halo, StripProcessor.getMemoryBudget() / 2);
+					timings = "tiled in " + (System.currentTimeMillis() - start) + "ms";
+				}
+			} else {
+				long start = System.currentTimeMillis();
+				Image image = ImageLoader.decode(file, mRawFormat);
+				if (image == null) {
+					throw new IOException("unsupported format");
+				}
+				long decoded = System.currentTimeMillis();
+				Image result = mPipeline.apply(image);
+				long processed = System.currentTimeMillis();
+				if (!ImageLoader.encode(result, output, mRangePolicy)) {
+					throw new IOException("unsupported output format " + FileUtils.getFileExtension(output));
+				}
+				long written = System.currentTimeMillis();
+				// nothing else has them, the next files can reuse their
+				// channels
+				if (result != image) {
+					result.recycle();
+				}
+				image.recycle();
+				timings = "read " + (decoded - start) + "ms, process " + (processed - decoded) + "ms, write " + (written - processed) + "ms";
+			}
+			report(file.getPath() + " -> " + output.getPath() + ": " + timings);
+		} catch (Exception e) {
+			mFailures.incrementAndGet();
+			report(file.getPath() + " failed: " + e);
+		}
+	}
+
+	/**
+	 * Streaming needs a row format on both sides, operations that only look
+	 * at the pixels around each pixel, and a range policy that doesn't need
+	 * the whole image range
+	 */
+	private boolean canStream(File file, File output) {
+		return mStream && mPipeline.getHalo() != ImageOperation.HALO_GLOBAL && mRangePolicy != PixmapWriter.RANGE_RESCALE && FileUtils.getFileExtension(file).matches("raw|pgm|ppm") && PixmapWriter.getFormat(output) != 0;
+	}
+
+	private File getOutputFile(File file) {
+		return getOutputFile(file, mOutputDirectory, mOutputFormat, mPipeline.getName());
+	}
+
+	/**
+	 * @param format the extension of the output, null for the one of the file
+	 * @return the file where the result of the pipeline is written
+	 */
+	public static File getOutputFile(File file, File directory, String format, String pipelineName) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String baseName = dot > 0 ? name.substring(0, dot) : name;
+		String extension = format != null ? format : FileUtils.getFileExtension(file);
+		// tiff and wbmp can be read but not written by default
+		if (extension.matches("tiff?|wbmp")) {
+			extension = "png";
+		}
+		return new File(directory, baseName + "-" + pipelineName + "." + extension);
+	}
+
+	/**
+	 * Finds the files that would be written to the same output file, for
+	 * example a.tif and a.png converted to png, or files with the same name
+	 * in different directories
+	 *
+	 * @return the error to report, or null if all the outputs are different
+	 */
+	public static String findCollision(List<File> files, File directory, String format, String pipelineName) {
+		Map<File, File> inputs = new HashMap<File, File>();
+		for (File file : files) {
+			File output = getOutputFile(file, directory, format, pipelineName).getAbsoluteFile();
+			File other = inputs.put(output, file);
+			if (other != null) {
+				return other + " and " + file + " would both be written to " + output.getName();
+			}
+		}
+		return null;
+	}
+
+	private void report(String message) {
+		synchronized (mOut) {
+			mOut.println(message);
+		}
+	}
+
+	/**
+	 * @return the files, and the image files of the directories
+	 */
+	public static List<File> findFiles(List<String> paths) {
+		ImageFilter filter = new ImageFilter();
+		List<File> files = new ArrayList<File>();
+		for (String path : paths) {
+			File file = new File(path);
+			if (file.isDirectory()) {
+				File[] children = file.listFiles();
+				if (children == null) {
+					System.err.println("couldn't list " + path);
+					continue;
+				}
+				Arrays.sort(children);
+				for (File child : children) {
+					if (child.isFile() && filter.accept(child)) {
+						files.add(child);
+					}
+				}
+			} else {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static void listOperations() {
+		String[] kinds = new String[] { "point", "neighborhood", "global" };
+		for (ImageOperation operation : Operations.getAll()) {
+			ParamAsker params = operation.getParams();
+			params.setDefaultValues();
+			StringBuilder line = new StringBuilder(operation.getName());
+			for (Param param : params.getParams()) {
+				line.append(" ").append(param.getName()).append("=").append(param.getDefaultValue());
+			}
+			// the metadata with the default values of the params
+			String details = kinds[operation.getKind(params)] + ", halo " + operation.getHalo(params) + ", cost " + operation.getCost(params);
+			if (operation.getChannels() == ImageOperation.CHANNELS_MIXED) {
+				details += ", mixes the channels";
+			}
+			System.out.println(line + "\n    " + operation.getDescription() + " (" + details + ")");
+		}
+	}
+}
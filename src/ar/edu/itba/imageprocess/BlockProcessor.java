@@ -0,0 +1,233 @@
+package ar.edu.itba.imageprocess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ar.edu.itba.imageprocess.utils.DaemonThreadFactory;
+import ar.edu.itba.imageprocess.utils.Progress;
+
+/**
+ * Applies a mask to the channels of an image in square blocks small enough to
+ * stay in the cache. Each block is first copied with the halo of pixels the
+ * mask reads around it into a small contiguous buffer, repeating the border
+ * pixels outside of the image as Image.getRed does, so the mask reads
+ * consecutive values instead of jumping between the columns of the whole
+ * image. The blocks are sized from the mask and the cache size, and the
+ * columns of blocks are processed in parallel. The sums are made in the same
+ * order as pixel by pixel, so the result is exactly the same
+ */
+public class BlockProcessor {
+
+	/** the size in KB of the cache the blocks must fit in */
+	public static final String CACHE_PROPERTY = "imageprocess.blocks.cache";
+	private static final int DEFAULT_CACHE = 256;
+	private static final int MIN_BLOCK_SIZE = 16;
+
+	private static ExecutorService sWorkers;
+
+	/**
+	 * @return the side of the blocks for a mask of that size, so that the
+	 *         buffers of the three channels with the halo of a block and
+	 *         their results fit in the cache
+	 */
+	public static int getBlockSize(int maskWidth, int maskHeight) {
+		long cache = Long.getLong(CACHE_PROPERTY, DEFAULT_CACHE) * 1024 - 8L * maskWidth * maskHeight;
+		int size = (int) Math.sqrt(cache / 24);
+		while (size > MIN_BLOCK_SIZE && 12L * ((long) (size + maskWidth - 1) * (size + maskHeight - 1) + (long) size * size) > cache) {
+			size--;
+		}
+		return Math.max(MIN_BLOCK_SIZE, size);
+	}
+
+	/**
+	 * Sets each value of the results to the sum of the values under the mask
+	 * multiplied by its weights, times the factor. The center of the mask is
+	 * the same as in Filters, the fourth column of a mask 8 pixels wide
+	 *
+	 * @param channels the red, green and blue channels of the source
+	 * @param results the channels for the result, the same size as the source
+	 */
+	public static void applyMask(final int[][][] channels, final int[][][] results, double[][] mask, final double factor) {
+		final int width = channels[0].length;
+		final int height = channels[0][0].length;
+		final int maskWidth = mask.length;
+		final int maskHeight = mask[0].length;
+		final int blockSize = getBlockSize(maskWidth, maskHeight);
+		// the weights column by column, as the buffer
+		final double[] weights = new double[maskWidth * maskHeight];
+		for (int x = 0; x < maskWidth; x++) {
+			System.arraycopy(mask[x], 0, weights, x * maskHeight, maskHeight);
+		}
+
+		int columns = (width + blockSize - 1) / blockSize;
+		if (columns == 1 || Runtime.getRuntime().availableProcessors() == 1) {
+			int[][] buffers = new int[3][(blockSize + maskWidth - 1) * (blockSize + maskHeight - 1)];
+			for (int x = 0; x < width; x += blockSize) {
+				Progress.update(x, width);
+				applyMask(channels, results, weights, maskWidth, maskHeight, factor, x, blockSize, buffers);
+			}
+			return;
+		}
+
+		// the workers report the cancellation of the task that called them
+		final Progress progress = Progress.current();
+		List<Future<Image>> futures = new ArrayList<Future<Image>>();
+		for (int x = 0; x < width; x += blockSize) {
+			final int fromX = x;
+			futures.add(getWorkers().submit(new Callable<Image>() {
+				@Override
+				public Image call() {
+					Progress.bind(progress);
+					try {
+						int[][] buffers = new int[3][(blockSize + maskWidth - 1) * (blockSize + maskHeight - 1)];
+						applyMask(channels, results, weights, maskWidth, maskHeight, factor, fromX, blockSize, buffers);
+					} finally {
+						Progress.unbind();
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				getResult(futures.get(i));
+				Progress.update(i + 1, futures.size());
+			}
+		} finally {
+			for (Future<Image> future : futures) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Processes a column of blocks, from top to bottom. The three channels and
+	 * two rows are summed together, so the processor works on six independent
+	 * sums at a time instead of waiting for each addition
+	 */
+	private static void applyMask(int[][][] channels, int[][][] results, double[] weights, int maskWidth, int maskHeight, double factor, int fromX, int blockSize, int[][] buffers) {
+		int width = channels[0].length;
+		int height = channels[0][0].length;
+		int offsetX = (int) (Math.ceil(maskWidth / 2.0) - 1);
+		int offsetY = (int) (Math.ceil(maskHeight / 2.0) - 1);
+		int blockWidth = Math.min(blockSize, width - fromX);
+		int[] red = buffers[0];
+		int[] green = buffers[1];
+		int[] blue = buffers[2];
+		for (int fromY = 0; fromY < height; fromY += blockSize) {
+			Progress.check();
+			int blockHeight = Math.min(blockSize, height - fromY);
+			int bufferWidth = blockWidth + maskWidth - 1;
+			int bufferHeight = blockHeight + maskHeight - 1;
+			for (int c = 0; c < 3; c++) {
+				loadBlock(channels[c], fromX - offsetX, fromY - offsetY, bufferWidth, bufferHeight, buffers[c]);
+			}
+			for (int x = 0; x < blockWidth; x++) {
+				int[] redColumn = results[0][fromX + x];
+				int[] greenColumn = results[1][fromX + x];
+				int[] blueColumn = results[2][fromX + x];
+				int y = 0;
+				// two rows at a time, with the same weights
+				for (; y + 1 < blockHeight; y += 2) {
+					double redSum = 0;
+					double greenSum = 0;
+					double blueSum = 0;
+					double redNext = 0;
+					double greenNext = 0;
+					double blueNext = 0;
+					int w = 0;
+					for (int maskX = 0; maskX < maskWidth; maskX++) {
+						int i = (x + maskX) * bufferHeight + y;
+						for (int maskY = 0; maskY < maskHeight; maskY++, i++) {
+							double weight = weights[w++];
+							redSum += weight * red[i];
+							greenSum += weight * green[i];
+							blueSum += weight * blue[i];
+							redNext += weight * red[i + 1];
+							greenNext += weight * green[i + 1];
+							blueNext += weight * blue[i + 1];
+						}
+					}
+					redColumn[fromY + y] = (int) (redSum * factor);
+					greenColumn[fromY + y] = (int) (greenSum * factor);
+					blueColumn[fromY + y] = (int) (blueSum * factor);
+					redColumn[fromY + y + 1] = (int) (redNext * factor);
+					greenColumn[fromY + y + 1] = (int) (greenNext * factor);
+					blueColumn[fromY + y + 1] = (int) (blueNext * factor);
+				}
+				if (y < blockHeight) {
+					double redSum = 0;
+					double greenSum = 0;
+					double blueSum = 0;
+					int w = 0;
+					for (int maskX = 0; maskX < maskWidth; maskX++) {
+						int i = (x + maskX) * bufferHeight + y;
+						for (int maskY = 0; maskY < maskHeight; maskY++, i++) {
+							double weight = weights[w++];
+							redSum += weight * red[i];
+							greenSum += weight * green[i];
+							blueSum += weight * blue[i];
+						}
+					}
+					redColumn[fromY + y] = (int) (redSum * factor);
+					greenColumn[fromY + y] = (int) (greenSum * factor);
+					blueColumn[fromY + y] = (int) (blueSum * factor);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies a region of the channel to the buffer column by column,
+	 * repeating the border pixels for the coordinates outside of it
+	 */
+	private static void loadBlock(int[][] channel, int fromX, int fromY, int bufferWidth, int bufferHeight, int[] buffer) {
+		int width = channel.length;
+		int height = channel[0].length;
+		// the rows inside of the channel
+		int first = Math.max(0, Math.min(bufferHeight, -fromY));
+		int last = Math.max(first, Math.min(bufferHeight, height - fromY));
+		for (int x = 0; x < bufferWidth; x++) {
+			int[] column = channel[Math.max(0, Math.min(width - 1, fromX + x))];
+			int start = x * bufferHeight;
+			for (int y = 0; y < first; y++) {
+				buffer[start + y] = column[0];
+			}
+			System.arraycopy(column, fromY + first, buffer, start + first, last - first);
+			for (int y = last; y < bufferHeight; y++) {
+				buffer[start + y] = column[height - 1];
+			}
+		}
+	}
+
+	private static void getResult(Future<Image> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private static synchronized ExecutorService getWorkers() {
+		if (sWorkers == null) {
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+			sWorkers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("blocks"));
+		}
+		return sWorkers;
+	}
+}
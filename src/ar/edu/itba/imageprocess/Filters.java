@@ -10,6 +10,7 @@ import java.awt.image.BufferedImage;
 import ar.edu.itba.imageprocess.utils.ArrayUtils;
 import ar.edu.itba.imageprocess.utils.ChartUtils;
 import ar.edu.itba.imageprocess.utils.Log;
+import ar.edu.itba.imageprocess.utils.Progress;
 import ar.edu.itba.imageprocess.utils.RandGenerator;
 
 public class Filters {
@@ -18,6 +19,7 @@ public class Filters {
 	public static final int CHART_HEIGHT = 300;
 	public static final int MASK_FILTER_AVERAGE = 1;
 	public static final int MASK_FILTER_HIGH_PASS = 2;
+	public static final int BORDER_DETECTION_HALO = 2;
 
 	public static Image generateWhiteImage(int width, int height) {
 		int[][] grayChannel = new int[width][height];
@@ -77,12 +79,13 @@ public class Filters {
 		// prepare the new image channel arrays
 		int width = image1.getWidth();
 		int height = image1.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// add each pixel one by one
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				redChannel[x][y] = image1.getRed(x, y) + image2.getRed(x, y);
 				greenChannel[x][y] = image1.getGreen(x, y) + image2.getGreen(x, y);
@@ -90,7 +93,7 @@ public class Filters {
 			}
 		}
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image subtractImages(Image image1, Image image2) {
@@ -103,12 +106,13 @@ public class Filters {
 		// prepare the new image channel arrays
 		int width = image1.getWidth();
 		int height = image1.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// subtract each pixel one by one
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				redChannel[x][y] = image1.getRed(x, y) - image2.getRed(x, y);
 				greenChannel[x][y] = image1.getGreen(x, y) - image2.getGreen(x, y);
@@ -116,19 +120,20 @@ public class Filters {
 			}
 		}
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image multiplyScalar(Image image, double scalar) {
 		// prepare the new image channel arrays
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// multiply each pixel one by one
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				redChannel[x][y] = (int) (image.getRed(x, y) * scalar);
 				greenChannel[x][y] = (int) (image.getGreen(x, y) * scalar);
@@ -136,7 +141,7 @@ public class Filters {
 			}
 		}
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image compressLinear(Image image) {
@@ -144,7 +149,7 @@ public class Filters {
 		int width = image.getWidth();
 		int height = image.getHeight();
 		int[][] grayChannel = image.getGrayChannel();
-		int[][] newGrayChannel = new int[width][height];
+		int[][] newGrayChannel = PlanePool.obtain(width, height);
 
 		// get the bounds and calculate the linear transform parameters
 		int[] range = image.getRange(Image.CHANNEL_GRAY);
@@ -154,12 +159,14 @@ public class Filters {
 
 		// apply the filter to all pixels
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				newGrayChannel[x][y] = (int) (grayChannel[x][y] * factor + b);
 			}
 		}
 
-		return new Image(newGrayChannel);
+		PlanePool.recycle(grayChannel);
+		return toImage(newGrayChannel);
 	}
 
 	public static Image compress(Image image) {
@@ -167,7 +174,7 @@ public class Filters {
 		int width = image.getWidth();
 		int height = image.getHeight();
 		int[][] grayChannel = image.getGrayChannel();
-		int[][] newGrayChannel = new int[width][height];
+		int[][] newGrayChannel = PlanePool.obtain(width, height);
 
 		// get the maximum gray level and the factor of compression
 		int max = ArrayUtils.max(grayChannel);
@@ -175,6 +182,7 @@ public class Filters {
 
 		// apply the filter to all pixels
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				// only apply the filter if the max gray level is above 255
 				if (max > 255) {
@@ -187,19 +195,21 @@ public class Filters {
 			}
 		}
 
-		return new Image(newGrayChannel);
+		PlanePool.recycle(grayChannel);
+		return toImage(newGrayChannel);
 	}
 
 	public static Image filterNegative(Image image) {
 		// prepare the new image channel arrays
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// inverse the color of each pixel
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				redChannel[x][y] = 255 - image.getRed(x, y);
 				greenChannel[x][y] = 255 - image.getGreen(x, y);
@@ -207,19 +217,20 @@ public class Filters {
 			}
 		}
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image filterThreshold(Image image, int threshold) {
 		// prepare the new image channel arrays
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// apply the threshold to each pixel
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				redChannel[x][y] = image.getRed(x, y) < threshold ? 0 : 255;
 				greenChannel[x][y] = image.getGreen(x, y) < threshold ? 0 : 255;
@@ -227,14 +238,14 @@ public class Filters {
 			}
 		}
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image filterContrast(Image image, int r1, int r2, int s1, int s2) {
 		// prepare the new image channel arrays
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] grayChannel = new int[width][height];
+		int[][] grayChannel = PlanePool.obtain(width, height);
 
 		// calculate the three linear transforms parameters
 		double factor1 = (double) (s1 - 0) / (r1 - 0);
@@ -246,6 +257,7 @@ public class Filters {
 
 		// apply the transforms to each pixels
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				int gray = image.getGray(x, y);
 				if (gray <= r1) {
@@ -258,14 +270,14 @@ public class Filters {
 			}
 		}
 
-		return new Image(grayChannel);
+		return toImage(grayChannel);
 	}
 
 	public static Image filterEqualize(Image image) {
 		// prepare the new image gray channel
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] grayChannel = new int[width][height];
+		int[][] grayChannel = PlanePool.obtain(width, height);
 
 		// let ni be the number of occurrences of gray level i
 		int[] ni = image.getHistogram(Image.CHANNEL_GRAY);
@@ -288,23 +300,25 @@ public class Filters {
 		}
 
 		for (int x = 0; x < image.getWidth(); x++) {
+			Progress.update(x, image.getWidth());
 			for (int y = 0; y < image.getHeight(); y++) {
 				grayChannel[x][y] = (int) (output[image.getGray(x, y)]);
 			}
 		}
 
-		return new Image(grayChannel);
+		return toImage(grayChannel);
 	}
 
 	public static Image applyAddGaussianNoise(Image image, double spread, double average, double percentage) {
 		// prepare the new image gray channel
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] newGrayChannel = new int[width][height];
+		int[][] newGrayChannel = PlanePool.obtain(width, height);
 		int[][] grayChannel = image.getGrayChannel();
 
 		// apply the gaussian noise to each pixel
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				double rand = Math.random();
 				if (rand <= percentage) {
@@ -315,18 +329,20 @@ public class Filters {
 			}
 		}
 
-		return new Image(newGrayChannel);
+		PlanePool.recycle(grayChannel);
+		return toImage(newGrayChannel);
 	}
 
 	public static Image applyMulRayleighNoise(Image image, double p, double percentage) {
 		// prepare the new image gray channel
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] newGrayChannel = new int[width][height];
+		int[][] newGrayChannel = PlanePool.obtain(width, height);
 		int[][] grayChannel = image.getGrayChannel();
 
 		// apply the rayleigh noise to each pixel
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				double rand = Math.random();
 				if (rand <= percentage) {
@@ -337,18 +353,20 @@ public class Filters {
 			}
 		}
 
-		return new Image(newGrayChannel);
+		PlanePool.recycle(grayChannel);
+		return toImage(newGrayChannel);
 	}
 
 	public static Image applyMulExponentialNoise(Image image, double p, double percentage) {
 		// prepare the new image gray channel
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] newGrayChannel = new int[width][height];
+		int[][] newGrayChannel = PlanePool.obtain(width, height);
 		int[][] grayChannel = image.getGrayChannel();
 
 		// apply the exponential noise to each pixel
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				double rand = Math.random();
 				if (rand <= percentage) {
@@ -359,7 +377,8 @@ public class Filters {
 			}
 		}
 
-		return new Image(newGrayChannel);
+		PlanePool.recycle(grayChannel);
+		return toImage(newGrayChannel);
 	}
 
 	public static Image generateGaussianChartImage(double spread, double average) {
@@ -396,12 +415,13 @@ public class Filters {
 		// prepare the new image channel arrays
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// apply the noise to each pixel of the image
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				double rand = Math.random();
 				if (rand <= p0) {
@@ -420,16 +440,16 @@ public class Filters {
 			}
 		}
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image applyFactorMaskFilter(Image image, int maskWidth, int maskHeight, int filterType) {
 		// prepare the new image channel arrays
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// get the position of the pixel at the center of the mask
 		// if one side has an even length, for example maskWidth = 8
@@ -463,16 +483,16 @@ public class Filters {
 		// apply the mask
 		applyFactorMask(image, mask, factor, redChannel, greenChannel, blueChannel);
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image applyGaussianMaskFilter(Image image, int maskWidth, int maskHeight, double spread) {
 		// prepare the new image channel arrays
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// get the position of the pixel at the center of the mask
 		// if one side has an even length, for example maskWidth = 8
@@ -507,16 +527,16 @@ public class Filters {
 		// apply the mask
 		applyFactorMask(image, mask, factor, redChannel, greenChannel, blueChannel);
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image applyMedianMaskFilter(Image image, int maskWidth, int maskHeight) {
 		// prepare the new image channel arrays
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] redChannel = new int[width][height];
-		int[][] greenChannel = new int[width][height];
-		int[][] blueChannel = new int[width][height];
+		int[][] redChannel = PlanePool.obtain(width, height);
+		int[][] greenChannel = PlanePool.obtain(width, height);
+		int[][] blueChannel = PlanePool.obtain(width, height);
 
 		// get the position of the pixel at the center of the mask
 		// if one side has an even length, for example maskWidth = 8
@@ -526,6 +546,7 @@ public class Filters {
 
 		// apply the mask on each pixel of the image
 		for (int pixelX = 0; pixelX < width; pixelX++) {
+			Progress.update(pixelX, width);
 			for (int pixelY = 0; pixelY < height; pixelY++) {
 				int[] redValues = new int[maskWidth * maskHeight];
 				int[] greenValues = new int[maskWidth * maskHeight];
@@ -547,17 +568,18 @@ public class Filters {
 			}
 		}
 
-		return new Image(redChannel, greenChannel, blueChannel);
+		return toImage(redChannel, greenChannel, blueChannel);
 	}
 
 	public static Image robertsBorderDetection(Image image) {
 		// prepare the new image gray channel
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] newGrayChannel = new int[width][height];
+		int[][] newGrayChannel = PlanePool.obtain(width, height);
 
 		// apply the exponential noise to each pixel
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				int gx = image.getGray(x, y) - image.getGray(x + 1, y + 1);
 				int gy = image.getGray(x + 1, y) - image.getGray(x, y + 1);
@@ -566,17 +588,18 @@ public class Filters {
 			}
 		}
 
-		return new Image(newGrayChannel);
+		return toImage(newGrayChannel);
 	}
 
 	public static Image prewittBorderDetection(Image image) {
 		// prepare the new image gray channel
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] newGrayChannel = new int[width][height];
+		int[][] newGrayChannel = PlanePool.obtain(width, height);
 
 		// apply the exponential noise to each pixel
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				int gx1 = image.getGray(x, y + 2) + image.getGray(x + 1, y + 2) + image.getGray(x + 2, y + 2);
 				int gx2 = image.getGray(x, y) + image.getGray(x + 1, y) + image.getGray(x + 2, y);
@@ -589,17 +612,18 @@ public class Filters {
 			}
 		}
 
-		return new Image(newGrayChannel);
+		return toImage(newGrayChannel);
 	}
 
 	public static Image sobelBorderDetection(Image image) {
 		// prepare the new image gray channel
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][] newGrayChannel = new int[width][height];
+		int[][] newGrayChannel = PlanePool.obtain(width, height);
 
 		// apply the exponential noise to each pixel
 		for (int x = 0; x < width; x++) {
+			Progress.update(x, width);
 			for (int y = 0; y < height; y++) {
 				int gx1 = image.getGray(x, y + 2) + 2 * image.getGray(x + 1, y + 2) + image.getGray(x + 2, y + 2);
 				int gx2 = image.getGray(x, y) + 2 * image.getGray(x + 1, y) + image.getGray(x + 2, y);
@@ -612,7 +636,19 @@ public class Filters {
 			}
 		}
 
-		return new Image(newGrayChannel);
+		return toImage(newGrayChannel);
+	}
+
+	/**
+	 * Gives the number of rows (or columns) around a pixel read by a mask of
+	 * that size, which is the halo needed to process the image by strips
+	 */
+	public static int getMaskHalo(int maskWidth, int maskHeight) {
+		int offsetX = (int) (Math.ceil(maskWidth / 2.0) - 1);
+		int offsetY = (int) (Math.ceil(maskHeight / 2.0) - 1);
+		int haloX = Math.max(offsetX, maskWidth - 1 - offsetX);
+		int haloY = Math.max(offsetY, maskHeight - 1 - offsetY);
+		return Math.max(haloX, haloY);
 	}
 
 	/**
@@ -632,34 +668,28 @@ public class Filters {
 		return minindex;
 	}
 
-	private static void applyFactorMask(Image image, double[][] mask, double factor, int[][] redChannel, int[][] greenChannel, int[][] blueChannel) {
-		int width = image.getWidth();
-		int height = image.getHeight();
-		int maskWidth = mask.length;
-		int maskHeight = mask[0].length;
-		int offsetX = (int) (Math.ceil(maskWidth / 2.0) - 1);
-		int offsetY = (int) (Math.ceil(maskHeight / 2.0) - 1);
-
-		for (int pixelX = 0; pixelX < width; pixelX++) {
-			for (int pixelY = 0; pixelY < height; pixelY++) {
-				double redSum = 0;
-				double greenSum = 0;
-				double blueSum = 0;
+	/**
+	 * Builds the result out of planes taken from PlanePool, and gives them
+	 * back since the image copies them
+	 */
+	private static Image toImage(int[][] redChannel, int[][] greenChannel, int[][] blueChannel) {
+		Image image = new Image(redChannel, greenChannel, blueChannel);
+		PlanePool.recycle(redChannel, greenChannel, blueChannel);
+		return image;
+	}
 
-				// iterate over the mask for that pixel
-				for (int x = 0; x < maskWidth; x++) {
-					for (int y = 0; y < maskHeight; y++) {
-						redSum += mask[x][y] * image.getRed(pixelX - offsetX + x, pixelY - offsetY + y);
-						greenSum += mask[x][y] * image.getGreen(pixelX - offsetX + x, pixelY - offsetY + y);
-						blueSum += mask[x][y] * image.getBlue(pixelX - offsetX + x, pixelY - offsetY + y);
-					}
-				}
+	private static Image toImage(int[][] grayChannel) {
+		Image image = new Image(grayChannel);
+		PlanePool.recycle(grayChannel);
+		return image;
+	}
 
-				// set the new image pixels
-				redChannel[pixelX][pixelY] = (int) (redSum * factor);
-				greenChannel[pixelX][pixelY] = (int) (greenSum * factor);
-				blueChannel[pixelX][pixelY] = (int) (blueSum * factor);
-			}
-		}
+	/**
+	 * Applies the mask in blocks that fit in the cache, see BlockProcessor
+	 */
+	private static void applyFactorMask(Image image, double[][] mask, double factor, int[][] redChannel, int[][] greenChannel, int[][] blueChannel) {
+		int[][][] channels = new int[][][] { image.getRedChannel(), image.getGreenChannel(), image.getBlueChannel() };
+		int[][][] results = new int[][][] { redChannel, greenChannel, blueChannel };
+		BlockProcessor.applyMask(channels, results, mask, factor);
 	}
 }
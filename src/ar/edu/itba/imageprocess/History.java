@@ -0,0 +1,74 @@
+package ar.edu.itba.imageprocess;
+
+import java.io.IOException;
+
+/**
+ * The images shown in a pane, in the order they were produced, with the
+ * current one. The images after the current one are dropped when a new image
+ * is added, as in the undo history of an editor
+ */
+public interface History {
+
+	/**
+	 * Adds an image after the current one, which becomes the current one
+	 *
+	 * @param image the image, can be null
+	 * @param step how the image was computed from the current one, or null if
+	 *            it can't be computed again
+	 */
+	public void add(Image image, Step step);
+
+	public int size();
+
+	public int getIndex();
+
+	/**
+	 * Makes an image the current one
+	 *
+	 * @return the image, can be null
+	 */
+	public Image moveTo(int index) throws IOException;
+
+	/**
+	 * @return the bytes used by the images kept in memory
+	 */
+	public long getMemoryUsed();
+
+	public void close();
+
+	/**
+	 * How an image was computed from the previous image of the history, so it
+	 * can be computed again instead of being kept
+	 */
+	public static class Step {
+
+		private ImageFunction mFunction;
+		private long mMillis;
+		private boolean mPointOperation;
+
+		/**
+		 * @param function gives the image out of the previous one, always the
+		 *            same for the same image
+		 * @param millis the time it took to compute the image
+		 * @param pointOperation true if each pixel only depends on the same
+		 *            pixel of the previous image
+		 */
+		public Step(ImageFunction function, long millis, boolean pointOperation) {
+			mFunction = function;
+			mMillis = millis;
+			mPointOperation = pointOperation;
+		}
+
+		public Image apply(Image image) {
+			return mFunction.apply(image);
+		}
+
+		public long getMillis() {
+			return mMillis;
+		}
+
+		public boolean isPointOperation() {
+			return mPointOperation;
+		}
+	}
+}
@@ -1,7 +1,14 @@
 package ar.edu.itba.imageprocess;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.util.Arrays;
 
 /**
  * Image class This class holds both 3 array of ints that represent its colors
@@ -25,6 +32,12 @@ public class Image {
 	private int[][] mGreenChannel;
 	private int[][] mBlueChannel;
 	private BufferedImage mBufferedImage;
+	private File mPreviewFile;
+	private int mPreviewSubsampling;
+	private ImagePyramid mPyramid;
+	private long mContentHash;
+	private boolean mContentHashed;
+	private int mModifications;
 
 	public Image(BufferedImage bufferedImage) {
 		drawBufferedImage(bufferedImage);
@@ -90,8 +103,12 @@ public class Image {
 		return (int) (0.2126 * mRedChannel[x][y] + 0.7152 * mGreenChannel[x][y] + 0.0722 * mBlueChannel[x][y]);
 	}
 
+	/**
+	 * @return a new plane with the gray levels, which the caller owns and
+	 *         can give back to PlanePool
+	 */
 	public int[][] getGrayChannel() {
-		int[][] grayChannel = new int[mWidth][mHeight];
+		int[][] grayChannel = PlanePool.obtain(mWidth, mHeight);
 		for (int x = 0; x < mWidth; x++) {
 			for (int y = 0; y < mHeight; y++) {
 				grayChannel[x][y] = getGray(x, y);
@@ -132,6 +149,158 @@ public class Image {
 		return mBufferedImage;
 	}
 
+	/**
+	 * Marks the image as a reduced version of a file, decoded only to be
+	 * displayed. The operations need the full image, see
+	 * ImageLoader.loadFullImage
+	 *
+	 * @param subsampling the number of pixels of the file per pixel of the
+	 *            image, in each direction
+	 */
+	public void setPreviewOf(File file, int subsampling) {
+		mPreviewFile = file;
+		mPreviewSubsampling = subsampling;
+	}
+
+	public boolean isPreview() {
+		return mPreviewFile != null;
+	}
+
+	/**
+	 * @return the file this image is a preview of, or null if it isn't a
+	 *         preview
+	 */
+	public File getPreviewFile() {
+		return mPreviewFile;
+	}
+
+	public int getPreviewSubsampling() {
+		return mPreviewSubsampling;
+	}
+
+	/**
+	 * A 64 bit hash of the size and the channels, computed column by column
+	 * the first time it's needed and then kept until the image is drawn
+	 * again
+	 */
+	public synchronized long getContentHash() {
+		if (!mContentHashed) {
+			long hash = 31L * mWidth + mHeight;
+			int[][][] channels = new int[][][] { mRedChannel, mGreenChannel, mBlueChannel };
+			for (int[][] channel : channels) {
+				for (int x = 0; x < mWidth; x++) {
+					hash = hash * 0x9E3779B97F4A7C15L + hashColumn(channel[x]);
+				}
+			}
+			mContentHash = hash;
+			mContentHashed = true;
+		}
+		return mContentHash;
+	}
+
+	/**
+	 * @return true if the other image has the same size and the same values
+	 *         in its channels, to confirm that two images with the same
+	 *         content hash are the same
+	 */
+	public boolean hasSameContent(Image other) {
+		if (other == this) {
+			return true;
+		}
+		if (other.mWidth != mWidth || other.mHeight != mHeight) {
+			return false;
+		}
+		for (int x = 0; x < mWidth; x++) {
+			if (!Arrays.equals(mRedChannel[x], other.mRedChannel[x]) || !Arrays.equals(mGreenChannel[x], other.mGreenChannel[x]) || !Arrays.equals(mBlueChannel[x], other.mBlueChannel[x])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of times the image was drawn, counting the
+	 *         constructor, so the copies of it kept somewhere can tell if it
+	 *         changed since
+	 */
+	public synchronized int getModifications() {
+		return mModifications;
+	}
+
+	/**
+	 * Forgets what was computed from the previous channels
+	 */
+	private synchronized void onModified() {
+		mContentHashed = false;
+		mPyramid = null;
+		mModifications++;
+	}
+
+	/**
+	 * FNV-1a over the values of the column
+	 */
+	private static long hashColumn(int[] column) {
+		long hash = 0xCBF29CE484222325L;
+		for (int value : column) {
+			hash = (hash ^ value) * 0x100000001B3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the pyramid of reduced versions of this image, whose levels are
+	 *         computed when they are first needed
+	 */
+	public synchronized ImagePyramid getPyramid() {
+		if (mPyramid == null) {
+			mPyramid = new ImagePyramid(this);
+		}
+		return mPyramid;
+	}
+
+	/**
+	 * Copies a region of the image into a new Image. The region can go
+	 * outside of the image, the border pixels are repeated there as the
+	 * filters do
+	 */
+	public Image getRegion(int regionX, int regionY, int width, int height) {
+		int[][] red = PlanePool.obtain(width, height);
+		int[][] green = PlanePool.obtain(width, height);
+		int[][] blue = PlanePool.obtain(width, height);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				red[x][y] = getRed(regionX + x, regionY + y);
+				green[x][y] = getGreen(regionX + x, regionY + y);
+				blue[x][y] = getBlue(regionX + x, regionY + y);
+			}
+		}
+		Image region = new Image(red, green, blue);
+		PlanePool.recycle(red, green, blue);
+		return region;
+	}
+
+	/**
+	 * Gives the channels back to PlanePool, for an image nothing else can
+	 * reach anymore, like the ones computed in between by a Pipeline. The
+	 * image can't be used afterwards
+	 */
+	public void recycle() {
+		if (mRedChannel != null) {
+			PlanePool.recycle(mRedChannel, mGreenChannel, mBlueChannel);
+			mRedChannel = null;
+			mGreenChannel = null;
+			mBlueChannel = null;
+		}
+	}
+
+	/**
+	 * @return an estimation of the bytes used by the image: the three
+	 *         channels and the BufferedImage
+	 */
+	public long getMemorySize() {
+		return 16L * mWidth * mHeight;
+	}
+
 	/**
 	 * Calculates the histogram of the specified channel. The histogram size is
 	 * at least 256. If the image has pixels with a value higher than 255 or
@@ -182,60 +351,155 @@ public class Image {
 	public void drawBufferedImage(BufferedImage bufferedImage) {
 		mWidth = bufferedImage.getWidth();
 		mHeight = bufferedImage.getHeight();
-		mRedChannel = new int[mWidth][mHeight];
-		mGreenChannel = new int[mWidth][mHeight];
-		mBlueChannel = new int[mWidth][mHeight];
-		mBufferedImage = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
-
-		for (int x = 0; x < mWidth; x++) {
+		// all the pixels are written below
+		mRedChannel = PlanePool.obtain(mWidth, mHeight);
+		mGreenChannel = PlanePool.obtain(mWidth, mHeight);
+		mBlueChannel = PlanePool.obtain(mWidth, mHeight);
+
+		// read the data buffer directly for the most common types, and go
+		// through the color model row by row for the others
+		WritableRaster raster = bufferedImage.getRaster();
+		int type = bufferedImage.getType();
+		if (type == BufferedImage.TYPE_BYTE_GRAY) {
+			importByteComponents(raster, true);
+		} else if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR) {
+			importByteComponents(raster, false);
+		} else if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+			importIntPixels(raster);
+		} else if (bufferedImage.getColorModel() instanceof IndexColorModel) {
+			importIndexedPixels(raster, (IndexColorModel) bufferedImage.getColorModel());
+		} else {
+			int[] row = new int[mWidth];
 			for (int y = 0; y < mHeight; y++) {
-				Color color = new Color(bufferedImage.getRGB(x, y));
-				mRedChannel[x][y] = color.getRed();
-				mGreenChannel[x][y] = color.getGreen();
-				mBlueChannel[x][y] = color.getBlue();
-				mBufferedImage.setRGB(x, y, color.getRGB());
+				bufferedImage.getRGB(0, y, mWidth, 1, row, 0, mWidth);
+				setRow(y, row);
 			}
 		}
+		renderBufferedImage();
+		onModified();
 	}
 
 	public void drawChannels(int[][] redChannel, int[][] greenChannel, int[][] blueChannel) {
 		mWidth = redChannel.length;
 		mHeight = redChannel[0].length;
-		mRedChannel = new int[mWidth][mHeight];
-		mGreenChannel = new int[mWidth][mHeight];
-		mBlueChannel = new int[mWidth][mHeight];
-		mBufferedImage = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
-
+		mRedChannel = PlanePool.obtain(mWidth, mHeight);
+		mGreenChannel = PlanePool.obtain(mWidth, mHeight);
+		mBlueChannel = PlanePool.obtain(mWidth, mHeight);
 		for (int x = 0; x < mWidth; x++) {
-			for (int y = 0; y < mHeight; y++) {
-				Color color = new Color(trimColor(redChannel[x][y]), trimColor(greenChannel[x][y]), trimColor(blueChannel[x][y]));
-				mRedChannel[x][y] = redChannel[x][y];
-				mGreenChannel[x][y] = greenChannel[x][y];
-				mBlueChannel[x][y] = blueChannel[x][y];
-				mBufferedImage.setRGB(x, y, color.getRGB());
-			}
+			System.arraycopy(redChannel[x], 0, mRedChannel[x], 0, mHeight);
+			System.arraycopy(greenChannel[x], 0, mGreenChannel[x], 0, mHeight);
+			System.arraycopy(blueChannel[x], 0, mBlueChannel[x], 0, mHeight);
 		}
+		renderBufferedImage();
+		onModified();
 	}
 
 	public void drawGrayChannel(int[][] grayChannel) {
 		mWidth = grayChannel.length;
 		mHeight = grayChannel[0].length;
-		mRedChannel = new int[mWidth][mHeight];
-		mGreenChannel = new int[mWidth][mHeight];
-		mBlueChannel = new int[mWidth][mHeight];
-		mBufferedImage = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
+		mRedChannel = PlanePool.obtain(mWidth, mHeight);
+		mGreenChannel = PlanePool.obtain(mWidth, mHeight);
+		mBlueChannel = PlanePool.obtain(mWidth, mHeight);
+		for (int x = 0; x < mWidth; x++) {
+			System.arraycopy(grayChannel[x], 0, mRedChannel[x], 0, mHeight);
+			System.arraycopy(grayChannel[x], 0, mGreenChannel[x], 0, mHeight);
+			System.arraycopy(grayChannel[x], 0, mBlueChannel[x], 0, mHeight);
+		}
+		renderBufferedImage();
+		onModified();
+	}
 
+	/**
+	 * Builds the BufferedImage from the channels, writing the trimmed colors
+	 * straight into its pixel array
+	 */
+	private void renderBufferedImage() {
+		mBufferedImage = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) mBufferedImage.getRaster().getDataBuffer()).getData();
 		for (int x = 0; x < mWidth; x++) {
-			for (int y = 0; y < mHeight; y++) {
-				Color color = new Color(trimColor(grayChannel[x][y]), trimColor(grayChannel[x][y]), trimColor(grayChannel[x][y]));
-				mRedChannel[x][y] = grayChannel[x][y];
-				mGreenChannel[x][y] = grayChannel[x][y];
-				mBlueChannel[x][y] = grayChannel[x][y];
-				mBufferedImage.setRGB(x, y, color.getRGB());
+			int[] red = mRedChannel[x];
+			int[] green = mGreenChannel[x];
+			int[] blue = mBlueChannel[x];
+			for (int y = 0, i = x; y < mHeight; y++, i += mWidth) {
+				pixels[i] = (trimColor(red[y]) << 16) | (trimColor(green[y]) << 8) | trimColor(blue[y]);
 			}
 		}
 	}
 
+	/**
+	 * Imports images stored as one byte per sample, either gray or with the
+	 * blue, green and red samples (and maybe alpha) of each pixel together
+	 */
+	private void importByteComponents(WritableRaster raster, boolean gray) {
+		ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+		byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+		int[] bandOffsets = sampleModel.getBandOffsets();
+		int pixelStride = sampleModel.getPixelStride();
+		int scanlineStride = sampleModel.getScanlineStride();
+		int translateX = raster.getSampleModelTranslateX();
+		int translateY = raster.getSampleModelTranslateY();
+		int bufferOffset = raster.getDataBuffer().getOffset();
+
+		// the bands are in red, green, blue (and alpha) order
+		int redOffset = bandOffsets[0];
+		int greenOffset = gray ? bandOffsets[0] : bandOffsets[1];
+		int blueOffset = gray ? bandOffsets[0] : bandOffsets[2];
+		for (int y = 0; y < mHeight; y++) {
+			int i = bufferOffset + (y - translateY) * scanlineStride - translateX * pixelStride;
+			for (int x = 0; x < mWidth; x++, i += pixelStride) {
+				mRedChannel[x][y] = data[i + redOffset] & 0xFF;
+				mGreenChannel[x][y] = data[i + greenOffset] & 0xFF;
+				mBlueChannel[x][y] = data[i + blueOffset] & 0xFF;
+			}
+		}
+	}
+
+	/**
+	 * Imports images stored as one packed RGB or ARGB int per pixel
+	 */
+	private void importIntPixels(WritableRaster raster) {
+		SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+		int translateX = raster.getSampleModelTranslateX();
+		int translateY = raster.getSampleModelTranslateY();
+		int bufferOffset = raster.getDataBuffer().getOffset();
+		for (int y = 0; y < mHeight; y++) {
+			int i = bufferOffset + sampleModel.getOffset(-translateX, y - translateY);
+			for (int x = 0; x < mWidth; x++, i++) {
+				int rgb = data[i];
+				mRedChannel[x][y] = (rgb >> 16) & 0xFF;
+				mGreenChannel[x][y] = (rgb >> 8) & 0xFF;
+				mBlueChannel[x][y] = rgb & 0xFF;
+			}
+		}
+	}
+
+	/**
+	 * Imports palette images by reading the indexes of a row at once and
+	 * looking up their colors
+	 */
+	private void importIndexedPixels(WritableRaster raster, IndexColorModel colorModel) {
+		int[] palette = new int[colorModel.getMapSize()];
+		colorModel.getRGBs(palette);
+		int[] row = new int[mWidth];
+		for (int y = 0; y < mHeight; y++) {
+			raster.getSamples(0, y, mWidth, 1, 0, row);
+			for (int x = 0; x < mWidth; x++) {
+				row[x] = palette[row[x]];
+			}
+			setRow(y, row);
+		}
+	}
+
+	private void setRow(int y, int[] rgbRow) {
+		for (int x = 0; x < mWidth; x++) {
+			int rgb = rgbRow[x];
+			mRedChannel[x][y] = (rgb >> 16) & 0xFF;
+			mGreenChannel[x][y] = (rgb >> 8) & 0xFF;
+			mBlueChannel[x][y] = rgb & 0xFF;
+		}
+	}
+
 	private int trimColor(int value) {
 		return Math.min(255, Math.max(0, value));
 	}
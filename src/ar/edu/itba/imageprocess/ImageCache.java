@@ -0,0 +1,163 @@
+package ar.edu.itba.imageprocess;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ar.edu.itba.imageprocess.utils.Log;
+
+/**
+ * Keeps the recently decoded images, so reopening a file doesn't decode it
+ * again. An entry is found by the canonical path, modification time and size
+ * of the file plus the decoding parameters, so a modified file is always
+ * decoded again. The least recently used images are evicted when the images
+ * go over the memory budget. Optionally, the images are only softly
+ * referenced so the garbage collector can also reclaim them when the heap is
+ * low. The cache can also be used with keys of its own, for example for the
+ * results of the operations. The cached images are shared, and an image drawn
+ * again after being cached is dropped the next time it's looked up, so a
+ * modified image is never given for the key of its previous contents
+ */
+public class ImageCache {
+
+	public static final long DEFAULT_MEMORY_BUDGET = 256 * 1024 * 1024;
+
+	private static ImageCache sDefault;
+
+	private long mMemoryBudget;
+	private long mMemoryUsed;
+	private boolean mSoftReferences;
+	private LinkedHashMap<String, Entry> mEntries;
+	private int mHits;
+	private int mMisses;
+
+	public ImageCache(long memoryBudget, boolean softReferences) {
+		mMemoryBudget = memoryBudget;
+		mMemoryUsed = 0;
+		mSoftReferences = softReferences;
+		// access ordered, so the first entry is the least recently used one
+		mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * The process wide cache. Its budget in megabytes is given by the
+	 * imageprocess.cache.mb system property (0 disables it), and soft
+	 * references are used if imageprocess.cache.soft is true
+	 */
+	public static synchronized ImageCache getDefault() {
+		if (sDefault == null) {
+			long budget = Long.getLong("imageprocess.cache.mb", DEFAULT_MEMORY_BUDGET / (1024 * 1024)) * 1024 * 1024;
+			sDefault = new ImageCache(budget, Boolean.getBoolean("imageprocess.cache.soft"));
+		}
+		return sDefault;
+	}
+
+	/**
+	 * @param params the decoding parameters, for example the raw format
+	 * @return the cached image, or null if the file must be decoded
+	 */
+	public Image get(File file, String params) {
+		return get(getKey(file, params));
+	}
+
+	/**
+	 * @param key identifies the image, for example the operation and the
+	 *            input that gave it, can be null
+	 * @return the cached image, or null
+	 */
+	public synchronized Image get(String key) {
+		Entry entry = key != null ? mEntries.get(key) : null;
+		Image image = entry != null ? entry.getImage() : null;
+		if (image != null && image.getModifications() != entry.mModifications) {
+			// drawn again since it was cached
+			image = null;
+		}
+		if (image != null) {
+			mHits++;
+		} else {
+			mMisses++;
+			if (entry != null) {
+				// the soft reference was cleared by the garbage collector, or
+				// the image was modified
+				mEntries.remove(key);
+				mMemoryUsed -= entry.mMemorySize;
+			}
+		}
+		return image;
+	}
+
+	public void put(File file, String params, Image image) {
+		put(getKey(file, params), image);
+	}
+
+	public synchronized void put(String key, Image image) {
+		long memorySize = image.getMemorySize();
+		if (key == null || memorySize > mMemoryBudget) {
+			return;
+		}
+		Entry previous = mEntries.put(key, new Entry(image, memorySize, mSoftReferences));
+		if (previous != null) {
+			mMemoryUsed -= previous.mMemorySize;
+		}
+		mMemoryUsed += memorySize;
+		evict();
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+		mMemoryUsed = 0;
+	}
+
+	/**
+	 * @return the number of hits and misses so far
+	 */
+	public synchronized int[] getStats() {
+		return new int[] { mHits, mMisses };
+	}
+
+	public synchronized long getMemoryUsed() {
+		return mMemoryUsed;
+	}
+
+	private void evict() {
+		Iterator<Entry> it = mEntries.values().iterator();
+		while (mMemoryUsed > mMemoryBudget && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			mMemoryUsed -= entry.mMemorySize;
+		}
+	}
+
+	private static String getKey(File file, String params) {
+		try {
+			return file.getCanonicalPath() + "|" + file.lastModified() + "|" + file.length() + "|" + params;
+		} catch (IOException e) {
+			Log.d("couldn't get the path of " + file.getName());
+			return null;
+		}
+	}
+
+	private static class Entry {
+
+		private Image mImage;
+		private SoftReference<Image> mSoftImage;
+		private long mMemorySize;
+		private int mModifications;
+
+		public Entry(Image image, long memorySize, boolean soft) {
+			if (soft) {
+				mSoftImage = new SoftReference<Image>(image);
+			} else {
+				mImage = image;
+			}
+			mMemorySize = memorySize;
+			mModifications = image.getModifications();
+		}
+
+		public Image getImage() {
+			return mSoftImage != null ? mSoftImage.get() : mImage;
+		}
+	}
+}
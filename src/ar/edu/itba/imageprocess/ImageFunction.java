@@ -0,0 +1,10 @@
+package ar.edu.itba.imageprocess;
+
+/**
+ * A processing step that creates a new image out of an image, usually a call
+ * to one of the Filters methods with its parameters already chosen
+ */
+public interface ImageFunction {
+
+	public Image apply(Image image);
+}
@@ -0,0 +1,529 @@
+package ar.edu.itba.imageprocess;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import ar.edu.itba.imageprocess.utils.DaemonThreadFactory;
+import ar.edu.itba.imageprocess.utils.FileUtils;
+import ar.edu.itba.imageprocess.utils.Log;
+
+/**
+ * The images of the history of a pane, kept within a memory budget. When the
+ * images use more than the budget, the ones farthest from the current one are
+ * compressed in a background thread: each channel is stored as the difference
+ * with the previous image of the history, which is small after most
+ * operations, and deflated. Every KEYFRAME_INTERVAL images, or when the size
+ * changes, an image is stored on its own so decoding never goes back too far.
+ * If the compressed images still don't fit, they are moved to a temporary
+ * file. The images are decoded again when the history moves to them
+ */
+public class ImageHistory implements History {
+
+	/** the memory budget of each history in MB */
+	public static final String MEMORY_PROPERTY = "imageprocess.history.memory";
+	private static final int KEYFRAME_INTERVAL = 8;
+
+	private static final ExecutorService sCompressor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("history"));
+
+	private List<Entry> mEntries;
+	private int mIndex;
+	private long mBudget;
+	private long mMemoryUsed;
+	private boolean mTrimScheduled;
+	private File mSpillFile;
+	private RandomAccessFile mSpill;
+	private long mSpillLength;
+	/** the regions of the file freed by removed images, as {offset, size}, sorted by offset */
+	private List<long[]> mSpillFree;
+
+	public ImageHistory() {
+		this(getDefaultBudget());
+	}
+
+	/**
+	 * @param budget the bytes the images and their compressed data can use
+	 */
+	public ImageHistory(long budget) {
+		mEntries = new ArrayList<Entry>();
+		mIndex = -1;
+		mBudget = budget;
+		mMemoryUsed = 0;
+		mTrimScheduled = false;
+		mSpillLength = 0;
+		mSpillFree = new ArrayList<long[]>();
+	}
+
+	/**
+	 * The images are always kept, the step is ignored
+	 */
+	@Override
+	public synchronized void add(Image image, Step step) {
+		while (mEntries.size() > mIndex + 1) {
+			Entry removed = mEntries.remove(mEntries.size() - 1);
+			mMemoryUsed -= removed.getMemorySize();
+			if (removed.mSpillOffset >= 0) {
+				freeSpilled(removed.mSpillOffset, removed.mSpillSize);
+			}
+		}
+		Entry entry = new Entry(image);
+		mEntries.add(entry);
+		mIndex = mEntries.size() - 1;
+		mMemoryUsed += entry.getMemorySize();
+		scheduleTrim();
+	}
+
+	@Override
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	@Override
+	public synchronized int getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * Makes an image the current one, decoding it if it was compressed
+	 */
+	@Override
+	public Image moveTo(int index) throws IOException {
+		Image image = materialize(index);
+		synchronized (this) {
+			mIndex = index;
+			scheduleTrim();
+		}
+		return image;
+	}
+
+	/**
+	 * @return the bytes used by the images and compressed data in memory
+	 */
+	@Override
+	public synchronized long getMemoryUsed() {
+		return mMemoryUsed;
+	}
+
+	/**
+	 * Deletes the temporary file, the history can't be used anymore
+	 */
+	@Override
+	public synchronized void close() {
+		mEntries.clear();
+		mIndex = -1;
+		mMemoryUsed = 0;
+		mSpillFree.clear();
+		if (mSpill != null) {
+			FileUtils.closeQuietly(mSpill);
+			mSpillFile.delete();
+			mSpill = null;
+		}
+	}
+
+	private static long getDefaultBudget() {
+		Long megabytes = Long.getLong(MEMORY_PROPERTY);
+		if (megabytes != null) {
+			return megabytes * 1024 * 1024;
+		}
+		// the two panes share the heap with the images being processed
+		return Runtime.getRuntime().maxMemory() / 6;
+	}
+
+	private void scheduleTrim() {
+		if (mMemoryUsed > mBudget && !mTrimScheduled) {
+			mTrimScheduled = true;
+			sCompressor.execute(new Runnable() {
+				@Override
+				public void run() {
+					trim();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Compresses and spills images, starting with the ones farthest from the
+	 * current image, until the history fits in the budget
+	 */
+	private void trim() {
+		// the last image compressed, usually the base of the next one
+		Image previous = null;
+		int previousIndex = -1;
+		while (true) {
+			Entry entry;
+			Image image;
+			Image base = null;
+			boolean delta = false;
+			int index;
+			synchronized (this) {
+				if (mMemoryUsed <= mBudget) {
+					mTrimScheduled = false;
+					return;
+				}
+				index = findFarthest(true);
+				if (index < 0) {
+					index = findFarthest(false);
+					if (index < 0 || !spill(mEntries.get(index))) {
+						// nothing else can be freed
+						mTrimScheduled = false;
+						return;
+					}
+					continue;
+				}
+				entry = mEntries.get(index);
+				image = entry.mImage;
+				if (entry.isStored()) {
+					// it was decoded again, its data is still there
+					entry.mImage = null;
+					mMemoryUsed -= image.getMemorySize();
+					continue;
+				}
+				Entry before = index > 0 ? mEntries.get(index - 1) : null;
+				delta = index % KEYFRAME_INTERVAL != 0 && before != null && !before.mEmpty && before.mWidth == image.getWidth() && before.mHeight == image.getHeight();
+				if (delta && previousIndex == index - 1) {
+					base = previous;
+				}
+			}
+			if (delta && base == null) {
+				// decoded without the lock, the pane can go on adding images
+				try {
+					base = materialize(index - 1);
+				} catch (IOException e) {
+					Log.d("couldn't decode history image " + (index - 1) + " " + e);
+				} catch (IndexOutOfBoundsException e) {
+					// the history was cut meanwhile
+				}
+			}
+			byte[] data;
+			try {
+				data = encode(image, base);
+			} catch (IOException e) {
+				Log.d("couldn't compress history image " + index + " " + e);
+				synchronized (this) {
+					mTrimScheduled = false;
+				}
+				return;
+			}
+			synchronized (this) {
+				// the history may have been cut meanwhile
+				if (index < mEntries.size() && mEntries.get(index) == entry) {
+					entry.mBase = base != null ? index - 1 : -1;
+					entry.mData = data;
+					mMemoryUsed += data.length;
+					if (index != mIndex) {
+						entry.mImage = null;
+						mMemoryUsed -= image.getMemorySize();
+					}
+				}
+			}
+			previous = image;
+			previousIndex = index;
+		}
+	}
+
+	/**
+	 * @param decoded true to look for an image in memory, false for
+	 *            compressed data in memory
+	 * @return the index of the farthest entry from the current one with what
+	 *         is looked for, or -1
+	 */
+	private int findFarthest(boolean decoded) {
+		int farthest = -1;
+		for (int i = 0; i < mEntries.size(); i++) {
+			Entry entry = mEntries.get(i);
+			boolean candidate = decoded ? entry.mImage != null && i != mIndex : entry.mData != null;
+			if (candidate && (farthest < 0 || Math.abs(i - mIndex) > Math.abs(farthest - mIndex))) {
+				farthest = i;
+			}
+		}
+		return farthest;
+	}
+
+	/**
+	 * Decodes an image and the images it's based on. The compressed data is
+	 * taken with the lock held, but decoded without it, so decoding an old
+	 * image doesn't block the pane
+	 */
+	private Image materialize(int index) throws IOException {
+		// from the image down to a keyframe or an image in memory
+		List<Entry> chain = new ArrayList<Entry>();
+		List<byte[]> chainData = new ArrayList<byte[]>();
+		Image image;
+		synchronized (this) {
+			Entry entry = mEntries.get(index);
+			while (!entry.mEmpty && entry.mImage == null) {
+				chain.add(entry);
+				chainData.add(entry.mData != null ? entry.mData : readSpilled(entry));
+				if (entry.mBase < 0) {
+					break;
+				}
+				entry = mEntries.get(entry.mBase);
+			}
+			image = entry.mImage;
+		}
+		Image[] decoded = new Image[chain.size()];
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			image = decode(chainData.get(i), image);
+			Entry entry = chain.get(i);
+			if (entry.mPreviewFile != null) {
+				image.setPreviewOf(entry.mPreviewFile, entry.mPreviewSubsampling);
+			}
+			decoded[i] = image;
+		}
+		synchronized (this) {
+			for (int i = 0; i < chain.size(); i++) {
+				Entry entry = chain.get(i);
+				// the history may have been cut, or the image decoded by another thread
+				if (entry.mImage == null && mEntries.contains(entry)) {
+					entry.mImage = decoded[i];
+					mMemoryUsed += decoded[i].getMemorySize();
+				}
+			}
+		}
+		return image;
+	}
+
+	private boolean spill(Entry entry) {
+		try {
+			if (mSpill == null) {
+				mSpillFile = File.createTempFile("history", ".bin");
+				mSpillFile.deleteOnExit();
+				mSpill = new RandomAccessFile(mSpillFile, "rw");
+			}
+			long offset = allocateSpilled(entry.mData.length);
+			FileChannel channel = mSpill.getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(entry.mData);
+			try {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, offset + buffer.position());
+				}
+			} catch (IOException e) {
+				freeSpilled(offset, entry.mData.length);
+				throw e;
+			}
+			entry.mSpillOffset = offset;
+		} catch (IOException e) {
+			Log.d("couldn't spill history image " + e);
+			return false;
+		}
+		entry.mSpillSize = entry.mData.length;
+		mMemoryUsed -= entry.mData.length;
+		entry.mData = null;
+		return true;
+	}
+
+	/**
+	 * @return the offset of a region of the file for the size, the first
+	 *         freed region big enough or the end of the file
+	 */
+	private long allocateSpilled(int size) {
+		for (int i = 0; i < mSpillFree.size(); i++) {
+			long[] region = mSpillFree.get(i);
+			if (region[1] >= size) {
+				long offset = region[0];
+				region[0] += size;
+				region[1] -= size;
+				if (region[1] == 0) {
+					mSpillFree.remove(i);
+				}
+				return offset;
+			}
+		}
+		long offset = mSpillLength;
+		mSpillLength += size;
+		return offset;
+	}
+
+	/**
+	 * Gives a region back, merged with the free regions next to it. The file
+	 * is shortened if the region was at its end
+	 */
+	private void freeSpilled(long offset, long size) {
+		int i = 0;
+		while (i < mSpillFree.size() && mSpillFree.get(i)[0] < offset) {
+			i++;
+		}
+		mSpillFree.add(i, new long[] { offset, size });
+		if (i + 1 < mSpillFree.size() && offset + size == mSpillFree.get(i + 1)[0]) {
+			mSpillFree.get(i)[1] += mSpillFree.remove(i + 1)[1];
+		}
+		if (i > 0 && mSpillFree.get(i - 1)[0] + mSpillFree.get(i - 1)[1] == offset) {
+			mSpillFree.get(i - 1)[1] += mSpillFree.remove(i)[1];
+			i--;
+		}
+		long[] last = mSpillFree.get(mSpillFree.size() - 1);
+		if (last[0] + last[1] == mSpillLength) {
+			mSpillFree.remove(mSpillFree.size() - 1);
+			mSpillLength = last[0];
+			try {
+				mSpill.setLength(mSpillLength);
+			} catch (IOException e) {
+				Log.d("couldn't shorten history file " + e);
+			}
+		}
+	}
+
+	private byte[] readSpilled(Entry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(entry.mSpillSize);
+		FileUtils.readFully(mSpill.getChannel(), buffer, entry.mSpillOffset);
+		return buffer.array();
+	}
+
+	/**
+	 * Stores the width, the height, the number of channels (1 if the image is
+	 * gray) and then the channels column by column, each value as the zigzag
+	 * varint of its difference with the base
+	 */
+	private static byte[] encode(Image image, Image base) throws IOException {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[][][] channels = getChannels(image);
+		int[][][] baseChannels = base != null ? getChannels(base) : null;
+		int planes = isGray(channels) ? 1 : 3;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 64 * 1024));
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeByte(planes);
+			byte[] column = new byte[5 * height];
+			for (int c = 0; c < planes; c++) {
+				for (int x = 0; x < width; x++) {
+					int[] values = channels[c][x];
+					int[] baseValues = baseChannels != null ? baseChannels[c][x] : null;
+					int length = 0;
+					for (int y = 0; y < height; y++) {
+						int delta = baseValues != null ? values[y] - baseValues[y] : values[y];
+						int zigzag = (delta << 1) ^ (delta >> 31);
+						while ((zigzag & ~0x7F) != 0) {
+							column[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+							zigzag >>>= 7;
+						}
+						column[length++] = (byte) zigzag;
+					}
+					out.write(column, 0, length);
+				}
+			}
+			out.close();
+		} finally {
+			deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Image decode(byte[] data, Image base) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(data), inflater), 64 * 1024));
+			int width = in.readInt();
+			int height = in.readInt();
+			int planes = in.readByte();
+			int[][][] baseChannels = base != null ? getChannels(base) : null;
+			int[][][] channels = new int[planes][width][height];
+			for (int c = 0; c < planes; c++) {
+				for (int x = 0; x < width; x++) {
+					int[] values = channels[c][x];
+					int[] baseValues = baseChannels != null ? baseChannels[c][x] : null;
+					for (int y = 0; y < height; y++) {
+						int zigzag = readVarint(in);
+						int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+						values[y] = baseValues != null ? baseValues[y] + delta : delta;
+					}
+				}
+			}
+			return planes == 1 ? new Image(channels[0]) : new Image(channels[0], channels[1], channels[2]);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("truncated history image");
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	private static int[][][] getChannels(Image image) {
+		return new int[][][] { image.getRedChannel(), image.getGreenChannel(), image.getBlueChannel() };
+	}
+
+	private static boolean isGray(int[][][] channels) {
+		for (int x = 0; x < channels[0].length; x++) {
+			if (!Arrays.equals(channels[0][x], channels[1][x]) || !Arrays.equals(channels[0][x], channels[2][x])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * An image of the history: decoded in memory, compressed in memory or
+	 * compressed in the temporary file. A compressed image can also be
+	 * decoded, after the history moved back to it
+	 */
+	private static class Entry {
+
+		private Image mImage;
+		private boolean mEmpty;
+		private File mPreviewFile;
+		private int mPreviewSubsampling;
+		private int mWidth;
+		private int mHeight;
+		private int mBase;
+		private byte[] mData;
+		private long mSpillOffset;
+		private int mSpillSize;
+
+		public Entry(Image image) {
+			mImage = image;
+			mEmpty = image == null;
+			// the decoded image must still lead to its file
+			mPreviewFile = image != null ? image.getPreviewFile() : null;
+			mPreviewSubsampling = image != null ? image.getPreviewSubsampling() : 0;
+			mWidth = image != null ? image.getWidth() : 0;
+			mHeight = image != null ? image.getHeight() : 0;
+			mBase = -1;
+			mData = null;
+			mSpillOffset = -1;
+			mSpillSize = 0;
+		}
+
+		public boolean isStored() {
+			return mData != null || mSpillOffset >= 0;
+		}
+
+		public long getMemorySize() {
+			return (mImage != null ? mImage.getMemorySize() : 0) + (mData != null ? mData.length : 0);
+		}
+	}
+}
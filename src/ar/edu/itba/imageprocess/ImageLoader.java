@@ -0,0 +1,470 @@
+package ar.edu.itba.imageprocess;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+
+import ar.edu.itba.imageprocess.utils.DaemonThreadFactory;
+import ar.edu.itba.imageprocess.utils.ExtImageIO;
+import ar.edu.itba.imageprocess.utils.FileUtils;
+import ar.edu.itba.imageprocess.utils.Log;
+import ar.edu.itba.imageprocess.utils.NativeImageIO;
+import ar.edu.itba.imageprocess.utils.Progress;
+import ar.edu.itba.imageprocess.utils.RawFormat;
+import ar.edu.itba.imageprocess.utils.RawFormats;
+
+/**
+ * Decodes image files in background threads. When several files are loaded at
+ * once they are decoded in parallel, and the results are handed back on the
+ * event dispatch thread in the order of the files
+ */
+public class ImageLoader {
+
+	/**
+	 * Receives the results of a load, all the methods are called on the event
+	 * dispatch thread
+	 */
+	public interface Callback {
+
+		public void onImageLoaded(File file, Image image);
+
+		public void onLoadFailed(File file, Exception e);
+
+		public void onFinished(boolean cancelled);
+	}
+
+	private ExecutorService mDecoders;
+	private ExecutorService mDispatcher;
+	private ImageCache mCache;
+	private Map<Image, SoftReference<Image>> mFullImages;
+
+	public ImageLoader() {
+		this(ImageCache.getDefault());
+	}
+
+	public ImageLoader(ImageCache cache) {
+		mCache = cache;
+		mFullImages = new WeakHashMap<Image, SoftReference<Image>>();
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		mDecoders = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("decoder"));
+		mDispatcher = Executors.newSingleThreadExecutor(new DaemonThreadFactory("load-dispatcher"));
+	}
+
+	/**
+	 * Starts loading the files at full resolution
+	 *
+	 * @param rawFormat the format used for the raw files whose format can't
+	 *            be found by RawFormats, can be null
+	 */
+	public Task load(List<File> files, RawFormat rawFormat, Callback callback) {
+		return load(files, rawFormat, null, callback);
+	}
+
+	/**
+	 * Starts loading the files
+	 *
+	 * @param rawFormat the format used for the raw files whose format can't
+	 *            be found by RawFormats, can be null
+	 * @param previewSize if not null, the files read by ImageIO that are
+	 *            bigger than this size are decoded as previews fitting in it
+	 */
+	public Task load(List<File> files, final RawFormat rawFormat, final Dimension previewSize, final Callback callback) {
+		final Task task = new Task();
+		for (final File file : files) {
+			final Progress progress = new Progress();
+			task.mProgresses.add(progress);
+			task.mFiles.add(file);
+			task.mFutures.add(mDecoders.submit(new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					Progress.bind(progress);
+					try {
+						progress.checkCancelled();
+						// reuse the image if it was decoded before
+						String params = getDecodeParams(file, rawFormat, previewSize);
+						Image image = mCache.get(file, params);
+						if (image == null) {
+							long start = System.currentTimeMillis();
+							image = previewSize != null ? decodePreview(file, previewSize) : null;
+							if (image == null) {
+								image = decode(file, rawFormat);
+							}
+							Log.d("decoded " + file.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+							if (image != null) {
+								mCache.put(file, params, image);
+							}
+						}
+						return image;
+					} finally {
+						progress.setPercent(100);
+						Progress.unbind();
+					}
+				}
+			}));
+		}
+
+		// wait for the results in order and hand them to the callback
+		mDispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < task.mFutures.size(); i++) {
+					final File file = task.mFiles.get(i);
+					try {
+						final Image image = task.mFutures.get(i).get();
+						SwingUtilities.invokeLater(new Runnable() {
+							@Override
+							public void run() {
+								if (image != null) {
+									callback.onImageLoaded(file, image);
+								} else {
+									callback.onLoadFailed(file, new IOException("unsupported format"));
+								}
+							}
+						});
+					} catch (CancellationException e) {
+						// the whole task is reported as cancelled below
+					} catch (InterruptedException e) {
+						task.cancel();
+					} catch (ExecutionException e) {
+						final Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+						if (!(cause instanceof CancellationException)) {
+							SwingUtilities.invokeLater(new Runnable() {
+								@Override
+								public void run() {
+									callback.onLoadFailed(file, cause);
+								}
+							});
+						}
+					}
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						callback.onFinished(task.isCancelled());
+					}
+				});
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * Decodes an image file in the current thread, reporting its progress to
+	 * the Progress bound to the thread
+	 *
+	 * @param rawFormat the format used for a raw file whose format can't be
+	 *            found by RawFormats, can be null
+	 * @return the image, or null if the format isn't supported
+	 */
+	public static Image decode(File file, RawFormat rawFormat) throws IOException {
+		String extension = FileUtils.getFileExtension(file);
+		if (extension.equals("raw")) {
+			RawFormat format = getRawFormat(file, rawFormat);
+			if (format == null) {
+				throw new IOException("unknown raw format for " + file.getName());
+			}
+			return toImage(ExtImageIO.readRawImageChannels(file, format));
+		} else if (extension.matches("pgm|ppm")) {
+			return toImage(ExtImageIO.readPixmapChannels(file));
+		} else if (extension.equals(NativeImageIO.EXTENSION)) {
+			return toImage(NativeImageIO.read(file));
+		} else {
+			return readImage(file, null, 1, null);
+		}
+	}
+
+	/**
+	 * Writes an image in the format given by the extension of the file
+	 *
+	 * @param rangePolicy what the raw, pgm and ppm formats do with the values
+	 *            outside of [0, 255], one of the PixmapWriter RANGE_ constants
+	 * @return false if the format isn't supported
+	 */
+	public static boolean encode(Image image, File file, int rangePolicy) throws IOException {
+		String extension = FileUtils.getFileExtension(file);
+		int[][][] channels = new int[][][] { image.getRedChannel(), image.getGreenChannel(), image.getBlueChannel() };
+		if (extension.matches("gif|png|bmp|jpe?g")) {
+			return ImageIO.write(image.getBufferedImage(), extension.equals("jpeg") ? "jpg" : extension, file);
+		} else if (extension.matches("raw|pgm|ppm")) {
+			// write the channels and not the buffered image, so the values
+			// outside of [0, 255] follow the range policy
+			ExtImageIO.write(channels, file, rangePolicy);
+			return true;
+		} else if (extension.equals(NativeImageIO.EXTENSION)) {
+			NativeImageIO.write(channels, file, NativeImageIO.COMPRESSION_NONE);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Decodes a reduced version of a file fitting in the given size, skipping
+	 * the pixels that aren't needed while decoding. The file is fully decoded
+	 * if it already fits
+	 *
+	 * @return the image, marked as a preview if it was reduced, or null if the
+	 *         file isn't read by ImageIO
+	 */
+	public static Image decodePreview(File file, Dimension size) throws IOException {
+		if (!isReadByImageIO(file)) {
+			return null;
+		}
+		return readImage(file, null, 0, size);
+	}
+
+	/**
+	 * Decodes a region of a file, for example the part of a big image shown
+	 * in a viewport
+	 *
+	 * @param subsampling only one pixel out of subsampling is decoded in each
+	 *            direction
+	 * @return the image, marked as a preview, or null if the file isn't read
+	 *         by ImageIO
+	 */
+	public static Image decodeRegion(File file, Rectangle region, int subsampling) throws IOException {
+		if (!isReadByImageIO(file)) {
+			return null;
+		}
+		return readImage(file, region, subsampling, null);
+	}
+
+	/**
+	 * Gets the full image of a preview, decoding it in the current thread the
+	 * first time. The full image is kept as long as the preview is used and
+	 * there is enough memory
+	 *
+	 * @return the image itself if it isn't a preview
+	 */
+	public Image loadFullImage(Image image) throws IOException {
+		if (!image.isPreview()) {
+			return image;
+		}
+		synchronized (mFullImages) {
+			SoftReference<Image> reference = mFullImages.get(image);
+			Image fullImage = reference != null ? reference.get() : null;
+			if (fullImage != null) {
+				return fullImage;
+			}
+		}
+		File file = image.getPreviewFile();
+		Image fullImage = mCache.get(file, "");
+		if (fullImage == null) {
+			long start = System.currentTimeMillis();
+			fullImage = decode(file, null);
+			if (fullImage == null) {
+				throw new IOException("couldn't decode " + file.getName());
+			}
+			Log.d("decoded full " + file.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+			mCache.put(file, "", fullImage);
+		}
+		synchronized (mFullImages) {
+			mFullImages.put(image, new SoftReference<Image>(fullImage));
+		}
+		return fullImage;
+	}
+
+	/**
+	 * @return the format of a raw file, found by RawFormats or the given one
+	 */
+	public static RawFormat getRawFormat(File file, RawFormat rawFormat) {
+		RawFormat format = RawFormats.find(file);
+		return format != null ? format : rawFormat;
+	}
+
+	/**
+	 * @return the parameters changing the way the file is decoded, as part of
+	 *         the key of the image cache
+	 */
+	private static String getDecodeParams(File file, RawFormat rawFormat, Dimension previewSize) {
+		if (FileUtils.getFileExtension(file).equals("raw")) {
+			return String.valueOf(getRawFormat(file, rawFormat));
+		} else if (previewSize != null && isReadByImageIO(file)) {
+			return "preview " + previewSize.width + "x" + previewSize.height;
+		}
+		return "";
+	}
+
+	private static boolean isReadByImageIO(File file) {
+		String extension = FileUtils.getFileExtension(file);
+		return !extension.matches("raw|pgm|ppm|" + NativeImageIO.EXTENSION);
+	}
+
+	/**
+	 * Creates a gray image out of one channel, or a color image out of three
+	 */
+	public static Image toImage(int[][][] channels) {
+		if (channels.length == 1) {
+			return new Image(channels[0]);
+		} else {
+			return new Image(channels[0], channels[1], channels[2]);
+		}
+	}
+
+	/**
+	 * Reads a file with the ImageIO readers, reporting their progress and
+	 * aborting them when the task is cancelled. Only the pixels of the region
+	 * and one out of subsampling are decoded
+	 *
+	 * @param region the region to decode, null for the whole image
+	 * @param subsampling the subsampling, ignored if fitTo is given
+	 * @param fitTo if not null, the smallest subsampling making the image fit
+	 *            in this size is used
+	 * @return the image, marked as a preview if it was reduced, or null if
+	 *         there is no reader for the file
+	 */
+	private static Image readImage(File file, Rectangle region, int subsampling, Dimension fitTo) throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(file);
+		if (input == null) {
+			return null;
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				Progress progress = Progress.current();
+				if (progress != null) {
+					reader.addIIOReadProgressListener(new ReadProgressListener(progress));
+				}
+				ImageReadParam param = reader.getDefaultReadParam();
+				if (fitTo != null) {
+					// only the header is read to know the size
+					int width = region != null ? region.width : reader.getWidth(0);
+					int height = region != null ? region.height : reader.getHeight(0);
+					double ratio = Math.max((double) width / fitTo.width, (double) height / fitTo.height);
+					subsampling = (int) Math.ceil(ratio);
+				}
+				subsampling = Math.max(1, subsampling);
+				if (region != null) {
+					param.setSourceRegion(region);
+				}
+				if (subsampling > 1) {
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+				BufferedImage bufferedImage = reader.read(0, param);
+				Progress.check();
+				Image image = new Image(bufferedImage);
+				if (region != null || subsampling > 1) {
+					image.setPreviewOf(file, subsampling);
+				}
+				return image;
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * The progress of a group of files being loaded
+	 */
+	public static class Task {
+
+		private List<File> mFiles = new ArrayList<File>();
+		private List<Progress> mProgresses = new ArrayList<Progress>();
+		private List<Future<Image>> mFutures = new ArrayList<Future<Image>>();
+		private volatile boolean mCancelled;
+
+		/**
+		 * @return the average progress of all the files
+		 */
+		public int getPercent() {
+			int total = 0;
+			for (Progress progress : mProgresses) {
+				total += progress.getPercent();
+			}
+			return mProgresses.isEmpty() ? 100 : total / mProgresses.size();
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		/**
+		 * Cancels the decoding of all the files not loaded yet
+		 */
+		public void cancel() {
+			mCancelled = true;
+			for (Progress progress : mProgresses) {
+				progress.cancel();
+			}
+			for (Future<Image> future : mFutures) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	private static class ReadProgressListener implements IIOReadProgressListener {
+
+		private Progress mProgress;
+
+		public ReadProgressListener(Progress progress) {
+			mProgress = progress;
+		}
+
+		@Override
+		public void imageProgress(ImageReader source, float percentageDone) {
+			mProgress.setPercent((int) percentageDone);
+			if (mProgress.isCancelled()) {
+				source.abort();
+			}
+		}
+
+		@Override
+		public void sequenceStarted(ImageReader source, int minIndex) {
+		}
+
+		@Override
+		public void sequenceComplete(ImageReader source) {
+		}
+
+		@Override
+		public void imageStarted(ImageReader source, int imageIndex) {
+		}
+
+		@Override
+		public void imageComplete(ImageReader source) {
+		}
+
+		@Override
+		public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+		}
+
+		@Override
+		public void thumbnailProgress(ImageReader source, float percentageDone) {
+		}
+
+		@Override
+		public void thumbnailComplete(ImageReader source) {
+		}
+
+		@Override
+		public void readAborted(ImageReader source) {
+		}
+	}
+}
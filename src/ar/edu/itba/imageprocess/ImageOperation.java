@@ -0,0 +1,165 @@
+package ar.edu.itba.imageprocess;
+
+/**
+ * An operation that can be run by name, without the menus, for example from
+ * the command line. Its params are described with a ParamAsker, which is
+ * filled with the values before applying the operation. Besides applying it,
+ * the operation describes how it works, so the pipelines, the strips, the
+ * previews and the caches can handle any operation the same way: its kind,
+ * its halo, how it treats the channels, whether it can write its result over
+ * the source and how much it costs. The defaults are derived from the halo,
+ * which is unknown unless the operation declares it, so an operation is
+ * handled as global until it says otherwise.
+ * <p>
+ * Operations outside of this project are found with ServiceLoader: a jar
+ * listing its subclasses in META-INF/services/ar.edu.itba.imageprocess.ImageOperation
+ * adds them to the Operations, they need a public constructor without
+ * arguments
+ */
+public abstract class ImageOperation {
+
+	/** the operation needs the whole image, it can't be run by strips */
+	public static final int HALO_GLOBAL = -1;
+
+	/** each pixel of the result depends only on the same pixel */
+	public static final int KIND_POINT = 0;
+	/** each pixel of the result depends on the pixels within the halo */
+	public static final int KIND_NEIGHBORHOOD = 1;
+	/** each pixel of the result can depend on the whole image */
+	public static final int KIND_GLOBAL = 2;
+
+	/** each channel of the result depends only on the same channel */
+	public static final int CHANNELS_INDEPENDENT = 0;
+	/** each channel of the result depends on all the channels */
+	public static final int CHANNELS_MIXED = 1;
+
+	/**
+	 * A function of the value of a channel of a pixel, applied the same way
+	 * to all the channels
+	 */
+	public interface PointFunction {
+
+		public int apply(int value);
+	}
+
+	private String mName;
+	private String mDescription;
+
+	public ImageOperation(String name, String description) {
+		mName = name;
+		mDescription = description;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public String getDescription() {
+		return mDescription;
+	}
+
+	/**
+	 * @return a new ParamAsker with the params of the operation, without
+	 *         values
+	 */
+	public ParamAsker getParams() {
+		ParamAsker params = new ParamAsker();
+		addParams(params);
+		return params;
+	}
+
+	/**
+	 * Adds the params of the operation, none by default
+	 */
+	protected void addParams(ParamAsker params) {
+	}
+
+	/**
+	 * @param params the params returned by getParams, filled with values
+	 * @return a new image, the source image isn't modified
+	 */
+	public abstract Image apply(Image image, ParamAsker params);
+
+	/**
+	 * @return the number of pixels around a pixel needed to compute it, or
+	 *         HALO_GLOBAL if the operation depends on the whole image, the
+	 *         default since nothing is known about the operation. A point
+	 *         operation needs no halo
+	 */
+	public int getHalo(ParamAsker params) {
+		return HALO_GLOBAL;
+	}
+
+	/**
+	 * @return the function giving each channel value of the result out of the
+	 *         same channel value of the source, or null if the operation isn't
+	 *         a point operation. Consecutive point operations with
+	 *         independent channels are fused by Pipeline
+	 */
+	public PointFunction getPointFunction(ParamAsker params) {
+		return null;
+	}
+
+	/**
+	 * @return KIND_POINT, KIND_NEIGHBORHOOD or KIND_GLOBAL, by default
+	 *         according to the halo
+	 */
+	public int getKind(ParamAsker params) {
+		int halo = getHalo(params);
+		if (halo == HALO_GLOBAL) {
+			return KIND_GLOBAL;
+		}
+		return halo > 0 ? KIND_NEIGHBORHOOD : KIND_POINT;
+	}
+
+	/**
+	 * @return CHANNELS_INDEPENDENT, the default, or CHANNELS_MIXED
+	 */
+	public int getChannels() {
+		return CHANNELS_INDEPENDENT;
+	}
+
+	/**
+	 * @return true if the result can be written over the channels of the
+	 *         source, when nobody else uses them. By default only point
+	 *         operations can, the others read the pixels around after they
+	 *         are written
+	 */
+	public boolean isInPlace(ParamAsker params) {
+		return getKind(params) == KIND_POINT;
+	}
+
+	/**
+	 * @return an estimate of the operations needed for each value of the
+	 *         result, to compare the operations: 1 for a point operation, the
+	 *         size of the mask for a neighborhood by default, and 2 for a
+	 *         global one, which usually reads the image before writing it
+	 */
+	public int getCost(ParamAsker params) {
+		int halo = getHalo(params);
+		if (halo == HALO_GLOBAL) {
+			return 2;
+		}
+		return (2 * halo + 1) * (2 * halo + 1);
+	}
+
+	/**
+	 * @return true if the operation always gives the same image for the same
+	 *         image and params, false if it's random, like the noises
+	 */
+	public boolean isDeterministic() {
+		return true;
+	}
+
+	/**
+	 * @return a function applying the operation with these params
+	 */
+	public ImageFunction bind(final ParamAsker params) {
+		return new ImageFunction() {
+			@Override
+			public Image apply(Image image) {
+				return ImageOperation.this.apply(image, params);
+			}
+		};
+	}
+}
@@ -10,7 +10,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.util.ArrayList;
+import java.io.IOException;
 
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -26,12 +26,20 @@ public class ImagePane extends JPanel implements MouseListener, MouseMotionListe
 	public static final Color COLOR_UNSELECTED = new Color(0, 0, 0, 20);
 	public static final Color COLOR_SOURCE = new Color(0, 255, 0, 30);
 	public static final Color COLOR_DEST = new Color(0, 0, 255, 30);
+	/**
+	 * The history strategy: HISTORY_MEMORY keeps all the images, compressed
+	 * when needed, HISTORY_REPLAY keeps some and computes the others again
+	 */
+	public static final String HISTORY_PROPERTY = "imageprocess.history";
+	public static final String HISTORY_MEMORY = "memory";
+	public static final String HISTORY_REPLAY = "replay";
 
 	private MainController mController;
 	private int mIndex;
 	private Image mImage;
-	private ArrayList<Image> mHistory;
-	private int mHistoryIndex;
+	/** the image put in the history or restored from it, mImage can be a partial result */
+	private Image mCommittedImage;
+	private History mHistory;
 	private boolean mSource;
 	private boolean mDest;
 	private JPanel mImagePane;
@@ -48,8 +56,8 @@ public class ImagePane extends JPanel implements MouseListener, MouseMotionListe
 		mController = controller;
 		mIndex = index;
 		mImage = null;
-		mHistory = new ArrayList<Image>();
-		mHistoryIndex = -1;
+		mCommittedImage = null;
+		mHistory = createHistory();
 		mSource = false;
 		mDest = false;
 
@@ -203,6 +211,18 @@ public class ImagePane extends JPanel implements MouseListener, MouseMotionListe
 		return mImage;
 	}
 
+	/**
+	 * @return the image last added to the history or restored from it, which
+	 *         is what the pane shows once the temporary images, such as the
+	 *         partial results of an operation, are gone
+	 */
+	public Image getCommittedImage() {
+		return mCommittedImage;
+	}
+
+	/**
+	 * Shows an image without adding it to the history
+	 */
 	public void setImage(Image image) {
 		mImage = image;
 		if (mImage != null) {
@@ -216,34 +236,68 @@ public class ImagePane extends JPanel implements MouseListener, MouseMotionListe
 	}
 
 	public void setImageWithHistory(Image image) {
+		setImageWithHistory(image, null);
+	}
+
+	/**
+	 * @param step how the image was computed from the current one, so the
+	 *            history can compute it again instead of keeping it
+	 */
+	public void setImageWithHistory(Image image, History.Step step) {
 		setImage(image);
-		while (mHistoryIndex < mHistory.size() - 1) {
-			mHistory.remove(mHistory.size() - 1);
-		}
-		mHistory.add(mImage);
-		mHistoryIndex++;
+		mCommittedImage = image;
+		mHistory.add(mImage, step);
 		setHistoryButtonsState();
 	}
 
+	public int getHistoryIndex() {
+		return mHistory.getIndex();
+	}
+
 	public void historyMove(int move) {
-		int futureIndex = mHistoryIndex + move;
+		int futureIndex = mHistory.getIndex() + move;
 		if (futureIndex < 0) {
 			futureIndex = 0;
 		}
 		if (futureIndex > mHistory.size() - 1) {
 			futureIndex = mHistory.size() - 1;
 		}
-		if (futureIndex != mHistoryIndex) {
+		if (futureIndex != mHistory.getIndex()) {
 			Log.d("history move (" + futureIndex + ")");
-			mHistoryIndex = futureIndex;
-			setImage(mHistory.get(mHistoryIndex));
-			setHistoryButtonsState();
+			// the image is decoded or computed again in background
+			mController.moveHistory(this, futureIndex);
+		}
+	}
+
+	/**
+	 * Makes an image of the history the current one, from a background job
+	 *
+	 * @return the image, decoded again if it was compressed or computed again
+	 *         if it wasn't kept
+	 */
+	public Image moveHistoryTo(int index) throws IOException {
+		return mHistory.moveTo(index);
+	}
+
+	/**
+	 * Shows the image the history moved to
+	 */
+	public void showHistoryImage(Image image) {
+		mCommittedImage = image;
+		setImage(image);
+		setHistoryButtonsState();
+	}
+
+	private static History createHistory() {
+		if (HISTORY_REPLAY.equals(System.getProperty(HISTORY_PROPERTY))) {
+			return new ReplayHistory();
 		}
+		return new ImageHistory();
 	}
 
 	private void setHistoryButtonsState() {
-		mPrevBtn.setEnabled(mHistoryIndex > 0);
-		mNextBtn.setEnabled(mHistoryIndex < mHistory.size() - 1);
+		mPrevBtn.setEnabled(mHistory.getIndex() > 0);
+		mNextBtn.setEnabled(mHistory.getIndex() < mHistory.size() - 1);
 	}
 
 	private void updateSelectionColor() {
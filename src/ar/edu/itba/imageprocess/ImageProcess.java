@@ -2,13 +2,38 @@ package ar.edu.itba.imageprocess;
 
 import java.awt.Dimension;
 
+import ar.edu.itba.imageprocess.cluster.Coordinator;
+import ar.edu.itba.imageprocess.cluster.Worker;
+import ar.edu.itba.imageprocess.server.ImageServer;
+import ar.edu.itba.imageprocess.server.LoadGenerator;
+
 public class ImageProcess {
 
 	public static final String APPLICATION_NAME = "ImageProcess";
 	public static final String IMG_PATH = "res/img/";
 	public static final Dimension IMG_DIMENSION = new Dimension(512, 350);
 
+	/**
+	 * Starts the interface, or runs without any window when there are
+	 * arguments: a batch, see BatchProcessor, the http server, see
+	 * ImageServer, a load on the server, see LoadGenerator, or a batch shared
+	 * among processes, see Coordinator and Worker
+	 */
 	public static void main(String[] args) {
+		if (args.length > 0) {
+			// must be set before anything touches AWT
+			System.setProperty("java.awt.headless", "true");
+			if (args[0].equals("-server")) {
+				System.exit(ImageServer.run(args));
+			} else if (args[0].equals("-load")) {
+				System.exit(LoadGenerator.run(args));
+			} else if (args[0].equals("-coordinator")) {
+				System.exit(Coordinator.run(args));
+			} else if (args[0].equals("-worker")) {
+				System.exit(Worker.run(args));
+			}
+			System.exit(BatchProcessor.run(args));
+		}
 		MainController controller = new MainController();
 		controller.start();
 	}
@@ -0,0 +1,168 @@
+package ar.edu.itba.imageprocess;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import ar.edu.itba.imageprocess.utils.Progress;
+
+/**
+ * The image at decreasing resolutions: each level is the previous one blurred
+ * with a 5x5 binomial mask, an approximation of a gaussian, and reduced to
+ * half its width and height. Level 0 is the image itself, the last level is a
+ * single pixel. The levels are computed the first time they are needed, and
+ * kept through soft references so they can be dropped when memory runs low.
+ * Besides the previews of the operations, the pyramid can be used by
+ * algorithms working from coarse to fine, see expand
+ */
+public class ImagePyramid {
+
+	/** the binomial mask 1 4 6 4 1, applied in each direction */
+	private static final int[] WEIGHTS = new int[] { 1, 4, 6, 4, 1 };
+
+	private Image mImage;
+	private List<SoftReference<Image>> mLevels;
+	private int mLevelCount;
+
+	public ImagePyramid(Image image) {
+		mImage = image;
+		mLevels = new ArrayList<SoftReference<Image>>();
+		mLevelCount = 1;
+		int width = image.getWidth();
+		int height = image.getHeight();
+		while (width > 1 || height > 1) {
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+			mLevelCount++;
+		}
+	}
+
+	public int getLevelCount() {
+		return mLevelCount;
+	}
+
+	/**
+	 * @return the image at that level, computed now if needed
+	 */
+	public synchronized Image getLevel(int level) {
+		if (level < 0 || level >= mLevelCount) {
+			throw new IndexOutOfBoundsException("level " + level + " of " + mLevelCount);
+		}
+		// find the finest level still in memory below the one asked
+		Image image = mImage;
+		int known = 0;
+		for (int i = Math.min(level, mLevels.size()); i > 0; i--) {
+			Image cached = mLevels.get(i - 1).get();
+			if (cached != null) {
+				image = cached;
+				known = i;
+				break;
+			}
+		}
+		for (int i = known + 1; i <= level; i++) {
+			image = reduce(image);
+			while (mLevels.size() < i) {
+				mLevels.add(new SoftReference<Image>(null));
+			}
+			mLevels.set(i - 1, new SoftReference<Image>(image));
+		}
+		return image;
+	}
+
+	/**
+	 * @return the finest level whose size fits in the one given
+	 */
+	public int getLevelFitting(int width, int height) {
+		int level = 0;
+		int levelWidth = mImage.getWidth();
+		int levelHeight = mImage.getHeight();
+		while ((levelWidth > width || levelHeight > height) && level < mLevelCount - 1) {
+			levelWidth = (levelWidth + 1) / 2;
+			levelHeight = (levelHeight + 1) / 2;
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Blurs the image with the binomial mask and keeps one pixel out of two in
+	 * each direction
+	 */
+	public static Image reduce(Image image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[][][] channels = new int[][][] { image.getRedChannel(), image.getGreenChannel(), image.getBlueChannel() };
+		int[][][] results = new int[3][][];
+		for (int c = 0; c < 3; c++) {
+			results[c] = reduce(channels[c], width, height);
+		}
+		return new Image(results[0], results[1], results[2]);
+	}
+
+	private static int[][] reduce(int[][] channel, int width, int height) {
+		int reducedWidth = (width + 1) / 2;
+		int reducedHeight = (height + 1) / 2;
+		// the horizontal pass, only on the columns that are kept
+		int[][] columns = new int[reducedWidth][height];
+		for (int x = 0; x < reducedWidth; x++) {
+			Progress.check();
+			int[] column = columns[x];
+			for (int k = 0; k < WEIGHTS.length; k++) {
+				int[] source = channel[Math.max(0, Math.min(width - 1, 2 * x + k - 2))];
+				int weight = WEIGHTS[k];
+				for (int y = 0; y < height; y++) {
+					column[y] += weight * source[y];
+				}
+			}
+		}
+		// the vertical pass, only on the rows that are kept
+		int[][] result = new int[reducedWidth][reducedHeight];
+		for (int x = 0; x < reducedWidth; x++) {
+			int[] column = columns[x];
+			for (int y = 0; y < reducedHeight; y++) {
+				int sum = 0;
+				for (int k = 0; k < WEIGHTS.length; k++) {
+					sum += WEIGHTS[k] * column[Math.max(0, Math.min(height - 1, 2 * y + k - 2))];
+				}
+				// divided by 256 rounding to the nearest, also below 0
+				result[x][y] = (sum + 128) >> 8;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Enlarges a level to the size of a finer level, interpolating the pixels
+	 * linearly, for example to go on refining the result of an algorithm run
+	 * on a coarse level
+	 */
+	public static Image expand(Image image, int width, int height) {
+		double scaleX = (double) image.getWidth() / width;
+		double scaleY = (double) image.getHeight() / height;
+		int[][] red = new int[width][height];
+		int[][] green = new int[width][height];
+		int[][] blue = new int[width][height];
+		for (int x = 0; x < width; x++) {
+			Progress.check();
+			// the center of the pixel in the coordinates of the level
+			double sourceX = (x + 0.5) * scaleX - 0.5;
+			int x0 = (int) Math.floor(sourceX);
+			double fx = sourceX - x0;
+			for (int y = 0; y < height; y++) {
+				double sourceY = (y + 0.5) * scaleY - 0.5;
+				int y0 = (int) Math.floor(sourceY);
+				double fy = sourceY - y0;
+				red[x][y] = interpolate(image.getRed(x0, y0), image.getRed(x0 + 1, y0), image.getRed(x0, y0 + 1), image.getRed(x0 + 1, y0 + 1), fx, fy);
+				green[x][y] = interpolate(image.getGreen(x0, y0), image.getGreen(x0 + 1, y0), image.getGreen(x0, y0 + 1), image.getGreen(x0 + 1, y0 + 1), fx, fy);
+				blue[x][y] = interpolate(image.getBlue(x0, y0), image.getBlue(x0 + 1, y0), image.getBlue(x0, y0 + 1), image.getBlue(x0 + 1, y0 + 1), fx, fy);
+			}
+		}
+		return new Image(red, green, blue);
+	}
+
+	private static int interpolate(int topLeft, int topRight, int bottomLeft, int bottomRight, double fx, double fy) {
+		double top = topLeft + (topRight - topLeft) * fx;
+		double bottom = bottomLeft + (bottomRight - bottomLeft) * fx;
+		return (int) Math.round(top + (bottom - top) * fy);
+	}
+}
@@ -0,0 +1,515 @@
+package ar.edu.itba.imageprocess;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import ar.edu.itba.imageprocess.utils.DaemonThreadFactory;
+import ar.edu.itba.imageprocess.utils.FileUtils;
+import ar.edu.itba.imageprocess.utils.Progress;
+
+/**
+ * The frames of a multi-page TIFF, an animated GIF or the result of
+ * processing another stack. The frames of a file are decoded lazily, when
+ * first requested, and only softly kept afterwards, so a long stack doesn't
+ * need to fit in memory. Functions and projections are run in parallel, on a
+ * pool with a thread per core. All the frames have the size of the first one.
+ * The frames of a GIF are composed over the previous ones, following the
+ * disposal method of each frame, so the frames that only update a part of the
+ * screen come out complete
+ */
+public class ImageStack {
+
+	public static final int PROJECTION_MEAN = 1;
+	public static final int PROJECTION_MEDIAN = 2;
+	public static final int PROJECTION_MAX = 3;
+
+	private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+	private static final String DISPOSAL_BACKGROUND = "restoreToBackgroundColor";
+	private static final String DISPOSAL_PREVIOUS = "restoreToPrevious";
+
+	private static ExecutorService sWorkers;
+
+	private File mFile;
+	private ImageInputStream mInput;
+	private ImageReader mReader;
+	private int mWidth;
+	private int mHeight;
+	private int mFrameCount;
+	private List<SoftReference<Image>> mDecodedFrames;
+	private Image[] mFrames;
+
+	// the GIF screen, as left by the last composed frame
+	private boolean mGif;
+	private BufferedImage mCanvas;
+	private int mCanvasIndex;
+	private BufferedImage mSavedCanvas;
+	private String mDisposal;
+	private Rectangle mDisposalArea;
+
+	private ImageStack(File file, ImageInputStream input, ImageReader reader) throws IOException {
+		mFile = file;
+		mInput = input;
+		mReader = reader;
+		mFrameCount = reader.getNumImages(true);
+		mWidth = reader.getWidth(0);
+		mHeight = reader.getHeight(0);
+		int[] screen = getGifScreenSize(reader);
+		if (screen != null) {
+			mGif = true;
+			mWidth = screen[0];
+			mHeight = screen[1];
+		}
+		mDecodedFrames = new ArrayList<SoftReference<Image>>();
+		for (int i = 0; i < mFrameCount; i++) {
+			mDecodedFrames.add(null);
+		}
+	}
+
+	/**
+	 * Creates a stack out of images of the same size, kept in memory
+	 */
+	public ImageStack(List<Image> frames) {
+		if (frames.isEmpty()) {
+			throw new IllegalArgumentException("empty stack");
+		}
+		mFrames = frames.toArray(new Image[frames.size()]);
+		mFrameCount = mFrames.length;
+		mWidth = mFrames[0].getWidth();
+		mHeight = mFrames[0].getHeight();
+		for (Image frame : mFrames) {
+			if (frame.getWidth() != mWidth || frame.getHeight() != mHeight) {
+				throw new IllegalArgumentException("the frames have different sizes");
+			}
+		}
+	}
+
+	/**
+	 * Opens a file with one or more frames, only its header is read. The
+	 * stack must be closed once it isn't used anymore
+	 */
+	public static ImageStack open(File file) throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(file);
+		if (input == null) {
+			throw new IOException("couldn't open " + file.getName());
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		if (!readers.hasNext()) {
+			input.close();
+			throw new IOException("unsupported format " + FileUtils.getFileExtension(file));
+		}
+		ImageReader reader = readers.next();
+		try {
+			// not seek forward only, the frames can be read in any order
+			reader.setInput(input, false, true);
+			return new ImageStack(file, input, reader);
+		} catch (IOException e) {
+			reader.dispose();
+			input.close();
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Gets a frame, decoding it if it isn't in memory. The frames are shared,
+	 * so they must not be modified
+	 */
+	public Image getFrame(int index) throws IOException {
+		if (mFrames != null) {
+			return mFrames[index];
+		}
+		// an ImageReader can only read a frame at a time
+		synchronized (mReader) {
+			SoftReference<Image> reference = mDecodedFrames.get(index);
+			Image frame = reference != null ? reference.get() : null;
+			if (frame == null) {
+				frame = mGif ? composeGifFrames(index) : new Image(placeFrame(mReader.read(index)));
+				mDecodedFrames.set(index, new SoftReference<Image>(frame));
+			}
+			return frame;
+		}
+	}
+
+	/**
+	 * Applies a function to all the frames in parallel, for example one of
+	 * the Filters operations
+	 *
+	 * @return a stack with the results, kept in memory
+	 */
+	public ImageStack map(final ImageFunction function) throws IOException {
+		// the workers report the cancellation of the task that called them
+		final Progress progress = Progress.current();
+		List<Future<Image>> futures = new ArrayList<Future<Image>>();
+		for (int i = 0; i < mFrameCount; i++) {
+			final int index = i;
+			futures.add(getWorkers().submit(new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					Progress.bind(progress);
+					try {
+						return function.apply(getFrame(index));
+					} finally {
+						Progress.unbind();
+					}
+				}
+			}));
+		}
+		List<Image> results = new ArrayList<Image>();
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				results.add(getResult(futures.get(i)));
+				Progress.update(i + 1, futures.size());
+			}
+		} finally {
+			for (Future<Image> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return new ImageStack(results);
+	}
+
+	/**
+	 * Reduces the stack to an image, channel by channel and pixel by pixel
+	 *
+	 * @param projection one of the PROJECTION_ constants
+	 */
+	public Image project(int projection) throws IOException {
+		switch (projection) {
+			case PROJECTION_MEAN:
+				return projectMean();
+			case PROJECTION_MEDIAN:
+				return projectMedian();
+			case PROJECTION_MAX:
+				return projectMax();
+			default:
+				throw new IllegalArgumentException("unknown projection " + projection);
+		}
+	}
+
+	/**
+	 * @return the image whose pixels are the mean of the pixels of the frames
+	 */
+	public Image projectMean() throws IOException {
+		final long[][][] sums = new long[3][mWidth][mHeight];
+		// a frame at a time, so the frames don't need to be all in memory
+		for (int i = 0; i < mFrameCount; i++) {
+			final int[][][] frame = getChannels(getFrame(i));
+			forEachColumnBlock(new ColumnTask() {
+				@Override
+				public void run(int fromX, int toX) {
+					for (int c = 0; c < 3; c++) {
+						for (int x = fromX; x < toX; x++) {
+							long[] sum = sums[c][x];
+							int[] column = frame[c][x];
+							for (int y = 0; y < mHeight; y++) {
+								sum[y] += column[y];
+							}
+						}
+					}
+				}
+			});
+			Progress.update(i + 1, mFrameCount);
+		}
+		int[][][] mean = new int[3][mWidth][mHeight];
+		for (int c = 0; c < 3; c++) {
+			for (int x = 0; x < mWidth; x++) {
+				for (int y = 0; y < mHeight; y++) {
+					mean[c][x][y] = (int) Math.round((double) sums[c][x][y] / mFrameCount);
+				}
+			}
+		}
+		return new Image(mean[0], mean[1], mean[2]);
+	}
+
+	/**
+	 * @return the image whose pixels are the maximum of the pixels of the
+	 *         frames
+	 */
+	public Image projectMax() throws IOException {
+		final int[][][] max = new int[3][mWidth][mHeight];
+		for (int i = 0; i < mFrameCount; i++) {
+			final int[][][] frame = getChannels(getFrame(i));
+			final boolean first = i == 0;
+			forEachColumnBlock(new ColumnTask() {
+				@Override
+				public void run(int fromX, int toX) {
+					for (int c = 0; c < 3; c++) {
+						for (int x = fromX; x < toX; x++) {
+							int[] result = max[c][x];
+							int[] column = frame[c][x];
+							for (int y = 0; y < mHeight; y++) {
+								if (first || column[y] > result[y]) {
+									result[y] = column[y];
+								}
+							}
+						}
+					}
+				}
+			});
+			Progress.update(i + 1, mFrameCount);
+		}
+		return new Image(max[0], max[1], max[2]);
+	}
+
+	/**
+	 * @return the image whose pixels are the median of the pixels of the
+	 *         frames. Unlike the other projections, all the frames are kept
+	 *         in memory meanwhile
+	 */
+	public Image projectMedian() throws IOException {
+		final int[][][][] frames = new int[mFrameCount][][][];
+		for (int i = 0; i < mFrameCount; i++) {
+			frames[i] = getChannels(getFrame(i));
+			Progress.update(i + 1, 2 * mFrameCount);
+		}
+		final int[][][] median = new int[3][mWidth][mHeight];
+		forEachColumnBlock(new ColumnTask() {
+			@Override
+			public void run(int fromX, int toX) {
+				int[] values = new int[mFrameCount];
+				for (int c = 0; c < 3; c++) {
+					for (int x = fromX; x < toX; x++) {
+						for (int y = 0; y < mHeight; y++) {
+							for (int i = 0; i < mFrameCount; i++) {
+								values[i] = frames[i][c][x][y];
+							}
+							Arrays.sort(values);
+							median[c][x][y] = values[mFrameCount / 2];
+						}
+					}
+				}
+			}
+		});
+		return new Image(median[0], median[1], median[2]);
+	}
+
+	/**
+	 * Releases the file, the frames already decoded can still be used
+	 */
+	public void close() {
+		if (mReader != null) {
+			synchronized (mReader) {
+				mReader.dispose();
+				FileUtils.closeQuietly(mInput);
+			}
+		}
+	}
+
+	private static int[][][] getChannels(Image image) {
+		return new int[][][] { image.getRedChannel(), image.getGreenChannel(), image.getBlueChannel() };
+	}
+
+	/**
+	 * Splits the columns of the image in a block per worker, and waits until
+	 * all the blocks are done
+	 */
+	private void forEachColumnBlock(final ColumnTask task) throws IOException {
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		int blockWidth = (mWidth + threads - 1) / threads;
+		List<Future<Image>> futures = new ArrayList<Future<Image>>();
+		for (int x = 0; x < mWidth; x += blockWidth) {
+			final int fromX = x;
+			final int toX = Math.min(mWidth, x + blockWidth);
+			futures.add(getWorkers().submit(new Callable<Image>() {
+				@Override
+				public Image call() {
+					task.run(fromX, toX);
+					return null;
+				}
+			}));
+		}
+		for (Future<Image> future : futures) {
+			getResult(future);
+		}
+	}
+
+	private static Image getResult(Future<Image> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static synchronized ExecutorService getWorkers() {
+		if (sWorkers == null) {
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+			sWorkers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("stack"));
+		}
+		return sWorkers;
+	}
+
+	/**
+	 * Draws a frame on a black image of the size of the stack, for the pages
+	 * of a TIFF smaller than the first one
+	 */
+	private BufferedImage placeFrame(BufferedImage frame) {
+		if (frame.getWidth() == mWidth && frame.getHeight() == mHeight) {
+			return frame;
+		}
+		BufferedImage placed = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = placed.createGraphics();
+		try {
+			g.drawImage(frame, 0, 0, null);
+		} finally {
+			g.dispose();
+		}
+		return placed;
+	}
+
+	/**
+	 * Composes the GIF frames up to the index on the canvas, going on from
+	 * the last composed frame, or starting over from the first one for an
+	 * earlier frame. The frames composed on the way are kept too. Called with
+	 * the reader locked
+	 */
+	private Image composeGifFrames(int index) throws IOException {
+		if (mCanvas == null || mCanvasIndex >= index) {
+			mCanvas = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
+			mCanvasIndex = -1;
+			mSavedCanvas = null;
+			mDisposal = null;
+		}
+		Image frame = null;
+		while (mCanvasIndex < index) {
+			frame = composeNextGifFrame();
+			mDecodedFrames.set(mCanvasIndex, new SoftReference<Image>(frame));
+		}
+		return frame;
+	}
+
+	/**
+	 * Disposes the previous frame as it asked, then draws the next one at its
+	 * position, letting its transparent pixels show the canvas
+	 */
+	private Image composeNextGifFrame() throws IOException {
+		int index = mCanvasIndex + 1;
+		BufferedImage frame = mReader.read(index);
+		IIOMetadata metadata = mReader.getImageMetadata(index);
+		int[] position = getGifFramePosition(metadata);
+		Node control = findNode(metadata, GIF_IMAGE_FORMAT, "GraphicControlExtension");
+		String disposal = control != null ? control.getAttributes().getNamedItem("disposalMethod").getNodeValue() : null;
+
+		Graphics2D g = mCanvas.createGraphics();
+		try {
+			if (DISPOSAL_BACKGROUND.equals(mDisposal)) {
+				g.setColor(Color.BLACK);
+				g.fill(mDisposalArea);
+			} else if (DISPOSAL_PREVIOUS.equals(mDisposal) && mSavedCanvas != null) {
+				g.drawImage(mSavedCanvas, 0, 0, null);
+			}
+			if (DISPOSAL_PREVIOUS.equals(disposal)) {
+				mSavedCanvas = copy(mCanvas);
+			}
+			int x = position != null ? position[0] : 0;
+			int y = position != null ? position[1] : 0;
+			g.drawImage(frame, x, y, null);
+			mDisposal = disposal;
+			mDisposalArea = new Rectangle(x, y, frame.getWidth(), frame.getHeight());
+		} finally {
+			g.dispose();
+		}
+		mCanvasIndex = index;
+		// the image copies the pixels, the canvas can go on changing
+		return new Image(mCanvas);
+	}
+
+	private static BufferedImage copy(BufferedImage image) {
+		BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+		image.copyData(copy.getRaster());
+		return copy;
+	}
+
+	/**
+	 * @return the logical screen size of a GIF, or null for the other formats
+	 */
+	private static int[] getGifScreenSize(ImageReader reader) throws IOException {
+		IIOMetadata metadata = reader.getStreamMetadata();
+		Node descriptor = findNode(metadata, "javax_imageio_gif_stream_1.0", "LogicalScreenDescriptor");
+		if (descriptor == null) {
+			return null;
+		}
+		NamedNodeMap attributes = descriptor.getAttributes();
+		int width = Integer.parseInt(attributes.getNamedItem("logicalScreenWidth").getNodeValue());
+		int height = Integer.parseInt(attributes.getNamedItem("logicalScreenHeight").getNodeValue());
+		return width > 0 && height > 0 ? new int[] { width, height } : null;
+	}
+
+	/**
+	 * @return the position of a GIF frame, or null if it isn't given
+	 */
+	private static int[] getGifFramePosition(IIOMetadata metadata) {
+		Node descriptor = findNode(metadata, GIF_IMAGE_FORMAT, "ImageDescriptor");
+		if (descriptor == null) {
+			return null;
+		}
+		NamedNodeMap attributes = descriptor.getAttributes();
+		int left = Integer.parseInt(attributes.getNamedItem("imageLeftPosition").getNodeValue());
+		int top = Integer.parseInt(attributes.getNamedItem("imageTopPosition").getNodeValue());
+		return new int[] { left, top };
+	}
+
+	private static Node findNode(IIOMetadata metadata, String format, String name) {
+		if (metadata == null || !format.equals(metadata.getNativeMetadataFormatName())) {
+			return null;
+		}
+		for (Node node = metadata.getAsTree(format).getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeName().equals(name)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	private interface ColumnTask {
+
+		public void run(int fromX, int toX);
+	}
+}
@@ -1,32 +1,69 @@
 package ar.edu.itba.imageprocess;
 
-import java.awt.image.BufferedImage;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 
-import javax.imageio.ImageIO;
 import javax.swing.JFrame;
+import javax.swing.ProgressMonitor;
+import javax.swing.Timer;
 
+import ar.edu.itba.imageprocess.ParamAsker.Param;
 import ar.edu.itba.imageprocess.utils.ArrayUtils;
-import ar.edu.itba.imageprocess.utils.ExtImageIO;
 import ar.edu.itba.imageprocess.utils.FileUtils;
 import ar.edu.itba.imageprocess.utils.Log;
+import ar.edu.itba.imageprocess.utils.NativeImageIO;
+import ar.edu.itba.imageprocess.utils.RawFormat;
 
 public class MainController {
 
+	private static final String PREVIEW_KEY = "preview";
+	/** the memory budget in MB of the results kept to be reused */
+	public static final String RESULTS_MEMORY_PROPERTY = "imageprocess.results.mb";
+	private static final long DEFAULT_RESULTS_MEMORY = 128;
+
 	private MainFrame mMainFrame;
 	private ImagePane mImagePaneSource;
 	private ImagePane mImagePaneDest;
+	private ImageLoader mImageLoader;
+	private ImageStack mImageStack;
+	private Pipeline mRecording;
+	private OperationExecutor mExecutor;
+	private Timer mProgressTimer;
+	private ImageCache mResults;
+	// the image each cached result was computed from, dropped with the result
+	private Map<Image, ResultSource> mResultSources;
 
 	public MainController() {
+		mImageLoader = new ImageLoader();
+		mExecutor = new OperationExecutor();
+		// soft references, the results can always be computed again
+		mResults = new ImageCache(Long.getLong(RESULTS_MEMORY_PROPERTY, DEFAULT_RESULTS_MEMORY) * 1024 * 1024, true);
+		mResultSources = Collections.synchronizedMap(new WeakHashMap<Image, ResultSource>());
 		mMainFrame = new MainFrame(this);
 		mMainFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		mImagePaneSource = null;
 		mImagePaneDest = null;
+		mRecording = new Pipeline("session");
+		// shows the progress of the operation running in background
+		mProgressTimer = new Timer(100, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				OperationExecutor.Job job = mExecutor.getCurrentJob();
+				mMainFrame.showProgress(job != null ? job.getName() : null, job != null ? job.getPercent() : 0);
+			}
+		});
 	}
 
 	public void start() {
 		mMainFrame.start();
+		mProgressTimer.start();
 	}
 
 	public void repaintMainFrame() {
@@ -59,55 +96,100 @@ public class MainController {
 		}
 	}
 
-	public void loadImage(File file, int width, int height) {
-		if (mImagePaneDest != null) {
-			Log.d("opening " + file.getName());
-			try {
-				String extension = FileUtils.getFileExtension(file);
-				Image image = null;
-				if (extension.equals("raw")) {
-					image = new Image(ExtImageIO.readRawImageChannel(file, width, height));
-				} else if (extension.equals("pgm")) {
-					image = new Image(ExtImageIO.readPgmImageChannel(file));
-				} else if (extension.equals("ppm")) {
-					int[][][] channels = ExtImageIO.readPpmImageChannels(file);
-					image = new Image(channels[0], channels[1], channels[2]);
-				} else {
-					BufferedImage bufferedImage = ImageIO.read(file);
-					if (bufferedImage != null) {
-						image = new Image(bufferedImage);
+	/**
+	 * Loads an image in the destination pane
+	 * 
+	 * @param rawFormat the format of a raw file, if null it is looked up with
+	 *            RawFormats
+	 */
+	public void loadImage(File file, RawFormat rawFormat) {
+		loadImages(Collections.singletonList(file), rawFormat);
+	}
+
+	/**
+	 * Loads images in the destination pane in background threads. The images
+	 * are added to the history of the pane in the order of the files
+	 * 
+	 * @param rawFormat the format used for the raw files whose format can't
+	 *            be found by RawFormats, can be null
+	 */
+	public void loadImages(List<File> files, RawFormat rawFormat) {
+		if (mImagePaneDest != null && !files.isEmpty()) {
+			Log.d("opening " + files.size() + " file(s)");
+			LoadMonitor monitor = new LoadMonitor(mImagePaneDest, files.size());
+			// big images are shown as previews, decoded at the pane size
+			monitor.start(mImageLoader.load(files, rawFormat, ImageProcess.IMG_DIMENSION, monitor));
+		}
+	}
+
+	public void saveImage(final File file, final int rangePolicy) {
+		if (mImagePaneSource != null && mImagePaneSource.getImage() != null) {
+			Log.d("saving " + file.getName());
+			final Image source = mImagePaneSource.getImage();
+			// the pane can show a preview, the file is decoded again
+			submitSave(file, new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					Image image = getFullImage(source);
+					if (!ImageLoader.encode(image, file, rangePolicy)) {
+						throw new IOException("unsupported format " + FileUtils.getFileExtension(file));
 					}
+					return image;
 				}
-				if (image != null) {
-					mImagePaneDest.setImageWithHistory(image);
-					repaintMainFrame();
-				} else {
-					Log.d("couldn't load image " + file.getName());
-				}
-			} catch (IOException e) {
-				Log.d("couldn't open file! " + e);
-			} catch (Exception e) {
-				Log.d("unknown error! " + e);
-			}
+			});
 		}
 	}
 
-	public void saveImage(File file) {
+	/**
+	 * Saves the channels as they are, including the values outside of [0,
+	 * 255], so the image can be loaded back later to go on processing it
+	 *
+	 * @param compression one of the NativeImageIO COMPRESSION_ constants
+	 */
+	public void saveNativeImage(final File file, final int compression) {
 		if (mImagePaneSource != null && mImagePaneSource.getImage() != null) {
 			Log.d("saving " + file.getName());
-			String extension = FileUtils.getFileExtension(file);
-			try {
-				if (extension.matches("gif|png|jpe?g")) {
-					ImageIO.write(mImagePaneSource.getImage().getBufferedImage(), extension, file);
-				} else if (extension.matches("raw|pgm|ppm")) {
-					ExtImageIO.write(mImagePaneSource.getImage().getBufferedImage(), file);
-				} else {
-					Log.d("unsupported format " + extension);
+			final Image source = mImagePaneSource.getImage();
+			submitSave(file, new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					Image image = getFullImage(source);
+					int[][][] channels = new int[][][] { image.getRedChannel(), image.getGreenChannel(), image.getBlueChannel() };
+					NativeImageIO.write(channels, file, compression);
+					return image;
 				}
-			} catch (IOException e) {
+			});
+		}
+	}
+
+	/**
+	 * Runs a save in background, only replacing a save of the same file
+	 */
+	private void submitSave(final File file, Callable<Image> work) {
+		final String name = "save " + file.getName();
+		mMainFrame.setStatus(name + " queued");
+		mExecutor.submit("save " + file.getAbsolutePath(), name, work, new OperationExecutor.Callback() {
+			@Override
+			public void onDone(Image image) {
+				mMainFrame.setStatus(name + " done");
+			}
+
+			@Override
+			public void onPartialResult(Image image) {
+			}
+
+			@Override
+			public void onFailed(Throwable e) {
 				Log.d("couldn't save file! " + e);
+				mMainFrame.setStatus(e instanceof OutOfMemoryError ? name + " failed, not enough memory" : name + " failed: " + e.getMessage());
 			}
-		}
+
+			@Override
+			public void onCancelled(boolean timedOut) {
+				Log.d(name + (timedOut ? " timed out" : " cancelled"));
+				mMainFrame.setStatus(name + (timedOut ? " timed out" : " cancelled"));
+			}
+		});
 	}
 
 	public void generateWhiteImage() {
@@ -148,56 +230,68 @@ public class MainController {
 	public void addImages() {
 		ImagePane[] imagePanes = mMainFrame.getImagePanes();
 		if (mImagePaneDest != null && imagePanes[0].getImage() != null && imagePanes[1].getImage() != null) {
-			Image image = Filters.addImages(imagePanes[0].getImage(), imagePanes[1].getImage());
-			if (image != null) {
-				mImagePaneDest.setImageWithHistory(image);
-			}
+			final Image first = imagePanes[0].getImage();
+			final Image second = imagePanes[1].getImage();
+			// the panes can show previews, decoding the files takes a while
+			submit("add", new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					return checkResult(Filters.addImages(getFullImage(first), getFullImage(second)));
+				}
+			}, new PaneCallback(mImagePaneDest, "add"));
 		}
 	}
 
 	public void subtractImages() {
 		ImagePane[] imagePanes = mMainFrame.getImagePanes();
 		if (mImagePaneDest != null && imagePanes[0].getImage() != null && imagePanes[1].getImage() != null) {
-			Image image = Filters.subtractImages(imagePanes[0].getImage(), imagePanes[1].getImage());
-			if (image != null) {
-				mImagePaneDest.setImageWithHistory(image);
-			}
+			final Image first = imagePanes[0].getImage();
+			final Image second = imagePanes[1].getImage();
+			submit("subtract", new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					return checkResult(Filters.subtractImages(getFullImage(first), getFullImage(second)));
+				}
+			}, new PaneCallback(mImagePaneDest, "subtract"));
 		}
 	}
 
-	public void multiplyScalar(double scalar) {
-		if (mImagePaneDest != null) {
-			Image image = Filters.multiplyScalar(mImagePaneSource.getImage(), scalar);
-			mImagePaneDest.setImageWithHistory(image);
+	/**
+	 * @throws IllegalArgumentException if the images couldn't be combined
+	 */
+	private static Image checkResult(Image image) {
+		if (image == null) {
+			throw new IllegalArgumentException("the images must be the same size");
 		}
+		return image;
+	}
+
+	public void multiplyScalar(double scalar) {
+		applyOperation("multiply", "scalar=" + scalar);
 	}
 
 	public void compressLinear() {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.compressLinear(mImagePaneSource.getImage());
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("compress-linear");
 	}
 
 	public void compress() {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.compress(mImagePaneSource.getImage());
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("compress");
 	}
 
 	public void desaturate() {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = new Image(mImagePaneSource.getImage().getGrayChannel());
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("desaturate");
 	}
 
 	public void displayHistogram() {
 		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			int[] values = ArrayUtils.intArray2Dto1D(mImagePaneSource.getImage().getGrayChannel());
-			Image image = Filters.generateHistogramImage(values);
-			mImagePaneDest.setImageWithHistory(image);
+			final Image source = mImagePaneSource.getImage();
+			submit("histogram", new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					int[] values = ArrayUtils.intArray2Dto1D(getFullImage(source).getGrayChannel());
+					return Filters.generateHistogramImage(values);
+				}
+			}, new PaneCallback(mImagePaneDest, "histogram"));
 		}
 	}
 
@@ -205,27 +299,18 @@ public class MainController {
 	 * TP1-2 Creates a negative of the image.
 	 */
 	public void filterNegative() {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.filterNegative(mImagePaneSource.getImage());
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("negative");
 	}
 
 	/**
 	 * TP1-5 Creates a threshold version of the image.
 	 */
 	public void filterThreshold(int threshold) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.filterThreshold(mImagePaneSource.getImage(), threshold);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("threshold", "threshold=" + threshold);
 	}
 
 	public void filterContrast(int r1, int r2, int s1, int s2) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.filterContrast(mImagePaneSource.getImage(), r1, r2, s1, s2);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("contrast", "r1=" + r1, "r2=" + r2, "s1=" + s1, "s2=" + s2);
 	}
 
 	/**
@@ -234,10 +319,7 @@ public class MainController {
 	 * http://www.mee.tcd.ie/~ack/teaching/1e8/histogram_equalisation_slides.pdf
 	 */
 	public void filterEqualize() {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.filterEqualize(mImagePaneSource.getImage());
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("equalize");
 	}
 
 	/**
@@ -245,10 +327,7 @@ public class MainController {
 	 */
 
 	public void applyAddGaussianNoise(double spread, double average, double percentage) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.applyAddGaussianNoise(mImagePaneSource.getImage(), spread, average, percentage);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("gaussian-noise", "spread=" + spread, "average=" + average, "percentage=" + percentage);
 	}
 
 	/**
@@ -256,20 +335,14 @@ public class MainController {
 	 */
 
 	public void applyMulRayleighNoise(double p, double percentage) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.applyMulRayleighNoise(mImagePaneSource.getImage(), p, percentage);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("rayleigh-noise", "p=" + p, "percentage=" + percentage);
 	}
 
 	/**
 	 * Adds exponential noise to an image
 	 */
 	public void applyMulExponentialNoise(double p, double percentage) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.applyMulExponentialNoise(mImagePaneSource.getImage(), p, percentage);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("exponential-noise", "p=" + p, "percentage=" + percentage);
 	}
 
 	public void displayGaussianChart(double spread, double average) {
@@ -294,51 +367,570 @@ public class MainController {
 	}
 
 	public void applyPepperAndSalt(double p0, double p1) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.applyPepperAndSalt(mImagePaneSource.getImage(), p0, p1);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("salt-pepper", "p0=" + p0, "p1=" + p1);
 	}
 
 	public void applyFactorMaskFilter(int maskWidth, int maskHeight, int filterType) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.applyFactorMaskFilter(mImagePaneSource.getImage(), maskWidth, maskHeight, filterType);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		String name = filterType == Filters.MASK_FILTER_AVERAGE ? "average-mask" : "high-pass-mask";
+		applyOperation(name, "width=" + maskWidth, "height=" + maskHeight);
 	}
 
 	public void applyGaussianMaskFilter(int maskWidth, int maskHeight, double spread) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.applyGaussianMaskFilter(mImagePaneSource.getImage(), maskWidth, maskHeight, spread);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("gaussian-mask", "width=" + maskWidth, "height=" + maskHeight, "spread=" + spread);
 	}
 
 	public void applyMedianMaskFilter(int maskWidth, int maskHeight) {
-		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.applyMedianMaskFilter(mImagePaneSource.getImage(), maskWidth, maskHeight);
-			mImagePaneDest.setImageWithHistory(image);
-		}
+		applyOperation("median-mask", "width=" + maskWidth, "height=" + maskHeight);
 	}
 
 	public void robertsBordersDetection() {
+		applyOperation("roberts");
+	}
+
+	public void prewittBordersDetection() {
+		applyOperation("prewitt");
+	}
+
+	public void sobelBordersDetection() {
+		applyOperation("sobel");
+	}
+
+	/**
+	 * Runs one of the Operations by name, asking its params first if it has
+	 * any, for example the plugins
+	 */
+	public void runOperation(String name) {
+		if (Operations.get(name).getParams().getParams().isEmpty()) {
+			applyOperation(name);
+		} else {
+			tuneOperation(name);
+		}
+	}
+
+	/**
+	 * Applies one of the Operations to the source image and records it in
+	 * the session pipeline
+	 * 
+	 * @param values the params of the operation, as "name=value"
+	 */
+	private void applyOperation(String name, String... values) {
+		ImageOperation operation = Operations.get(name);
+		ParamAsker params = operation.getParams();
+		for (String value : values) {
+			int equals = value.indexOf('=');
+			String error = params.setValue(value.substring(0, equals), value.substring(equals + 1));
+			if (error.length() > 0) {
+				reportInvalidParams(name, error);
+				return;
+			}
+		}
+		String error = params.setDefaultValues();
+		if (error.length() > 0) {
+			reportInvalidParams(name, error);
+			return;
+		}
+		applyOperation(operation, params);
+	}
+
+	private void reportInvalidParams(String name, String error) {
+		Log.d("couldn't apply " + name + "! " + error);
+		mMainFrame.setStatus(name + " failed: " + error);
+	}
+
+	private void applyOperation(final ImageOperation operation, final ParamAsker params) {
 		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.robertsBorderDetection(mImagePaneSource.getImage());
-			mImagePaneDest.setImageWithHistory(image);
+			String name = operation.getName();
+			final Image source = mImagePaneSource.getImage();
+			final int kind = operation.getKind(params);
+			// the history of the pane can compute the result again if it
+			// comes from its current image
+			final boolean replayable = source == mImagePaneDest.getImage() && operation.isDeterministic();
+			// random operations must give a new result each time
+			final String resultKey = operation.isDeterministic() ? name + " " + params : null;
+			final PaneCallback callback = new PaneCallback(mImagePaneDest, name) {
+				@Override
+				public void onDone(Image image) {
+					super.onDone(image);
+					mRecording.add(operation, params);
+				}
+			};
+			submit(name, new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					return applyProgressively(operation.bind(params), resultKey, source, kind, replayable ? callback : null);
+				}
+			}, callback);
 		}
 	}
 
-	public void prewittBordersDetection() {
+	/**
+	 * Applies the function to the full image. If the image is bigger than the
+	 * pane, the function is first applied to reduced versions of it, from
+	 * the coarsest to the finest, and their results are shown while the full
+	 * image is processed. The operations work in pixels, so these results are
+	 * only approximations: a mask covers more of the image on a reduced one
+	 *
+	 * @param resultKey identifies the function and its params, to reuse the
+	 *            result if the function was applied to the same image before,
+	 *            null if the result must always be computed
+	 * @param source the image of the pane, can be a preview of a file
+	 * @param kind one of the ImageOperation KIND_ constants. Point functions
+	 *            are as fast on the full image as on a reduced one, and the
+	 *            history never needs to keep their results
+	 * @param replayCallback if not null, it's given the step to compute the
+	 *            result again out of the source, for the history
+	 */
+	private Image applyProgressively(final ImageFunction function, String resultKey, Image source, int kind, PaneCallback replayCallback) {
+		boolean progressive = kind != ImageOperation.KIND_POINT;
+		if (progressive && source.isPreview()) {
+			// the preview shown in the pane is already a reduced image, and
+			// can be processed before the full image is even decoded
+			OperationExecutor.publishPartialResult(function.apply(source));
+		}
+		Image image = getFullImage(source);
+		if (resultKey != null) {
+			// the same content gives the same result, whatever pane it's in
+			resultKey = Long.toHexString(image.getContentHash()) + " " + resultKey;
+			Image result = mResults.get(resultKey);
+			if (result != null && !isResultOf(result, image)) {
+				// another content with the same hash
+				result = null;
+			}
+			int[] stats = mResults.getStats();
+			Log.d("results " + (result != null ? "hit" : "miss") + ", " + stats[0] + " hits " + stats[1] + " misses");
+			if (result != null) {
+				// no step, a history replaying it would think it's free
+				return result;
+			}
+		}
+		if (progressive && !source.isPreview()) {
+			ImagePyramid pyramid = image.getPyramid();
+			int fitting = pyramid.getLevelFitting(ImageProcess.IMG_DIMENSION.width, ImageProcess.IMG_DIMENSION.height);
+			for (int level = Math.min(fitting + 1, pyramid.getLevelCount() - 1); level >= fitting && level > 0; level--) {
+				OperationExecutor.publishPartialResult(function.apply(pyramid.getLevel(level)));
+			}
+		}
+		long start = System.currentTimeMillis();
+		Image result = function.apply(image);
+		if (replayCallback != null) {
+			ImageFunction replay = new ImageFunction() {
+				@Override
+				public Image apply(Image image) {
+					return function.apply(getFullImage(image));
+				}
+			};
+			replayCallback.mStep = new History.Step(replay, System.currentTimeMillis() - start, kind == ImageOperation.KIND_POINT);
+		}
+		if (resultKey != null) {
+			mResults.put(resultKey, result);
+			if (result != image) {
+				mResultSources.put(result, new ResultSource(image));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Confirms a cached result found by the content hash, the hashes can
+	 * collide
+	 */
+	private boolean isResultOf(Image result, Image image) {
+		if (result == image) {
+			return true;
+		}
+		ResultSource source = mResultSources.get(result);
+		return source != null && source.mImage.getModifications() == source.mModifications && source.mImage.hasSameContent(image);
+	}
+
+	/**
+	 * Asks the params of one of the Operations in a dialog, showing in the
+	 * destination pane a preview of the result while they are edited. The
+	 * preview is computed only on the part of the source image visible in
+	 * the pane, which is a reduced version of big files, and is replaced as
+	 * soon as the values change. The full image is processed once the user
+	 * confirms the values
+	 */
+	public void tuneOperation(String name) {
 		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.prewittBorderDetection(mImagePaneSource.getImage());
-			mImagePaneDest.setImageWithHistory(image);
+			final ImageOperation operation = Operations.get(name);
+			final ImagePane dest = mImagePaneDest;
+			final Image source = mImagePaneSource.getImage();
+			Image previous = dest.getCommittedImage();
+			ParamAsker params = operation.getParams();
+			ParamDialog dialog = new ParamDialog(mMainFrame, name, params, new ParamDialog.Listener() {
+				@Override
+				public void onParamsChanged(ParamAsker params) {
+					previewOperation(operation, copyParams(operation, params), source, dest);
+				}
+			});
+			boolean confirmed = dialog.ask();
+			mExecutor.cancel(PREVIEW_KEY);
+			dest.setImage(previous);
+			if (confirmed) {
+				applyOperation(operation, params);
+			}
 		}
 	}
 
-	public void sobelBordersDetection() {
+	/**
+	 * Applies the operation to the visible part of the image, with the halo
+	 * of pixels around it the operation needs, so the preview is the same as
+	 * the part of the full result the pane will show
+	 */
+	private void previewOperation(final ImageOperation operation, final ParamAsker params, final Image source, final ImagePane dest) {
+		mExecutor.submit(PREVIEW_KEY, "preview", new Callable<Image>() {
+			@Override
+			public Image call() throws Exception {
+				if (operation.getKind(params) == ImageOperation.KIND_GLOBAL) {
+					return operation.apply(source, params);
+				}
+				int halo = operation.getHalo(params);
+				// the pane centers the image
+				int width = Math.min(source.getWidth(), ImageProcess.IMG_DIMENSION.width);
+				int height = Math.min(source.getHeight(), ImageProcess.IMG_DIMENSION.height);
+				int x = (source.getWidth() - width) / 2;
+				int y = (source.getHeight() - height) / 2;
+				Image region = source.getRegion(x - halo, y - halo, width + 2 * halo, height + 2 * halo);
+				Image result = operation.apply(region, params);
+				return halo > 0 ? result.getRegion(halo, halo, width, height) : result;
+			}
+		}, new OperationExecutor.Callback() {
+			@Override
+			public void onDone(Image image) {
+				dest.setImage(image);
+			}
+
+			@Override
+			public void onPartialResult(Image image) {
+			}
+
+			@Override
+			public void onFailed(Throwable e) {
+				Log.d("couldn't preview " + operation.getName() + "! " + e);
+			}
+
+			@Override
+			public void onCancelled(boolean timedOut) {
+				// replaced by a newer preview
+			}
+		});
+	}
+
+	/**
+	 * @return a copy of the params, so the dialog can go on changing them
+	 *         while an operation uses the copy
+	 */
+	private static ParamAsker copyParams(ImageOperation operation, ParamAsker params) {
+		ParamAsker copy = operation.getParams();
+		for (Param param : params.getParams()) {
+			copy.setValue(param.getName(), param.getValue());
+		}
+		return copy;
+	}
+
+	/**
+	 * Moves the history of the pane in background, since the image may have
+	 * to be decoded or computed again, replacing the operation running for
+	 * the pane
+	 */
+	public void moveHistory(final ImagePane imagePane, final int index) {
+		submit("history", new Callable<Image>() {
+			@Override
+			public Image call() throws Exception {
+				return imagePane.moveHistoryTo(index);
+			}
+		}, new PaneCallback(imagePane, "history") {
+			@Override
+			public void onDone(Image image) {
+				imagePane.showHistoryImage(image);
+				mMainFrame.setStatus("history done");
+				repaintMainFrame();
+			}
+		});
+	}
+
+	/**
+	 * Stops the operations running in background and the queued ones
+	 */
+	public void cancelOperations() {
+		mExecutor.cancelAll();
+	}
+
+	/**
+	 * Runs the work in background, replacing the work for the same
+	 * destination pane that hasn't finished yet
+	 */
+	private void submit(String name, Callable<Image> work, PaneCallback callback) {
+		mMainFrame.setStatus(name + " queued");
+		mExecutor.submit("pane" + callback.mImagePane.getIndex(), name, work, callback);
+	}
+
+	/**
+	 * @return the number of operations recorded since the session started or
+	 *         the recording was cleared
+	 */
+	public int getRecordingSize() {
+		return mRecording.size();
+	}
+
+	public void clearRecording() {
+		mRecording.clear();
+	}
+
+	/**
+	 * Saves the operations recorded so far as a pipeline file, which can be
+	 * edited and run on other images, also from the command line
+	 */
+	public void saveRecording(File file) {
+		try {
+			mRecording.write(file);
+			Log.d("saved " + mRecording.size() + " operation(s) to " + file.getName());
+		} catch (IOException e) {
+			Log.d("couldn't save pipeline! " + e);
+		}
+	}
+
+	/**
+	 * Runs a pipeline file on the source image
+	 */
+	public void runPipeline(File file) {
 		if (mImagePaneDest != null && mImagePaneSource != null && mImagePaneSource.getImage() != null) {
-			Image image = Filters.sobelBorderDetection(mImagePaneSource.getImage());
-			mImagePaneDest.setImageWithHistory(image);
+			try {
+				final Pipeline pipeline = Pipeline.read(file);
+				final Image source = mImagePaneSource.getImage();
+				final boolean replayable = source == mImagePaneDest.getImage() && pipeline.isDeterministic();
+				final String resultKey = pipeline.isDeterministic() ? pipeline.toString() : null;
+				final PaneCallback callback = new PaneCallback(mImagePaneDest, pipeline.getName());
+				submit(pipeline.getName(), new Callable<Image>() {
+					@Override
+					public Image call() throws Exception {
+						return applyProgressively(pipeline.toFunction(), resultKey, source, pipeline.getKind(), replayable ? callback : null);
+					}
+				}, callback);
+			} catch (IOException e) {
+				Log.d("couldn't run pipeline! " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return the full resolution image, decoded now if the image is a
+	 *         preview, so it must only be called from background jobs. The
+	 *         preview itself is used if the file can't be decoded anymore
+	 */
+	private Image getFullImage(Image image) {
+		if (image == null) {
+			return null;
+		}
+		try {
+			return mImageLoader.loadFullImage(image);
+		} catch (IOException e) {
+			Log.d("couldn't decode full image, using the preview " + e);
+			return image;
+		}
+	}
+
+	/**
+	 * Opens a file with several frames, such as a multi-page TIFF or an
+	 * animated GIF, and shows its first frame in the destination pane
+	 */
+	public void loadStack(File file) {
+		try {
+			ImageStack stack = ImageStack.open(file);
+			if (mImageStack != null) {
+				mImageStack.close();
+			}
+			mImageStack = stack;
+			Log.d("opened " + file.getName() + " with " + stack.getFrameCount() + " frames");
+			showStackFrame(0);
+		} catch (IOException e) {
+			Log.d("couldn't open stack! " + e);
+		}
+	}
+
+	public int getStackFrameCount() {
+		return mImageStack != null ? mImageStack.getFrameCount() : 0;
+	}
+
+	public void showStackFrame(int index) {
+		if (mImagePaneDest != null && mImageStack != null && index < mImageStack.getFrameCount()) {
+			try {
+				mImagePaneDest.setImageWithHistory(mImageStack.getFrame(index));
+			} catch (IOException e) {
+				Log.d("couldn't read frame " + index + "! " + e);
+			}
+		}
+	}
+
+	/**
+	 * @param projection one of the ImageStack PROJECTION_ constants
+	 */
+	public void projectStack(final int projection) {
+		if (mImagePaneDest != null && mImageStack != null) {
+			final ImageStack stack = mImageStack;
+			submit("projection", new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					return stack.project(projection);
+				}
+			}, new PaneCallback(mImagePaneDest, "projection"));
+		}
+	}
+
+	/**
+	 * Replaces the stack with the result of applying the function to all its
+	 * frames
+	 */
+	public void mapStack(final ImageFunction function) {
+		if (mImagePaneDest != null && mImageStack != null) {
+			final ImageStack stack = mImageStack;
+			final ImageStack[] result = new ImageStack[1];
+			submit("stack", new Callable<Image>() {
+				@Override
+				public Image call() throws Exception {
+					result[0] = stack.map(function);
+					return result[0].getFrame(0);
+				}
+			}, new PaneCallback(mImagePaneDest, "stack") {
+				@Override
+				public void onDone(Image image) {
+					// the stack may have been replaced meanwhile
+					if (mImageStack == stack) {
+						mImageStack.close();
+						mImageStack = result[0];
+					}
+					super.onDone(image);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Puts the result of a background operation in a pane, and shows in the
+	 * status bar how the operation ended
+	 */
+	private class PaneCallback implements OperationExecutor.Callback {
+
+		private ImagePane mImagePane;
+		private String mName;
+		private Image mPrevious;
+		private int mPreviousHistoryIndex;
+		private boolean mShowingPartialResult;
+		/** how to compute the result again, set by the job if it can be */
+		private volatile History.Step mStep;
+
+		public PaneCallback(ImagePane imagePane, String name) {
+			mImagePane = imagePane;
+			mName = name;
+			// the pane can be showing the partial result of another job
+			mPrevious = imagePane.getCommittedImage();
+			mPreviousHistoryIndex = imagePane.getHistoryIndex();
+			mShowingPartialResult = false;
+			mStep = null;
+		}
+
+		@Override
+		public void onDone(Image image) {
+			// the step only applies if the history is still where it was
+			boolean moved = mImagePane.getHistoryIndex() != mPreviousHistoryIndex;
+			mImagePane.setImageWithHistory(image, moved ? null : mStep);
+			mMainFrame.setStatus(mName + " done");
+			repaintMainFrame();
+		}
+
+		/**
+		 * Shows the approximation without adding it to the history of the
+		 * pane
+		 */
+		@Override
+		public void onPartialResult(Image image) {
+			mImagePane.setImage(image);
+			mShowingPartialResult = true;
+		}
+
+		@Override
+		public void onFailed(Throwable e) {
+			Log.d("couldn't apply " + mName + "! " + e);
+			restorePrevious();
+			mMainFrame.setStatus(e instanceof OutOfMemoryError ? mName + " failed, not enough memory" : mName + " failed: " + e.getMessage());
+		}
+
+		@Override
+		public void onCancelled(boolean timedOut) {
+			restorePrevious();
+			Log.d(mName + (timedOut ? " timed out" : " cancelled"));
+			mMainFrame.setStatus(mName + (timedOut ? " timed out" : " cancelled"));
+		}
+
+		private void restorePrevious() {
+			if (mShowingPartialResult) {
+				mImagePane.setImage(mPrevious);
+				mShowingPartialResult = false;
+			}
+		}
+	}
+
+	/**
+	 * Shows the progress of a load, lets the user cancel it and puts the
+	 * loaded images in the pane
+	 */
+	private class LoadMonitor implements ImageLoader.Callback, ActionListener {
+
+		private ImagePane mImagePane;
+		private ProgressMonitor mProgressMonitor;
+		private Timer mTimer;
+		private ImageLoader.Task mTask;
+
+		public LoadMonitor(ImagePane imagePane, int files) {
+			mImagePane = imagePane;
+			mProgressMonitor = new ProgressMonitor(mMainFrame, "Loading " + files + " image(s)", null, 0, 100);
+			mTimer = new Timer(100, this);
+		}
+
+		public void start(ImageLoader.Task task) {
+			mTask = task;
+			mTimer.start();
+		}
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			if (mProgressMonitor.isCanceled()) {
+				mTask.cancel();
+			} else {
+				mProgressMonitor.setProgress(mTask.getPercent());
+			}
+		}
+
+		@Override
+		public void onImageLoaded(File file, Image image) {
+			mImagePane.setImageWithHistory(image);
+			repaintMainFrame();
+		}
+
+		@Override
+		public void onLoadFailed(File file, Exception e) {
+			Log.d("couldn't load image " + file.getName() + " " + e);
+		}
+
+		@Override
+		public void onFinished(boolean cancelled) {
+			if (cancelled) {
+				Log.d("loading cancelled");
+			}
+			mTimer.stop();
+			mProgressMonitor.close();
+		}
+	}
+
+	private static class ResultSource {
+
+		private Image mImage;
+		private int mModifications;
+
+		public ResultSource(Image image) {
+			mImage = image;
+			// drawn again afterwards, it's not the source anymore
+			mModifications = image.getModifications();
 		}
 	}
 }
@@ -5,9 +5,14 @@ import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
+import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.border.EmptyBorder;
 
 @SuppressWarnings("serial")
@@ -17,6 +22,9 @@ public class MainFrame extends JFrame {
 	private JPanel mMainPanel;
 	private ImagePane mImagePane1;
 	private ImagePane mImagePane2;
+	private JLabel mStatusLabel;
+	private JProgressBar mProgressBar;
+	private JButton mCancelButton;
 
 	public MainFrame(MainController controller) {
 		super(ImageProcess.APPLICATION_NAME);
@@ -57,6 +65,35 @@ public class MainFrame extends JFrame {
 		c.weighty = 1;
 		mMainPanel.add(mImagePane2, c);
 
+		// the operation running in background, if any
+		mStatusLabel = new JLabel(" ");
+		c = new GridBagConstraints();
+		c.gridx = 0;
+		c.gridy = 2;
+		c.anchor = GridBagConstraints.WEST;
+		c.insets = new Insets(16, 0, 0, 16);
+		mMainPanel.add(mStatusLabel, c);
+
+		JPanel progressPanel = new JPanel();
+		mProgressBar = new JProgressBar(0, 100);
+		mProgressBar.setStringPainted(true);
+		progressPanel.add(mProgressBar);
+		mCancelButton = new JButton("Cancel");
+		mCancelButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				mController.cancelOperations();
+			}
+		});
+		progressPanel.add(mCancelButton);
+		c = new GridBagConstraints();
+		c.gridx = 1;
+		c.gridy = 2;
+		c.anchor = GridBagConstraints.EAST;
+		c.insets = new Insets(16, 0, 0, 0);
+		mMainPanel.add(progressPanel, c);
+		showProgress(null, 0);
+
 		getContentPane().add(mMainPanel);
 		pack();
 		setResizable(false);
@@ -70,6 +107,28 @@ public class MainFrame extends JFrame {
 		setVisible(true);
 	}
 
+	/**
+	 * Shows the progress of the operation running in background
+	 *
+	 * @param name the name of the operation, or null if none is running
+	 */
+	public void showProgress(String name, int percent) {
+		// the bar stays in place so the frame layout doesn't change
+		mProgressBar.setEnabled(name != null);
+		mProgressBar.setValue(name != null ? percent : 0);
+		mCancelButton.setEnabled(name != null);
+		if (name != null) {
+			mStatusLabel.setText(name + "...");
+		}
+	}
+
+	/**
+	 * Shows a message in the status bar, for example why an operation failed
+	 */
+	public void setStatus(String status) {
+		mStatusLabel.setText(status);
+	}
+
 	public ImagePane[] getImagePanes() {
 		return new ImagePane[] { mImagePane1, mImagePane2 };
 	}
@@ -6,7 +6,8 @@ import java.awt.GridBagLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
@@ -17,20 +18,17 @@ import ar.edu.itba.imageprocess.ParamAsker.Param;
 import ar.edu.itba.imageprocess.utils.FileUtils;
 import ar.edu.itba.imageprocess.utils.ImageFilter;
 import ar.edu.itba.imageprocess.utils.Log;
+import ar.edu.itba.imageprocess.utils.NativeImageIO;
+import ar.edu.itba.imageprocess.utils.PixmapWriter;
+import ar.edu.itba.imageprocess.utils.RawFormat;
+import ar.edu.itba.imageprocess.utils.RawFormats;
 
 @SuppressWarnings("serial")
 public class MenuPane extends JPanel implements ActionListener {
 
-	private static final int[] DEFAULT_GIRL = new int[] { 389, 164 };
-	private static final int[] DEFAULT_GIRL2 = new int[] { 256, 256 };
-	private static final int[] DEFAULT_BARCO = new int[] { 290, 207 };
-	private static final int[] DEFAULT_LENA = new int[] { 256, 256 };
-	private static final int[] DEFAULT_LENAX = new int[] { 256, 256 };
-	private static final int[] DEFAULT_FRACTAL = new int[] { 200, 200 };
-
 	private MainController mController;
 	private JFileChooser mFileChooser;
-	private HashMap<String, int[]> mDefaultDimensions;
+	private JFileChooser mPipelineChooser;
 
 	// file menu
 	private JButton mLoadBtn;
@@ -71,6 +69,19 @@ public class MenuPane extends JPanel implements ActionListener {
 	private JButton mPrewittBorders;
 	private JButton mSobelBorders;
 
+	// stack menu
+	private JButton mLoadStackBtn;
+	private JButton mStackFrameBtn;
+	private JButton mStackMeanBtn;
+	private JButton mStackMedianBtn;
+	private JButton mStackMaxBtn;
+	private JButton mStackEqualizeBtn;
+
+	// pipeline menu
+	private JButton mSavePipelineBtn;
+	private JButton mClearPipelineBtn;
+	private JButton mRunPipelineBtn;
+
 	// test menu
 	private JButton mGaussianTest;
 	private JButton mRayleighTest;
@@ -84,14 +95,7 @@ public class MenuPane extends JPanel implements ActionListener {
 
 		mFileChooser = new JFileChooser(ImageProcess.IMG_PATH);
 		mFileChooser.setFileFilter(new ImageFilter());
-
-		mDefaultDimensions = new HashMap<String, int[]>();
-		mDefaultDimensions.put("girl.raw", DEFAULT_GIRL);
-		mDefaultDimensions.put("girl2.raw", DEFAULT_GIRL2);
-		mDefaultDimensions.put("barco.raw", DEFAULT_BARCO);
-		mDefaultDimensions.put("lena.raw", DEFAULT_LENA);
-		mDefaultDimensions.put("lenax.raw", DEFAULT_LENAX);
-		mDefaultDimensions.put("fractal.raw", DEFAULT_FRACTAL);
+		mPipelineChooser = new JFileChooser();
 
 		JTabbedPane tabbedPane = new JTabbedPane();
 		c = new GridBagConstraints();
@@ -240,7 +244,53 @@ public class MenuPane extends JPanel implements ActionListener {
 		mSobelBorders.addActionListener(this);
 		menuBorders.add(mSobelBorders);
 
-		// noise and mask menu
+		// stack menu
+
+		JPanel menuStack = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		tabbedPane.addTab("Stack", menuStack);
+
+		mLoadStackBtn = new JButton("Load stack");
+		mLoadStackBtn.addActionListener(this);
+		menuStack.add(mLoadStackBtn);
+
+		mStackFrameBtn = new JButton("Frame");
+		mStackFrameBtn.addActionListener(this);
+		menuStack.add(mStackFrameBtn);
+
+		mStackMeanBtn = new JButton("Mean");
+		mStackMeanBtn.addActionListener(this);
+		menuStack.add(mStackMeanBtn);
+
+		mStackMedianBtn = new JButton("Median");
+		mStackMedianBtn.addActionListener(this);
+		menuStack.add(mStackMedianBtn);
+
+		mStackMaxBtn = new JButton("Max");
+		mStackMaxBtn.addActionListener(this);
+		menuStack.add(mStackMaxBtn);
+
+		mStackEqualizeBtn = new JButton("Equalize frames");
+		mStackEqualizeBtn.addActionListener(this);
+		menuStack.add(mStackEqualizeBtn);
+
+		// pipeline menu
+
+		JPanel menuPipeline = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		tabbedPane.addTab("Pipeline", menuPipeline);
+
+		mSavePipelineBtn = new JButton("Save recorded");
+		mSavePipelineBtn.addActionListener(this);
+		menuPipeline.add(mSavePipelineBtn);
+
+		mClearPipelineBtn = new JButton("Clear recorded");
+		mClearPipelineBtn.addActionListener(this);
+		menuPipeline.add(mClearPipelineBtn);
+
+		mRunPipelineBtn = new JButton("Run pipeline");
+		mRunPipelineBtn.addActionListener(this);
+		menuPipeline.add(mRunPipelineBtn);
+
+		// test menu
 
 		JPanel menuTest = new JPanel(new FlowLayout(FlowLayout.LEFT));
 		tabbedPane.addTab("Tests", menuTest);
@@ -256,6 +306,26 @@ public class MenuPane extends JPanel implements ActionListener {
 		mExponentialTest = new JButton("Exponential test");
 		mExponentialTest.addActionListener(this);
 		menuTest.add(mExponentialTest);
+
+		// plugins menu, only if there are some
+
+		List<ImageOperation> plugins = Operations.getPlugins();
+		if (!plugins.isEmpty()) {
+			JPanel menuPlugins = new JPanel(new FlowLayout(FlowLayout.LEFT));
+			tabbedPane.addTab("Plugins", menuPlugins);
+			for (ImageOperation plugin : plugins) {
+				final String name = plugin.getName();
+				JButton button = new JButton(name);
+				button.setToolTipText(plugin.getDescription());
+				button.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						mController.runOperation(name);
+					}
+				});
+				menuPlugins.add(button);
+			}
+		}
 	}
 
 	@Override
@@ -279,11 +349,7 @@ public class MenuPane extends JPanel implements ActionListener {
 		} else if (e.getSource() == mSubtractImages) {
 			mController.subtractImages();
 		} else if (e.getSource() == mMultiplyScalar) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_DOUBLE, "scalar", "1.5"));
-			if (params.ask()) {
-				mController.multiplyScalar(params.getDouble("scalar"));
-			}
+			mController.tuneOperation("multiply");
 		} else if (e.getSource() == mLinearCompression) {
 			mController.compressLinear();
 		} else if (e.getSource() == mCompression) {
@@ -291,84 +357,31 @@ public class MenuPane extends JPanel implements ActionListener {
 		} else if (e.getSource() == mFilterNegative) {
 			mController.filterNegative();
 		} else if (e.getSource() == mFilterThreshold) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_INTEGER, "threshold", "128"));
-			if (params.ask()) {
-				mController.filterThreshold(params.getInteger("threshold"));
-			}
+			mController.tuneOperation("threshold");
 		} else if (e.getSource() == mHistogramBtn) {
 			mController.displayHistogram();
 		} else if (e.getSource() == mBlackAndWhiteBtn) {
 			mController.desaturate();
 		} else if (e.getSource() == mContrastBtn) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_INTEGER, "r1", 0, 255, "80"));
-			params.addParam(new Param(Param.TYPE_INTEGER, "r2", 0, 255, "180"));
-			params.addParam(new Param(Param.TYPE_INTEGER, "s1", 0, 255, "40"));
-			params.addParam(new Param(Param.TYPE_INTEGER, "s2", 0, 255, "220"));
-			if (params.ask()) {
-				mController.filterContrast(params.getInteger("r1"), params.getInteger("r2"), params.getInteger("s1"), params.getInteger("s2"));
-			}
+			mController.tuneOperation("contrast");
 		} else if (e.getSource() == mEqualizeBtn) {
 			mController.filterEqualize();
 		} else if (e.getSource() == mApplyAddGaussian) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_DOUBLE, "spread", "5"));
-			params.addParam(new Param(Param.TYPE_DOUBLE, "average", "10"));
-			params.addParam(new Param(Param.TYPE_DOUBLE, "percentage", 0, 1, "0.2"));
-			if (params.ask()) {
-				mController.applyAddGaussianNoise(params.getDouble("spread"), params.getDouble("average"), params.getDouble("percentage"));
-			}
+			mController.tuneOperation("gaussian-noise");
 		} else if (e.getSource() == mApplyMulRayleigh) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_DOUBLE, "p", "0.5"));
-			params.addParam(new Param(Param.TYPE_DOUBLE, "percentage", 0, 1, "0.2"));
-			if (params.ask()) {
-				mController.applyMulRayleighNoise(params.getDouble("p"), params.getDouble("percentage"));
-			}
+			mController.tuneOperation("rayleigh-noise");
 		} else if (e.getSource() == mApplyMulExponential) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_DOUBLE, "p", "0.5"));
-			params.addParam(new Param(Param.TYPE_DOUBLE, "percentage", 0, 1, "0.2"));
-			if (params.ask()) {
-				mController.applyMulExponentialNoise(params.getDouble("p"), params.getDouble("percentage"));
-			}
+			mController.tuneOperation("exponential-noise");
 		} else if (e.getSource() == mPepperAndSalt) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_DOUBLE, "p0", 0, 1, "0.02"));
-			params.addParam(new Param(Param.TYPE_DOUBLE, "p1", 0, 1, "0.98"));
-			if (params.ask()) {
-				mController.applyPepperAndSalt(params.getDouble("p0"), params.getDouble("p1"));
-			}
+			mController.tuneOperation("salt-pepper");
 		} else if (e.getSource() == mMaskAverage) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_INTEGER, "width", 1, 10, "3"));
-			params.addParam(new Param(Param.TYPE_INTEGER, "height", 1, 10, "3"));
-			if (params.ask()) {
-				mController.applyFactorMaskFilter(params.getInteger("width"), params.getInteger("height"), Filters.MASK_FILTER_AVERAGE);
-			}
+			mController.tuneOperation("average-mask");
 		} else if (e.getSource() == mMaskGaussian) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_INTEGER, "width", 1, 10, "5"));
-			params.addParam(new Param(Param.TYPE_INTEGER, "height", 1, 10, "5"));
-			params.addParam(new Param(Param.TYPE_DOUBLE, "spread", "0.8"));
-			if (params.ask()) {
-				mController.applyGaussianMaskFilter(params.getInteger("width"), params.getInteger("height"), params.getDouble("spread"));
-			}
+			mController.tuneOperation("gaussian-mask");
 		} else if (e.getSource() == mMaskHighPass) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_INTEGER, "width", 1, 10, "3"));
-			params.addParam(new Param(Param.TYPE_INTEGER, "height", 1, 10, "3"));
-			if (params.ask()) {
-				mController.applyFactorMaskFilter(params.getInteger("width"), params.getInteger("height"), Filters.MASK_FILTER_HIGH_PASS);
-			}
+			mController.tuneOperation("high-pass-mask");
 		} else if (e.getSource() == mMaskMedian) {
-			ParamAsker params = new ParamAsker();
-			params.addParam(new Param(Param.TYPE_INTEGER, "width", 1, 10, "3"));
-			params.addParam(new Param(Param.TYPE_INTEGER, "height", 1, 10, "3"));
-			if (params.ask()) {
-				mController.applyMedianMaskFilter(params.getInteger("width"), params.getInteger("height"));
-			}
+			mController.tuneOperation("median-mask");
 		} else if (e.getSource() == mGaussianTest) {
 			ParamAsker params = new ParamAsker();
 			params.addParam(new Param(Param.TYPE_DOUBLE, "spread", "1"));
@@ -388,6 +401,43 @@ public class MenuPane extends JPanel implements ActionListener {
 			if (params.ask()) {
 				mController.displayExponentialChart(params.getDouble("p"));
 			}
+		} else if (e.getSource() == mLoadStackBtn) {
+			mFileChooser.setMultiSelectionEnabled(false);
+			if (mFileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+				mController.loadStack(mFileChooser.getSelectedFile());
+			}
+		} else if (e.getSource() == mStackFrameBtn) {
+			int frames = mController.getStackFrameCount();
+			if (frames > 0) {
+				ParamAsker params = new ParamAsker();
+				params.addParam(new Param(Param.TYPE_INTEGER, "frame", 0, frames - 1, "0"));
+				if (params.ask()) {
+					mController.showStackFrame(params.getInteger("frame"));
+				}
+			}
+		} else if (e.getSource() == mStackMeanBtn) {
+			mController.projectStack(ImageStack.PROJECTION_MEAN);
+		} else if (e.getSource() == mStackMedianBtn) {
+			mController.projectStack(ImageStack.PROJECTION_MEDIAN);
+		} else if (e.getSource() == mStackMaxBtn) {
+			mController.projectStack(ImageStack.PROJECTION_MAX);
+		} else if (e.getSource() == mStackEqualizeBtn) {
+			mController.mapStack(new ImageFunction() {
+				@Override
+				public Image apply(Image image) {
+					return Filters.filterEqualize(image);
+				}
+			});
+		} else if (e.getSource() == mSavePipelineBtn) {
+			if (mController.getRecordingSize() > 0 && mPipelineChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+				mController.saveRecording(mPipelineChooser.getSelectedFile());
+			}
+		} else if (e.getSource() == mClearPipelineBtn) {
+			mController.clearRecording();
+		} else if (e.getSource() == mRunPipelineBtn) {
+			if (mPipelineChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+				mController.runPipeline(mPipelineChooser.getSelectedFile());
+			}
 		} else if (e.getSource() == mRobertsBorders) {
 			mController.robertsBordersDetection();
 		} else if (e.getSource() == mPrewittBorders) {
@@ -398,42 +448,75 @@ public class MenuPane extends JPanel implements ActionListener {
 	}
 
 	private void loadImage() {
+		mFileChooser.setMultiSelectionEnabled(true);
 		int returnVal = mFileChooser.showOpenDialog(this);
 
-		// if the user selected a file
+		// if the user selected files
 		if (returnVal == JFileChooser.APPROVE_OPTION) {
-			File file = mFileChooser.getSelectedFile();
-
-			// if the file is a raw file, we need to ask the image size
-			if (FileUtils.getFileExtension(file).equals("raw")) {
-				int[] defaultSize = mDefaultDimensions.get(file.getName());
-				ParamAsker params = new ParamAsker();
-				// if the default size exists for that file
-				if (defaultSize != null) {
-					params.addParam(new Param(Param.TYPE_INTEGER, "width", 0, 5000, String.valueOf(defaultSize[0])));
-					params.addParam(new Param(Param.TYPE_INTEGER, "height", 0, 5000, String.valueOf(defaultSize[1])));
-				} else {
-					params.addParam(new Param(Param.TYPE_INTEGER, "width", 0, 5000));
-					params.addParam(new Param(Param.TYPE_INTEGER, "height", 0, 5000));
+			List<File> files = Arrays.asList(mFileChooser.getSelectedFiles());
+
+			// if there are raw files with an unknown format, we need to ask
+			// their format, it is used for all of them
+			boolean unknownRaw = false;
+			for (File file : files) {
+				if (FileUtils.getFileExtension(file).equals("raw") && RawFormats.find(file) == null) {
+					unknownRaw = true;
 				}
+			}
+			if (unknownRaw) {
+				ParamAsker params = new ParamAsker();
+				params.addParam(new Param(Param.TYPE_INTEGER, "width", 0, 5000));
+				params.addParam(new Param(Param.TYPE_INTEGER, "height", 0, 5000));
+				params.addParam(new Param(Param.TYPE_INTEGER, "bits", 8, 16, "8"));
+				String channelsParam = "channels (1=gray 3=rgb)";
+				String layoutParam = "rgb layout (1=interleaved 2=planar)";
+				String orderParam = "16 bits order (1=little 2=big endian)";
+				params.addParam(new Param(Param.TYPE_INTEGER, channelsParam, 1, 3, "1"));
+				params.addParam(new Param(Param.TYPE_INTEGER, layoutParam, 1, 2, "1"));
+				params.addParam(new Param(Param.TYPE_INTEGER, orderParam, 1, 2, "1"));
 				// if the user enters all the parameters
 				if (params.ask()) {
 					int width = params.getInteger("width");
 					int height = params.getInteger("height");
-					Log.d("dimensions: " + width + ", " + height);
-					mController.loadImage(file, width, height);
+					int bits = params.getInteger("bits") > 8 ? 16 : 8;
+					int channels = params.getInteger(channelsParam) > 1 ? 3 : 1;
+					boolean planar = params.getInteger(layoutParam) == 2;
+					boolean bigEndian = params.getInteger(orderParam) == 2;
+					RawFormat format = new RawFormat(width, height, bits, bigEndian, channels, planar);
+					Log.d("raw format: " + format);
+					mController.loadImages(files, format);
 				}
 			} else {
-				mController.loadImage(file, 0, 0);
+				mController.loadImages(files, null);
 			}
 		}
 	}
 
 	private void saveImage() {
+		mFileChooser.setMultiSelectionEnabled(false);
 		int returnVal = mFileChooser.showSaveDialog(this);
 		if (returnVal == JFileChooser.APPROVE_OPTION) {
 			File file = mFileChooser.getSelectedFile();
-			mController.saveImage(file);
+
+			// the formats written from the channels need to know what to do
+			// with the values outside of [0, 255]
+			if (FileUtils.getFileExtension(file).matches("raw|pgm|ppm")) {
+				String rangeParam = "range (1=clamp 2=rescale 3=16 bits)";
+				ParamAsker params = new ParamAsker();
+				params.addParam(new Param(Param.TYPE_INTEGER, rangeParam, 1, 3, String.valueOf(PixmapWriter.RANGE_CLAMP)));
+				if (params.ask()) {
+					mController.saveImage(file, params.getInteger(rangeParam));
+				}
+			} else if (FileUtils.getFileExtension(file).equals(NativeImageIO.EXTENSION)) {
+				String compressionParam = "compression (0=none 1=deflate)";
+				ParamAsker params = new ParamAsker();
+				params.addParam(new Param(Param.TYPE_INTEGER, compressionParam, 0, 1, String.valueOf(NativeImageIO.COMPRESSION_NONE)));
+				if (params.ask()) {
+					mController.saveNativeImage(file, params.getInteger(compressionParam));
+				}
+			} else {
+				mController.saveImage(file, PixmapWriter.RANGE_CLAMP);
+			}
 		}
 	}
 }
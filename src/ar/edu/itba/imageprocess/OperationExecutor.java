@@ -0,0 +1,260 @@
+package ar.edu.itba.imageprocess;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import ar.edu.itba.imageprocess.utils.DaemonThreadFactory;
+import ar.edu.itba.imageprocess.utils.Log;
+import ar.edu.itba.imageprocess.utils.Progress;
+
+/**
+ * Runs the operations on the images in a background thread, so the interface
+ * never blocks. The jobs run one after the other in the order they were
+ * submitted, and a job replaces the job with the same key that hasn't
+ * finished yet, so repeating an operation on the same pane only computes the
+ * last one. The filters report their progress and stop when the job is
+ * cancelled or takes longer than the timeout
+ */
+public class OperationExecutor {
+
+	/**
+	 * Receives the result of a job, all the methods are called on the event
+	 * dispatch thread
+	 */
+	public interface Callback {
+
+		/**
+		 * @param image the result of the work, can be null
+		 */
+		public void onDone(Image image);
+
+		/**
+		 * Receives an approximation of the result while the job goes on, see
+		 * publishPartialResult
+		 */
+		public void onPartialResult(Image image);
+
+		public void onFailed(Throwable e);
+
+		/**
+		 * @param timedOut true if the job was stopped by the timeout, false if
+		 *            it was cancelled or replaced
+		 */
+		public void onCancelled(boolean timedOut);
+	}
+
+	/** the timeout of the jobs in seconds, 0 for none */
+	public static final String TIMEOUT_PROPERTY = "imageprocess.operation.timeout";
+	private static final int DEFAULT_TIMEOUT = 120;
+
+	private static final ThreadLocal<Job> sCurrentJob = new ThreadLocal<Job>();
+
+	private ExecutorService mWorker;
+	private ScheduledExecutorService mTimer;
+	private Map<String, Job> mJobs;
+	private volatile Job mCurrentJob;
+	private long mTimeout;
+
+	public OperationExecutor() {
+		this(Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT));
+	}
+
+	/**
+	 * @param timeout the seconds a job can run before it is cancelled, 0 for
+	 *            no timeout
+	 */
+	public OperationExecutor(long timeout) {
+		mWorker = Executors.newSingleThreadExecutor(new DaemonThreadFactory("operation"));
+		mTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("operation-timeout"));
+		mJobs = new HashMap<String, Job>();
+		mTimeout = timeout;
+	}
+
+	/**
+	 * Queues a job, cancelling the previous job with the same key if it hasn't
+	 * finished yet
+	 *
+	 * @param key jobs with the same key replace each other, for example the
+	 *            pane the result goes to
+	 * @param name the name shown while the job runs
+	 */
+	public Job submit(String key, String name, Callable<Image> work, Callback callback) {
+		final Job job = new Job(key, name, work, callback);
+		synchronized (mJobs) {
+			Job previous = mJobs.put(key, job);
+			if (previous != null) {
+				Log.d("replacing " + previous.getName() + " with " + name);
+				previous.cancel();
+			}
+		}
+		mWorker.execute(new Runnable() {
+			@Override
+			public void run() {
+				runJob(job);
+			}
+		});
+		return job;
+	}
+
+	/**
+	 * Hands an approximation of the result of the job running in the current
+	 * thread to its callback, for example the result on a reduced image. Does
+	 * nothing outside of a job
+	 */
+	public static void publishPartialResult(final Image image) {
+		final Job job = sCurrentJob.get();
+		if (job != null) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					// a newer job may be showing its own results already
+					if (!job.isCancelled()) {
+						job.mCallback.onPartialResult(image);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the running job, or null if there is none
+	 */
+	public Job getCurrentJob() {
+		return mCurrentJob;
+	}
+
+	/**
+	 * Cancels the job with that key, running or queued
+	 */
+	public void cancel(String key) {
+		synchronized (mJobs) {
+			Job job = mJobs.get(key);
+			if (job != null) {
+				job.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Cancels the running job and the queued ones
+	 */
+	public void cancelAll() {
+		synchronized (mJobs) {
+			for (Job job : mJobs.values()) {
+				job.cancel();
+			}
+		}
+	}
+
+	private void runJob(final Job job) {
+		Throwable error = null;
+		Image image = null;
+		ScheduledFuture<?> timeout = null;
+		if (!job.mProgress.isCancelled()) {
+			mCurrentJob = job;
+			if (mTimeout > 0) {
+				timeout = mTimer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						job.mTimedOut = true;
+						job.cancel();
+					}
+				}, mTimeout, TimeUnit.SECONDS);
+			}
+			long start = System.currentTimeMillis();
+			Progress.bind(job.mProgress);
+			sCurrentJob.set(job);
+			try {
+				image = job.mWork.call();
+				Progress.check();
+				Log.d(job.getName() + " done in " + (System.currentTimeMillis() - start) + "ms");
+			} catch (CancellationException e) {
+				image = null;
+				job.cancel();
+			} catch (OutOfMemoryError e) {
+				// the partial results are garbage by now, the application can
+				// go on
+				error = e;
+			} catch (Throwable e) {
+				// any other failure, such as a StackOverflowError in a plugin,
+				// still has to reach the callback
+				error = e;
+			} finally {
+				Progress.unbind();
+				sCurrentJob.remove();
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+				mCurrentJob = null;
+			}
+		}
+		synchronized (mJobs) {
+			if (mJobs.get(job.mKey) == job) {
+				mJobs.remove(job.mKey);
+			}
+		}
+		publish(job, image, error);
+	}
+
+	private void publish(final Job job, final Image image, final Throwable error) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (error != null) {
+					job.mCallback.onFailed(error);
+				} else if (job.mProgress.isCancelled()) {
+					job.mCallback.onCancelled(job.mTimedOut);
+				} else {
+					job.mCallback.onDone(image);
+				}
+			}
+		});
+	}
+
+	public static class Job {
+
+		private String mKey;
+		private String mName;
+		private Callable<Image> mWork;
+		private Callback mCallback;
+		private Progress mProgress;
+		private volatile boolean mTimedOut;
+
+		private Job(String key, String name, Callable<Image> work, Callback callback) {
+			mKey = key;
+			mName = name;
+			mWork = work;
+			mCallback = callback;
+			mProgress = new Progress();
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public int getPercent() {
+			return mProgress.getPercent();
+		}
+
+		public boolean isCancelled() {
+			return mProgress.isCancelled();
+		}
+
+		/**
+		 * Stops the job the next time the filter reports its progress, or
+		 * before it starts if it is still queued
+		 */
+		public void cancel() {
+			mProgress.cancel();
+		}
+	}
+}
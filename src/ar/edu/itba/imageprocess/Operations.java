@@ -0,0 +1,417 @@
+package ar.edu.itba.imageprocess;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import ar.edu.itba.imageprocess.ImageOperation.PointFunction;
+import ar.edu.itba.imageprocess.ParamAsker.Param;
+import ar.edu.itba.imageprocess.utils.Log;
+
+/**
+ * The operations that can be run by name. The params and their default values
+ * are the same as the ones of the menus. The operations found in the
+ * classpath with ServiceLoader are added after the ones of this class, and
+ * replace them if they have the same name
+ */
+public class Operations {
+
+	private static final LinkedHashMap<String, ImageOperation> sOperations = new LinkedHashMap<String, ImageOperation>();
+	private static final List<ImageOperation> sPlugins = new ArrayList<ImageOperation>();
+
+	static {
+		register(new PointOperation("negative", "negative of the image") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.filterNegative(image);
+			}
+
+			@Override
+			public PointFunction getPointFunction(ParamAsker params) {
+				return new PointFunction() {
+					@Override
+					public int apply(int value) {
+						return 255 - value;
+					}
+				};
+			}
+		});
+		register(new PointOperation("threshold", "black and white image, white above the threshold") {
+			@Override
+			protected void addParams(ParamAsker params) {
+				params.addParam(new Param(Param.TYPE_INTEGER, "threshold", "128"));
+			}
+
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.filterThreshold(image, params.getInteger("threshold"));
+			}
+
+			@Override
+			public PointFunction getPointFunction(ParamAsker params) {
+				final int threshold = params.getInteger("threshold");
+				return new PointFunction() {
+					@Override
+					public int apply(int value) {
+						return value < threshold ? 0 : 255;
+					}
+				};
+			}
+		});
+		register(new PointOperation("contrast", "linear contrast, maps [r1, r2] to [s1, s2]") {
+			@Override
+			protected void addParams(ParamAsker params) {
+				params.addParam(new Param(Param.TYPE_INTEGER, "r1", 0, 255, "80"));
+				params.addParam(new Param(Param.TYPE_INTEGER, "r2", 0, 255, "180"));
+				params.addParam(new Param(Param.TYPE_INTEGER, "s1", 0, 255, "40"));
+				params.addParam(new Param(Param.TYPE_INTEGER, "s2", 0, 255, "220"));
+			}
+
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.filterContrast(image, params.getInteger("r1"), params.getInteger("r2"), params.getInteger("s1"), params.getInteger("s2"));
+			}
+
+			@Override
+			public int getChannels() {
+				return CHANNELS_MIXED;
+			}
+		});
+		register(new ImageOperation("equalize", "histogram equalization") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.filterEqualize(image);
+			}
+
+			@Override
+			public int getHalo(ParamAsker params) {
+				return HALO_GLOBAL;
+			}
+
+			@Override
+			public int getChannels() {
+				return CHANNELS_MIXED;
+			}
+		});
+		register(new PointOperation("desaturate", "gray image") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				int[][] gray = image.getGrayChannel();
+				Image result = new Image(gray);
+				PlanePool.recycle(gray);
+				return result;
+			}
+
+			@Override
+			public int getChannels() {
+				return CHANNELS_MIXED;
+			}
+		});
+		register(new PointOperation("multiply", "multiplies the image by a scalar") {
+			@Override
+			protected void addParams(ParamAsker params) {
+				params.addParam(new Param(Param.TYPE_DOUBLE, "scalar", "1.5"));
+			}
+
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.multiplyScalar(image, params.getDouble("scalar"));
+			}
+
+			@Override
+			public PointFunction getPointFunction(ParamAsker params) {
+				final double scalar = params.getDouble("scalar");
+				return new PointFunction() {
+					@Override
+					public int apply(int value) {
+						return (int) (value * scalar);
+					}
+				};
+			}
+		});
+		register(new ImageOperation("compress-linear", "linear compression of the range to [0, 255]") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.compressLinear(image);
+			}
+
+			@Override
+			public int getHalo(ParamAsker params) {
+				return HALO_GLOBAL;
+			}
+
+			@Override
+			public int getChannels() {
+				return CHANNELS_MIXED;
+			}
+		});
+		register(new ImageOperation("compress", "dynamic range compression to [0, 255]") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.compress(image);
+			}
+
+			@Override
+			public int getHalo(ParamAsker params) {
+				return HALO_GLOBAL;
+			}
+
+			@Override
+			public int getChannels() {
+				return CHANNELS_MIXED;
+			}
+		});
+		register(new GrayNoiseOperation("gaussian-noise", "additive gaussian noise") {
+			@Override
+			protected void addParams(ParamAsker params) {
+				params.addParam(new Param(Param.TYPE_DOUBLE, "spread", "5"));
+				params.addParam(new Param(Param.TYPE_DOUBLE, "average", "10"));
+				params.addParam(new Param(Param.TYPE_DOUBLE, "percentage", 0, 1, "0.2"));
+			}
+
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.applyAddGaussianNoise(image, params.getDouble("spread"), params.getDouble("average"), params.getDouble("percentage"));
+			}
+		});
+		register(new GrayNoiseOperation("rayleigh-noise", "multiplicative rayleigh noise") {
+			@Override
+			protected void addParams(ParamAsker params) {
+				params.addParam(new Param(Param.TYPE_DOUBLE, "p", "0.5"));
+				params.addParam(new Param(Param.TYPE_DOUBLE, "percentage", 0, 1, "0.2"));
+			}
+
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.applyMulRayleighNoise(image, params.getDouble("p"), params.getDouble("percentage"));
+			}
+		});
+		register(new GrayNoiseOperation("exponential-noise", "multiplicative exponential noise") {
+			@Override
+			protected void addParams(ParamAsker params) {
+				params.addParam(new Param(Param.TYPE_DOUBLE, "p", "0.5"));
+				params.addParam(new Param(Param.TYPE_DOUBLE, "percentage", 0, 1, "0.2"));
+			}
+
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.applyMulExponentialNoise(image, params.getDouble("p"), params.getDouble("percentage"));
+			}
+		});
+		register(new NoiseOperation("salt-pepper", "salt and pepper noise") {
+			@Override
+			protected void addParams(ParamAsker params) {
+				params.addParam(new Param(Param.TYPE_DOUBLE, "p0", 0, 1, "0.02"));
+				params.addParam(new Param(Param.TYPE_DOUBLE, "p1", 0, 1, "0.98"));
+			}
+
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.applyPepperAndSalt(image, params.getDouble("p0"), params.getDouble("p1"));
+			}
+		});
+		register(new MaskOperation("average-mask", "average mask filter", "3") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.applyFactorMaskFilter(image, params.getInteger("width"), params.getInteger("height"), Filters.MASK_FILTER_AVERAGE);
+			}
+		});
+		register(new MaskOperation("high-pass-mask", "high pass mask filter", "3") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.applyFactorMaskFilter(image, params.getInteger("width"), params.getInteger("height"), Filters.MASK_FILTER_HIGH_PASS);
+			}
+		});
+		register(new MaskOperation("gaussian-mask", "gaussian mask filter", "5") {
+			@Override
+			protected void addParams(ParamAsker params) {
+				super.addParams(params);
+				params.addParam(new Param(Param.TYPE_DOUBLE, "spread", "0.8"));
+			}
+
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.applyGaussianMaskFilter(image, params.getInteger("width"), params.getInteger("height"), params.getDouble("spread"));
+			}
+		});
+		register(new MaskOperation("median-mask", "median mask filter", "3") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.applyMedianMaskFilter(image, params.getInteger("width"), params.getInteger("height"));
+			}
+
+			@Override
+			public int getCost(ParamAsker params) {
+				// sorting the values of the mask
+				int size = super.getCost(params);
+				return size * (32 - Integer.numberOfLeadingZeros(size));
+			}
+		});
+		register(new BorderOperation("roberts", "roberts border detection") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.robertsBorderDetection(image);
+			}
+		});
+		register(new BorderOperation("prewitt", "prewitt border detection") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.prewittBorderDetection(image);
+			}
+		});
+		register(new BorderOperation("sobel", "sobel border detection") {
+			@Override
+			public Image apply(Image image, ParamAsker params) {
+				return Filters.sobelBorderDetection(image);
+			}
+		});
+		loadPlugins();
+	}
+
+	/**
+	 * Registers the operations listed in the META-INF/services files of the
+	 * classpath. A plugin that can't be loaded is skipped
+	 */
+	private static void loadPlugins() {
+		Iterator<ImageOperation> plugins = ServiceLoader.load(ImageOperation.class).iterator();
+		while (true) {
+			try {
+				if (!plugins.hasNext()) {
+					break;
+				}
+				ImageOperation operation = plugins.next();
+				Log.d("loaded plugin " + operation.getName() + " " + operation.getClass().getName());
+				register(operation);
+				sPlugins.add(operation);
+			} catch (ServiceConfigurationError e) {
+				Log.d("couldn't load plugin! " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Registers an operation, replacing the one with the same name
+	 */
+	public static synchronized void register(ImageOperation operation) {
+		sOperations.put(operation.getName(), operation);
+	}
+
+	/**
+	 * @return the operation with that name, or null if there is none
+	 */
+	public static synchronized ImageOperation get(String name) {
+		return sOperations.get(name);
+	}
+
+	public static synchronized List<ImageOperation> getAll() {
+		return new ArrayList<ImageOperation>(sOperations.values());
+	}
+
+	/**
+	 * @return the operations loaded from the classpath, which have no menu
+	 *         of their own
+	 */
+	public static synchronized List<ImageOperation> getPlugins() {
+		return new ArrayList<ImageOperation>(sPlugins);
+	}
+
+	/**
+	 * A mask filter, with the width and height of the mask as params
+	 */
+	private static abstract class MaskOperation extends ImageOperation {
+
+		private String mDefaultSize;
+
+		public MaskOperation(String name, String description, String defaultSize) {
+			super(name, description);
+			mDefaultSize = defaultSize;
+		}
+
+		@Override
+		protected void addParams(ParamAsker params) {
+			params.addParam(new Param(Param.TYPE_INTEGER, "width", 1, 10, mDefaultSize));
+			params.addParam(new Param(Param.TYPE_INTEGER, "height", 1, 10, mDefaultSize));
+		}
+
+		@Override
+		public int getHalo(ParamAsker params) {
+			return Filters.getMaskHalo(params.getInteger("width"), params.getInteger("height"));
+		}
+
+		@Override
+		public int getCost(ParamAsker params) {
+			return params.getInteger("width") * params.getInteger("height");
+		}
+	}
+
+	/**
+	 * An operation where each pixel of the result depends only on the same
+	 * pixel, the operations with an unknown halo are global
+	 */
+	private static abstract class PointOperation extends ImageOperation {
+
+		public PointOperation(String name, String description) {
+			super(name, description);
+		}
+
+		@Override
+		public int getHalo(ParamAsker params) {
+			return 0;
+		}
+	}
+
+	private static abstract class NoiseOperation extends PointOperation {
+
+		public NoiseOperation(String name, String description) {
+			super(name, description);
+		}
+
+		@Override
+		public boolean isDeterministic() {
+			return false;
+		}
+	}
+
+	/**
+	 * A noise applied to the gray level, so every channel of the result
+	 * depends on all the channels of the image
+	 */
+	private static abstract class GrayNoiseOperation extends NoiseOperation {
+
+		public GrayNoiseOperation(String name, String description) {
+			super(name, description);
+		}
+
+		@Override
+		public int getChannels() {
+			return CHANNELS_MIXED;
+		}
+	}
+
+	private static abstract class BorderOperation extends ImageOperation {
+
+		public BorderOperation(String name, String description) {
+			super(name, description);
+		}
+
+		@Override
+		public int getHalo(ParamAsker params) {
+			return Filters.BORDER_DETECTION_HALO;
+		}
+
+		@Override
+		public int getCost(ParamAsker params) {
+			// two 3x3 masks
+			return 18;
+		}
+
+		@Override
+		public int getChannels() {
+			// the gradients are of the gray level
+			return CHANNELS_MIXED;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package ar.edu.itba.imageprocess;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -40,6 +41,63 @@ public class ParamAsker {
 		mParams.put(param.getName(), param);
 	}
 
+	public Collection<Param> getParams() {
+		return mParams.values();
+	}
+
+	/**
+	 * Sets the value of a param without asking it, for example from the
+	 * command line
+	 * 
+	 * @return an error message if the param doesn't exist or the value is
+	 *         invalid, an empty string otherwise
+	 */
+	public String setValue(String name, String value) {
+		Param param = mParams.get(name);
+		if (param == null) {
+			return "unknown param " + name;
+		}
+		String error = param.checkValidity(value);
+		if (error.length() == 0) {
+			param.setValue(value);
+		}
+		return error;
+	}
+
+	/**
+	 * Gives their default value to the params without a value
+	 * 
+	 * @return an error message if a param has neither a value nor a default
+	 *         value, an empty string otherwise
+	 */
+	public String setDefaultValues() {
+		for (Param param : mParams.values()) {
+			if (param.getValue() == null) {
+				if (param.getDefaultValue().length() == 0) {
+					return "missing value for " + param.getName();
+				}
+				param.setValue(param.getDefaultValue());
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * @return the values of the params as "name=value" separated by spaces,
+	 *         as in the pipeline files
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Param param : mParams.values()) {
+			if (text.length() > 0) {
+				text.append(' ');
+			}
+			text.append(param.getName()).append('=').append(param.getValue());
+		}
+		return text.toString();
+	}
+
 	/**
 	 * Iterates over all the params and ask them to the user
 	 * 
@@ -132,6 +190,22 @@ public class ParamAsker {
 			return mName;
 		}
 
+		public int getType() {
+			return mType;
+		}
+
+		public boolean isBound() {
+			return mBound;
+		}
+
+		public double getLowBound() {
+			return mLowBound;
+		}
+
+		public double getHighBound() {
+			return mHighBound;
+		}
+
 		public String getValue() {
 			return mValue;
 		}
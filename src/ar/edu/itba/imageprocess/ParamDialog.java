@@ -0,0 +1,223 @@
+package ar.edu.itba.imageprocess;
+
+import java.awt.Component;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.Window;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.border.EmptyBorder;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import ar.edu.itba.imageprocess.ParamAsker.Param;
+
+/**
+ * Asks all the params of a ParamAsker in a single dialog, with a slider for
+ * the params with bounds and a spinner for the other numbers. While the user
+ * moves them the listener is told about the new values, once they stop
+ * changing for a moment, so it can show a preview of the result
+ */
+@SuppressWarnings("serial")
+public class ParamDialog extends JDialog {
+
+	/**
+	 * Told about the values of the params while they are edited, on the event
+	 * dispatch thread
+	 */
+	public interface Listener {
+
+		public void onParamsChanged(ParamAsker params);
+	}
+
+	/** the time the values must stay the same before the listener is told */
+	private static final int DEBOUNCE_DELAY = 200;
+	private static final int DOUBLE_SLIDER_STEPS = 100;
+
+	private ParamAsker mParams;
+	private Listener mListener;
+	private Timer mDebounceTimer;
+	private JLabel mErrorLabel;
+	private JButton mOkButton;
+	private boolean mConfirmed;
+
+	public ParamDialog(Component parent, String title, ParamAsker params, Listener listener) {
+		super(parent instanceof Window ? (Window) parent : SwingUtilities.getWindowAncestor(parent), title, ModalityType.APPLICATION_MODAL);
+		mParams = params;
+		mListener = listener;
+		mConfirmed = false;
+		mDebounceTimer = new Timer(DEBOUNCE_DELAY, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (mListener != null) {
+					mListener.onParamsChanged(mParams);
+				}
+			}
+		});
+		mDebounceTimer.setRepeats(false);
+
+		JPanel panel = new JPanel(new GridBagLayout());
+		panel.setBorder(new EmptyBorder(16, 16, 16, 16));
+		GridBagConstraints c;
+		int row = 0;
+		for (Param param : params.getParams()) {
+			if (param.getValue() == null) {
+				param.setValue(param.getDefaultValue());
+			}
+			c = new GridBagConstraints();
+			c.gridx = 0;
+			c.gridy = row;
+			c.anchor = GridBagConstraints.LINE_START;
+			c.insets = new Insets(0, 0, 8, 16);
+			panel.add(new JLabel(param.getName()), c);
+
+			c = new GridBagConstraints();
+			c.gridx = 1;
+			c.gridy = row;
+			c.fill = GridBagConstraints.HORIZONTAL;
+			c.insets = new Insets(0, 0, 8, 0);
+			panel.add(createEditor(param), c);
+			row++;
+		}
+
+		mErrorLabel = new JLabel(" ");
+		c = new GridBagConstraints();
+		c.gridx = 0;
+		c.gridy = row++;
+		c.gridwidth = 2;
+		c.anchor = GridBagConstraints.LINE_START;
+		panel.add(mErrorLabel, c);
+
+		JPanel buttons = new JPanel();
+		mOkButton = new JButton("OK");
+		mOkButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				mConfirmed = true;
+				dispose();
+			}
+		});
+		buttons.add(mOkButton);
+		JButton cancelButton = new JButton("Cancel");
+		cancelButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				dispose();
+			}
+		});
+		buttons.add(cancelButton);
+		c = new GridBagConstraints();
+		c.gridx = 0;
+		c.gridy = row;
+		c.gridwidth = 2;
+		c.anchor = GridBagConstraints.LINE_END;
+		panel.add(buttons, c);
+
+		getContentPane().add(panel);
+		getRootPane().setDefaultButton(mOkButton);
+		pack();
+		setLocationRelativeTo(parent);
+	}
+
+	/**
+	 * Shows the dialog and waits until it's closed. The listener is told
+	 * about the initial values right away
+	 *
+	 * @return true if the user confirmed the values, false if the user canceled
+	 */
+	public boolean ask() {
+		mDebounceTimer.restart();
+		setVisible(true);
+		mDebounceTimer.stop();
+		return mConfirmed;
+	}
+
+	private JComponent createEditor(final Param param) {
+		if (param.getType() == Param.TYPE_STRING) {
+			final JTextField field = new JTextField(param.getValue(), 10);
+			field.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					onValueChanged(param, field.getText());
+				}
+			});
+			return field;
+		}
+		boolean integer = param.getType() == Param.TYPE_INTEGER;
+		if (param.isBound()) {
+			return createSlider(param, integer);
+		}
+		final JSpinner spinner;
+		if (integer) {
+			spinner = new JSpinner(new SpinnerNumberModel(Integer.valueOf(param.getValueInt()), null, null, Integer.valueOf(1)));
+		} else {
+			spinner = new JSpinner(new SpinnerNumberModel(Double.valueOf(param.getValueDouble()), null, null, Double.valueOf(0.1)));
+		}
+		spinner.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				onValueChanged(param, String.valueOf(spinner.getValue()));
+			}
+		});
+		return spinner;
+	}
+
+	/**
+	 * A slider over the bounds of the param, the double params are divided
+	 * in steps
+	 */
+	private JComponent createSlider(final Param param, final boolean integer) {
+		final double low = param.getLowBound();
+		final double high = param.getHighBound();
+		final JSlider slider;
+		if (integer) {
+			slider = new JSlider((int) low, (int) high, param.getValueInt());
+		} else {
+			int position = (int) Math.round((param.getValueDouble() - low) / (high - low) * DOUBLE_SLIDER_STEPS);
+			slider = new JSlider(0, DOUBLE_SLIDER_STEPS, Math.max(0, Math.min(DOUBLE_SLIDER_STEPS, position)));
+		}
+		final JLabel valueLabel = new JLabel(param.getValue());
+		slider.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				String value;
+				if (integer) {
+					value = String.valueOf(slider.getValue());
+				} else {
+					double step = (high - low) / DOUBLE_SLIDER_STEPS;
+					// rounded so the label doesn't show the float error
+					value = String.valueOf(Math.round((low + step * slider.getValue()) * 1000) / 1000.0);
+				}
+				valueLabel.setText(value);
+				onValueChanged(param, value);
+			}
+		});
+		JPanel panel = new JPanel(new GridBagLayout());
+		panel.add(slider);
+		panel.add(valueLabel);
+		return panel;
+	}
+
+	private void onValueChanged(Param param, String value) {
+		String error = param.checkValidity(value);
+		mErrorLabel.setText(error.length() > 0 ? error : " ");
+		mOkButton.setEnabled(error.length() == 0);
+		if (error.length() == 0) {
+			param.setValue(value);
+			mDebounceTimer.restart();
+		}
+	}
+}
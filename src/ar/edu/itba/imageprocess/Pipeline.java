@@ -0,0 +1,320 @@
+package ar.edu.itba.imageprocess;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ar.edu.itba.imageprocess.ImageOperation.PointFunction;
+import ar.edu.itba.imageprocess.utils.ArrayUtils;
+import ar.edu.itba.imageprocess.utils.FileUtils;
+import ar.edu.itba.imageprocess.utils.Progress;
+
+/**
+ * A chain of operations with their params, for example the operations applied
+ * in the interface, saved to be run again on other images. In a pipeline file
+ * each line is an operation name followed by its params, lines starting with
+ * # are comments:
+ *
+ * <pre>
+ * median-mask width=5 height=5
+ * threshold threshold=100
+ * </pre>
+ *
+ * Consecutive point operations are fused and applied in a single pass over
+ * the image, through a lookup table when the range of the image is small
+ */
+public class Pipeline {
+
+	private static final int MAX_LOOKUP_TABLE_SIZE = 1 << 16;
+
+	private String mName;
+	private List<Step> mSteps;
+
+	public Pipeline(String name) {
+		mName = name;
+		mSteps = new ArrayList<Step>();
+	}
+
+	/**
+	 * Reads a pipeline file, the pipeline is named like the file
+	 */
+	public static Pipeline read(File file) throws IOException {
+		String name = file.getName();
+		if (name.lastIndexOf('.') > 0) {
+			name = name.substring(0, name.lastIndexOf('.'));
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			return read(name, file.getName(), reader);
+		} finally {
+			FileUtils.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Parses the contents of a pipeline file, for example received by the
+	 * ImageServer
+	 */
+	public static Pipeline parse(String name, String text) throws IOException {
+		return read(name, name, new BufferedReader(new StringReader(text)));
+	}
+
+	/**
+	 * @param source the name given in the errors
+	 */
+	private static Pipeline read(String name, String source, BufferedReader reader) throws IOException {
+		Pipeline pipeline = new Pipeline(name);
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			String[] words = line.split("\\s+");
+			ImageOperation operation = Operations.get(words[0]);
+			if (operation == null) {
+				throw new IOException(source + ":" + lineNumber + ": unknown operation " + words[0]);
+			}
+			ParamAsker params = operation.getParams();
+			for (int i = 1; i < words.length; i++) {
+				int equals = words[i].indexOf('=');
+				String error = equals > 0 ? params.setValue(words[i].substring(0, equals), words[i].substring(equals + 1)) : "expected param=value";
+				if (error.length() > 0) {
+					throw new IOException(source + ":" + lineNumber + ": " + error);
+				}
+			}
+			String error = params.setDefaultValues();
+			if (error.length() > 0) {
+				throw new IOException(source + ":" + lineNumber + ": " + error);
+			}
+			pipeline.add(operation, params);
+		}
+		return pipeline;
+	}
+
+	public void write(File file) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Adds an operation at the end of the pipeline
+	 *
+	 * @param params the params of the operation, filled with values
+	 */
+	public void add(ImageOperation operation, ParamAsker params) {
+		mSteps.add(new Step(operation, params));
+	}
+
+	public int size() {
+		return mSteps.size();
+	}
+
+	public void clear() {
+		mSteps.clear();
+	}
+
+	/**
+	 * @return the number of pixels around a pixel needed to compute it, the
+	 *         sum of the halos of the operations, or HALO_GLOBAL if one of
+	 *         them needs the whole image
+	 */
+	public int getHalo() {
+		int halo = 0;
+		for (Step step : mSteps) {
+			int stepHalo = step.mOperation.getHalo(step.mParams);
+			if (stepHalo == ImageOperation.HALO_GLOBAL) {
+				return ImageOperation.HALO_GLOBAL;
+			}
+			halo += stepHalo;
+		}
+		return halo;
+	}
+
+	/**
+	 * @return KIND_POINT if all the operations are point operations,
+	 *         KIND_GLOBAL if one of them is global, KIND_NEIGHBORHOOD
+	 *         otherwise
+	 */
+	public int getKind() {
+		int kind = ImageOperation.KIND_POINT;
+		for (Step step : mSteps) {
+			kind = Math.max(kind, step.mOperation.getKind(step.mParams));
+		}
+		return kind;
+	}
+
+	/**
+	 * @return true if all the operations are deterministic
+	 */
+	public boolean isDeterministic() {
+		for (Step step : mSteps) {
+			if (!step.mOperation.isDeterministic()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Applies all the operations, fusing the consecutive point operations.
+	 * The images computed in between belong only to the pipeline, so the
+	 * point operations that can run in place write over their channels, and
+	 * their channels go back to PlanePool once the next image is computed
+	 */
+	public Image apply(Image image) {
+		Image source = image;
+		List<PointFunction> pointFunctions = new ArrayList<PointFunction>();
+		boolean inPlace = true;
+		for (Step step : mSteps) {
+			PointFunction pointFunction = isFusable(step) ? step.mOperation.getPointFunction(step.mParams) : null;
+			if (pointFunction != null) {
+				pointFunctions.add(pointFunction);
+				inPlace &= step.mOperation.isInPlace(step.mParams);
+			} else {
+				image = recycle(image, applyPointFunctions(image, pointFunctions, image != source && inPlace), source);
+				pointFunctions.clear();
+				inPlace = true;
+				image = recycle(image, step.mOperation.apply(image, step.mParams), source);
+			}
+		}
+		return recycle(image, applyPointFunctions(image, pointFunctions, image != source && inPlace), source);
+	}
+
+	/**
+	 * Recycles the previous image if the pipeline computed it and it isn't
+	 * the next one
+	 *
+	 * @return the next image
+	 */
+	private static Image recycle(Image previous, Image next, Image source) {
+		if (previous != source && previous != next) {
+			previous.recycle();
+		}
+		return next;
+	}
+
+	/**
+	 * @return true if the operation declares itself a point operation on
+	 *         each channel on its own, so its point function can be applied
+	 *         in the same pass as the others
+	 */
+	private static boolean isFusable(Step step) {
+		return step.mOperation.getKind(step.mParams) == ImageOperation.KIND_POINT && step.mOperation.getChannels() == ImageOperation.CHANNELS_INDEPENDENT;
+	}
+
+	public ImageFunction toFunction() {
+		return new ImageFunction() {
+			@Override
+			public Image apply(Image image) {
+				return Pipeline.this.apply(image);
+			}
+		};
+	}
+
+	/**
+	 * @return the pipeline file contents
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Step step : mSteps) {
+			text.append(step.mOperation.getName());
+			if (!step.mParams.getParams().isEmpty()) {
+				text.append(' ').append(step.mParams);
+			}
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Applies the point functions one after the other, in a single pass over
+	 * each channel
+	 *
+	 * @param inPlace if true the results are written over the channels of
+	 *            the image, which can't be used afterwards
+	 */
+	private static Image applyPointFunctions(Image image, List<PointFunction> functions, boolean inPlace) {
+		if (functions.isEmpty()) {
+			return image;
+		}
+		int[][][] channels = new int[][][] { image.getRedChannel(), image.getGreenChannel(), image.getBlueChannel() };
+		int[][][] results = new int[3][][];
+		for (int c = 0; c < 3; c++) {
+			results[c] = applyPointFunctions(channels[c], functions, inPlace);
+		}
+		Image result = new Image(results[0], results[1], results[2]);
+		if (!inPlace) {
+			PlanePool.recycle(results);
+		}
+		return result;
+	}
+
+	private static int[][] applyPointFunctions(int[][] channel, List<PointFunction> functions, boolean inPlace) {
+		int width = channel.length;
+		int height = channel[0].length;
+		int[][] result = inPlace ? channel : PlanePool.obtain(width, height);
+		int min = ArrayUtils.min(channel);
+		long size = (long) ArrayUtils.max(channel) - min + 1;
+		if (size <= MAX_LOOKUP_TABLE_SIZE && size < (long) width * height) {
+			// compute each value only once
+			int[] table = new int[(int) size];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = applyPointFunctions(min + i, functions);
+			}
+			for (int x = 0; x < width; x++) {
+				Progress.check();
+				int[] column = channel[x];
+				int[] resultColumn = result[x];
+				for (int y = 0; y < height; y++) {
+					resultColumn[y] = table[column[y] - min];
+				}
+			}
+		} else {
+			for (int x = 0; x < width; x++) {
+				Progress.check();
+				for (int y = 0; y < height; y++) {
+					result[x][y] = applyPointFunctions(channel[x][y], functions);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static int applyPointFunctions(int value, List<PointFunction> functions) {
+		for (PointFunction function : functions) {
+			value = function.apply(value);
+		}
+		return value;
+	}
+
+	private static class Step {
+
+		private ImageOperation mOperation;
+		private ParamAsker mParams;
+
+		public Step(ImageOperation operation, ParamAsker params) {
+			mOperation = operation;
+			mParams = params;
+		}
+	}
+}
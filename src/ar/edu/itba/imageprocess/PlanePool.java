@@ -0,0 +1,149 @@
+package ar.edu.itba.imageprocess;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the channel planes that are no longer used, so the filters and the
+ * images can reuse them instead of allocating new ones, which in a chain of
+ * operations means gigabytes of short lived garbage. The planes are kept in
+ * buckets by size, and the least recently used buckets are dropped when the
+ * planes go over the memory budget.
+ * <p>
+ * A plane is given back only by the code that acquired it, once, and only
+ * when nothing else can reach it: the filters give back the planes they
+ * computed once the Image has copied them, and only the images that never
+ * left the code that created them are recycled, like the images computed in
+ * between by a Pipeline. The images shown or kept in a history are never
+ * recycled, so they never share a plane. An acquired plane keeps the values
+ * it had, it must be completely written before being read
+ */
+public class PlanePool {
+
+	/** the memory budget of the pool in MB, 0 disables it */
+	public static final String MEMORY_PROPERTY = "imageprocess.pool.mb";
+
+	private static PlanePool sDefault;
+
+	private long mMemoryBudget;
+	private long mMemoryUsed;
+	private LinkedHashMap<Long, ArrayDeque<int[][]>> mBuckets;
+	private int mHits;
+	private int mMisses;
+
+	public PlanePool(long memoryBudget) {
+		mMemoryBudget = memoryBudget;
+		mMemoryUsed = 0;
+		// access ordered, so the first bucket is the least recently used one
+		mBuckets = new LinkedHashMap<Long, ArrayDeque<int[][]>>(16, 0.75f, true);
+	}
+
+	/**
+	 * The process wide pool, with a budget of an eighth of the heap unless
+	 * MEMORY_PROPERTY says otherwise
+	 */
+	public static synchronized PlanePool getDefault() {
+		if (sDefault == null) {
+			long budget = Long.getLong(MEMORY_PROPERTY, Runtime.getRuntime().maxMemory() / 8 / (1024 * 1024)) * 1024 * 1024;
+			sDefault = new PlanePool(budget);
+		}
+		return sDefault;
+	}
+
+	/**
+	 * @return a plane of that size from the default pool, see acquire
+	 */
+	public static int[][] obtain(int width, int height) {
+		return getDefault().acquire(width, height);
+	}
+
+	/**
+	 * Gives back planes to the default pool, see release
+	 */
+	public static void recycle(int[][]... planes) {
+		PlanePool pool = getDefault();
+		for (int[][] plane : planes) {
+			pool.release(plane);
+		}
+	}
+
+	/**
+	 * @return a plane that was given back, with any values, or a new one
+	 */
+	public synchronized int[][] acquire(int width, int height) {
+		ArrayDeque<int[][]> bucket = mBuckets.get(getKey(width, height));
+		if (bucket != null && !bucket.isEmpty()) {
+			mHits++;
+			mMemoryUsed -= getMemorySize(width, height);
+			return bucket.pop();
+		}
+		mMisses++;
+		return new int[width][height];
+	}
+
+	/**
+	 * Keeps the plane to be acquired again, if it fits in the budget. The
+	 * plane must not be used afterwards
+	 */
+	public synchronized void release(int[][] plane) {
+		if (plane == null || plane.length == 0) {
+			return;
+		}
+		int width = plane.length;
+		int height = plane[0].length;
+		long memorySize = getMemorySize(width, height);
+		if (memorySize > mMemoryBudget) {
+			return;
+		}
+		Long key = getKey(width, height);
+		ArrayDeque<int[][]> bucket = mBuckets.get(key);
+		if (bucket == null) {
+			bucket = new ArrayDeque<int[][]>();
+			mBuckets.put(key, bucket);
+		}
+		bucket.push(plane);
+		mMemoryUsed += memorySize;
+		// drop the planes of the sizes not used for the longest time, without
+		// get, which would reorder the buckets while iterating them
+		Iterator<Map.Entry<Long, ArrayDeque<int[][]>>> entries = mBuckets.entrySet().iterator();
+		while (mMemoryUsed > mMemoryBudget && entries.hasNext()) {
+			ArrayDeque<int[][]> planes = entries.next().getValue();
+			while (mMemoryUsed > mMemoryBudget && !planes.isEmpty()) {
+				int[][] dropped = planes.pop();
+				mMemoryUsed -= getMemorySize(dropped.length, dropped[0].length);
+			}
+			if (planes.isEmpty()) {
+				entries.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		mBuckets.clear();
+		mMemoryUsed = 0;
+	}
+
+	/**
+	 * @return the number of hits and misses of acquire
+	 */
+	public synchronized int[] getStats() {
+		return new int[] { mHits, mMisses };
+	}
+
+	public synchronized long getMemoryUsed() {
+		return mMemoryUsed;
+	}
+
+	private static Long getKey(int width, int height) {
+		return Long.valueOf(((long) width << 32) | height);
+	}
+
+	/**
+	 * The values plus the header of each column
+	 */
+	private static long getMemorySize(int width, int height) {
+		return (long) width * (4L * height + 16);
+	}
+}
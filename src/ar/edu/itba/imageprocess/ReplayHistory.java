@@ -0,0 +1,178 @@
+package ar.edu.itba.imageprocess;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import ar.edu.itba.imageprocess.utils.Log;
+import ar.edu.itba.imageprocess.utils.Progress;
+
+/**
+ * A history keeping only some of its images, the checkpoints, and the steps
+ * to compute the others again from the closest checkpoint before them. An
+ * image is kept when computing it again from the last checkpoint would cost
+ * more than the memory it takes, at a rate of BYTES_PER_MILLISECOND_PROPERTY
+ * bytes per millisecond, every CHECKPOINT_INTERVAL steps, and when it has no
+ * step. Point operations are cheap enough to be always computed again, they
+ * never need to be kept
+ */
+public class ReplayHistory implements History {
+
+	/** how many bytes of memory one millisecond of computation is worth */
+	public static final String BYTES_PER_MILLISECOND_PROPERTY = "imageprocess.history.bytesPerMs";
+	private static final long DEFAULT_BYTES_PER_MILLISECOND = 100 * 1024;
+	/** the most steps, besides point operations, between two checkpoints */
+	private static final int CHECKPOINT_INTERVAL = 10;
+
+	private List<Entry> mEntries;
+	private int mIndex;
+	private Image mCurrent;
+	private long mBytesPerMillisecond;
+
+	public ReplayHistory() {
+		this(Long.getLong(BYTES_PER_MILLISECOND_PROPERTY, DEFAULT_BYTES_PER_MILLISECOND));
+	}
+
+	public ReplayHistory(long bytesPerMillisecond) {
+		mEntries = new ArrayList<Entry>();
+		mIndex = -1;
+		mCurrent = null;
+		mBytesPerMillisecond = bytesPerMillisecond;
+	}
+
+	@Override
+	public synchronized void add(Image image, Step step) {
+		while (mEntries.size() > mIndex + 1) {
+			mEntries.remove(mEntries.size() - 1);
+		}
+		Entry entry = new Entry(step);
+		if (image == null || isCheckpoint(image, step)) {
+			entry.mCheckpoint = true;
+			entry.mImage = image;
+		}
+		mEntries.add(entry);
+		mIndex = mEntries.size() - 1;
+		mCurrent = image;
+	}
+
+	@Override
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	@Override
+	public synchronized int getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * Computes the image again from the closest checkpoint before it, or from
+	 * the current image if it's closer. The steps run without the lock, and
+	 * stop if the job calling this is cancelled
+	 *
+	 * @throws IOException if a step fails, or if the history was cut while
+	 *             the steps ran
+	 */
+	@Override
+	public Image moveTo(int index) throws IOException {
+		List<Step> steps = new ArrayList<Step>();
+		Entry target;
+		Image image;
+		synchronized (this) {
+			int start = index;
+			while (!mEntries.get(start).mCheckpoint) {
+				start--;
+			}
+			image = mEntries.get(start).mImage;
+			if (mIndex > start && mIndex <= index) {
+				start = mIndex;
+				image = mCurrent;
+			}
+			for (int i = start + 1; i <= index; i++) {
+				steps.add(mEntries.get(i).mStep);
+			}
+			target = mEntries.get(index);
+		}
+		long begin = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < steps.size(); i++) {
+				Progress.update(i, steps.size());
+				image = steps.get(i).apply(image);
+			}
+		} catch (CancellationException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new IOException("couldn't compute the image again", e);
+		}
+		if (!steps.isEmpty()) {
+			Log.d("replayed " + steps.size() + " step(s) in " + (System.currentTimeMillis() - begin) + "ms");
+		}
+		synchronized (this) {
+			if (index >= mEntries.size() || mEntries.get(index) != target) {
+				throw new IOException("the history changed while computing the image");
+			}
+			mIndex = index;
+			mCurrent = image;
+		}
+		return image;
+	}
+
+	@Override
+	public synchronized long getMemoryUsed() {
+		long memory = 0;
+		for (int i = 0; i < mEntries.size(); i++) {
+			Entry entry = mEntries.get(i);
+			if (entry.mImage != null) {
+				memory += entry.mImage.getMemorySize();
+			}
+		}
+		if (mCurrent != null && !mEntries.get(mIndex).mCheckpoint) {
+			memory += mCurrent.getMemorySize();
+		}
+		return memory;
+	}
+
+	@Override
+	public synchronized void close() {
+		mEntries.clear();
+		mIndex = -1;
+		mCurrent = null;
+	}
+
+	/**
+	 * The cost model: keeping the image costs its memory, not keeping it costs
+	 * the time to compute it again from the last checkpoint
+	 */
+	private boolean isCheckpoint(Image image, Step step) {
+		if (step == null) {
+			return true;
+		}
+		if (step.isPointOperation()) {
+			return false;
+		}
+		long replayMillis = step.getMillis();
+		int steps = 1;
+		for (int i = mEntries.size() - 1; i >= 0 && !mEntries.get(i).mCheckpoint; i--) {
+			Step previous = mEntries.get(i).mStep;
+			if (!previous.isPointOperation()) {
+				replayMillis += previous.getMillis();
+				steps++;
+			}
+		}
+		return steps >= CHECKPOINT_INTERVAL || replayMillis * mBytesPerMillisecond >= image.getMemorySize();
+	}
+
+	private static class Entry {
+
+		private Step mStep;
+		private boolean mCheckpoint;
+		private Image mImage;
+
+		public Entry(Step step) {
+			mStep = step;
+			mCheckpoint = false;
+			mImage = null;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package ar.edu.itba.imageprocess;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import ar.edu.itba.imageprocess.utils.RowReader;
+import ar.edu.itba.imageprocess.utils.RowWriter;
+
+/**
+ * Applies a point or neighborhood operation to an image too big to be loaded
+ * at once. The image is read in horizontal strips, each strip is processed
+ * together with the halo rows above and below it that the operation needs,
+ * and the resulting rows are written before reading the next strip. Only the
+ * rows of the current strip and its halo are kept in memory, whatever the
+ * size of the image.
+ * 
+ * Since the Filters methods repeat the border pixels outside of the image,
+ * and the halo gives the real neighbors inside of it, the result is the same
+ * as processing the whole image. Operations depending on global values of the
+ * image (equalization, linear compression) can't be streamed.
+ */
+public class StripProcessor {
+
+	/** the memory budget of the strips in MB */
+	public static final String MEMORY_PROPERTY = "imageprocess.strips.mb";
+	public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+	/**
+	 * Bytes needed per pixel of a strip: the input rows, the channels and
+	 * buffered image of the input and output images
+	 */
+	private static final int BYTES_PER_PIXEL = 4 * (3 + 4 + 4);
+
+	/**
+	 * Processes the image with strips as tall as the default memory budget
+	 * allows
+	 * 
+	 * @param halo the number of rows above and below a pixel the function
+	 *            needs, see Filters.getMaskHalo
+	 */
+	public static void process(RowReader reader, RowWriter writer, ImageFunction function, int halo) throws IOException {
+		process(reader, writer, function, halo, getStripHeight(reader.getWidth(), halo, getMemoryBudget()));
+	}
+
+	public static void process(RowReader reader, RowWriter writer, ImageFunction function, int halo, int stripHeight) throws IOException {
+		int width = reader.getWidth();
+		int height = reader.getHeight();
+		int channels = reader.getChannels();
+
+		// the rows currently loaded, starting at row windowStart
+		ArrayDeque<int[][]> window = new ArrayDeque<int[][]>();
+		ArrayList<int[][]> spareRows = new ArrayList<int[][]>();
+		int windowStart = 0;
+		int[][] outputRow = new int[3][width];
+
+		try {
+			for (int stripStart = 0; stripStart < height; stripStart += stripHeight) {
+				int stripEnd = Math.min(height, stripStart + stripHeight);
+				int first = Math.max(0, stripStart - halo);
+				int last = Math.min(height, stripEnd + halo);
+
+				// drop the rows that aren't needed anymore
+				while (windowStart < first) {
+					spareRows.add(window.removeFirst());
+					windowStart++;
+				}
+
+				// and read the new ones
+				while (windowStart + window.size() < last) {
+					int[][] row = spareRows.isEmpty() ? new int[channels][width] : spareRows.remove(spareRows.size() - 1);
+					reader.readRow(row);
+					window.addLast(row);
+				}
+
+				// process the strip with its halo
+				Image output = function.apply(toImage(window, width, channels));
+				if (output == null || output.getWidth() != width || output.getHeight() != last - first) {
+					throw new IOException("the function must keep the size of the image");
+				}
+
+				// and write only the rows of the strip
+				for (int y = stripStart - first; y < stripEnd - first; y++) {
+					for (int x = 0; x < width; x++) {
+						outputRow[0][x] = output.getRedChannel()[x][y];
+						outputRow[1][x] = output.getGreenChannel()[x][y];
+						outputRow[2][x] = output.getBlueChannel()[x][y];
+					}
+					writer.writeRow(outputRow);
+				}
+			}
+			writer.finish();
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the budget given by MEMORY_PROPERTY, or the default one
+	 */
+	public static long getMemoryBudget() {
+		return Long.getLong(MEMORY_PROPERTY, DEFAULT_MEMORY_BUDGET / (1024 * 1024)) * 1024 * 1024;
+	}
+
+	/**
+	 * @return true if a strip of a single row with its halo fits in the
+	 *         budget, otherwise the image is too wide to be streamed by strips
+	 */
+	public static boolean fits(int width, int halo, long memoryBudget) {
+		return (long) width * (1 + 2 * halo) * BYTES_PER_PIXEL <= memoryBudget;
+	}
+
+	/**
+	 * @return the height of the strips that keeps the memory used under the
+	 *         budget, at least one row
+	 */
+	public static int getStripHeight(int width, int halo, long memoryBudget) {
+		long rows = memoryBudget / ((long) width * BYTES_PER_PIXEL);
+		return (int) Math.max(1, rows - 2 * halo);
+	}
+
+	private static Image toImage(ArrayDeque<int[][]> rows, int width, int channels) {
+		int height = rows.size();
+		int[][][] planes = new int[channels][width][height];
+		Iterator<int[][]> it = rows.iterator();
+		for (int y = 0; y < height; y++) {
+			int[][] row = it.next();
+			for (int c = 0; c < channels; c++) {
+				int[][] plane = planes[c];
+				int[] samples = row[c];
+				for (int x = 0; x < width; x++) {
+					plane[x][y] = samples[x];
+				}
+			}
+		}
+		if (channels == 1) {
+			return new Image(planes[0]);
+		} else {
+			return new Image(planes[0], planes[1], planes[2]);
+		}
+	}
+}
@@ -0,0 +1,731 @@
+package ar.edu.itba.imageprocess.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ar.edu.itba.imageprocess.BatchProcessor;
+import ar.edu.itba.imageprocess.ImageProcess;
+import ar.edu.itba.imageprocess.Pipeline;
+import ar.edu.itba.imageprocess.utils.DaemonThreadFactory;
+import ar.edu.itba.imageprocess.utils.FileUtils;
+import ar.edu.itba.imageprocess.utils.PixmapWriter;
+import ar.edu.itba.imageprocess.utils.RawFormat;
+
+/**
+ * Shares the files of a batch among worker processes, on this machine or on
+ * others, see Worker:
+ *
+ * <pre>
+ * ImageProcess -coordinator &lt;operation&gt; [param=value ...] [options] &lt;file or directory&gt; ...
+ * ImageProcess -coordinator -p &lt;pipeline file&gt; [options] &lt;file or directory&gt; ...
+ * </pre>
+ *
+ * Each worker thread has its own connection and asks for the next file when
+ * it's done with the previous one, so the faster workers take more files and
+ * nothing has to be balanced in advance. The files are sent over the
+ * connections and the results written by the coordinator, so the workers
+ * don't need to share a file system. A file whose worker fails, disconnects
+ * or takes longer than the timeout is given to another worker, up to the
+ * retries. Once no file is left, the idle workers also take a copy of the
+ * files taking much longer than the average, and the first result is kept, so
+ * a slow worker doesn't hold back the end of the batch. The time spent
+ * reading, processing and writing each file on its worker is reported, and
+ * summed by worker at the end.
+ * <p>
+ * The protocol is a stream of big endian ints, strings as written by
+ * DataOutputStream.writeUTF, and files as their length followed by their
+ * bytes. The worker sends the protocol version and its name, and gets the
+ * pipeline name and contents, the range policy and the raw format. Then it
+ * sends TAKE and gets either DONE, or FILE with the id, the name, the output
+ * extension and the file, and answers RESULT with the id, the read, process
+ * and write milliseconds and the result file, or FAILED with the id and the
+ * error.
+ * <p>
+ * The coordinator listens on the loopback interface unless -bind gives
+ * another address, such as 0.0.0.0 for the workers of other machines. The
+ * lengths read from the connections are checked before anything is
+ * allocated. If the local workers all exit while no worker is connected, the
+ * files left fail instead of waiting forever
+ */
+public class Coordinator {
+
+	public static final String USAGE = "usage: ImageProcess -coordinator <operation> [param=value ...] [options] <file or directory> ...\n" //
+			+ "       ImageProcess -coordinator -p <pipeline file> [options] <file or directory> ...\n" //
+			+ "options:\n" //
+			+ "  -port <port>    port the workers connect to, 7070 by default\n" //
+			+ "  -bind <address> address listened to, the loopback by default\n" //
+			+ "  -w <workers>    worker processes started on this machine, none by default\n" //
+			+ "  -j <threads>    files processed at the same time by each of those workers\n" //
+			+ "  -retries <n>    times a failed file is given to another worker, 2 by default\n" //
+			+ "  -t <timeout s>  time a worker can take for a file, 300 by default\n" //
+			+ "  -o, -f, -r, -raw as in a batch";
+
+	static final int PROTOCOL_VERSION = 1;
+	static final int MESSAGE_TAKE = 1;
+	static final int MESSAGE_FILE = 2;
+	static final int MESSAGE_DONE = 3;
+	static final int MESSAGE_RESULT = 4;
+	static final int MESSAGE_FAILED = 5;
+
+	static final int DEFAULT_PORT = 7070;
+	private static final int DEFAULT_RETRIES = 2;
+	private static final long DEFAULT_TIMEOUT = 300;
+	// a file is copied once it takes this many times the average, and at
+	// least the minimum
+	private static final int BACKUP_FACTOR = 3;
+	private static final long MIN_BACKUP_TIME = 1000;
+	private static final long BACKUP_CHECK_INTERVAL = 100;
+	private static final long WORKERS_EXIT_TIMEOUT = 5000;
+	/** the biggest file or result sent over a connection */
+	static final int MAX_FILE_SIZE = 512 * 1024 * 1024;
+
+	private Pipeline mPipeline;
+	private List<File> mFiles;
+	private File mOutputDirectory;
+	private String mOutputFormat;
+	private int mRangePolicy;
+	private String mRawFormat;
+	private int mPort;
+	private String mBindAddress;
+	private int mLocalWorkers;
+	private int mLocalThreads;
+	private int mRetries;
+	private long mTimeout;
+	private PrintStream mOut;
+
+	private ServerSocket mServerSocket;
+	private ExecutorService mConnections;
+	private List<Process> mProcesses;
+
+	// all guarded by mQueue
+	private LinkedList<Task> mQueue;
+	private LinkedHashSet<Task> mRunning;
+	private int mRemaining;
+	private int mConnected;
+	private int mFailures;
+	private int mRetried;
+	private int mBackups;
+	private long mRoundTripTotal;
+	private List<Long> mRoundTrips;
+	private Map<String, WorkerStats> mWorkerStats;
+
+	public Coordinator(Pipeline pipeline, List<File> files) {
+		mPipeline = pipeline;
+		mFiles = files;
+		mOutputDirectory = new File(".");
+		mOutputFormat = null;
+		mRangePolicy = PixmapWriter.RANGE_CLAMP;
+		mRawFormat = null;
+		mPort = DEFAULT_PORT;
+		mBindAddress = null;
+		mLocalWorkers = 0;
+		mLocalThreads = 0;
+		mRetries = DEFAULT_RETRIES;
+		mTimeout = DEFAULT_TIMEOUT;
+		mOut = System.out;
+		mConnections = Executors.newCachedThreadPool(new DaemonThreadFactory("coordinator"));
+		mProcesses = new ArrayList<Process>();
+		mQueue = new LinkedList<Task>();
+		mRunning = new LinkedHashSet<Task>();
+		mRoundTrips = new ArrayList<Long>();
+		mWorkerStats = new LinkedHashMap<String, WorkerStats>();
+	}
+
+	/**
+	 * Parses the command line and runs the batch
+	 *
+	 * @return the exit code: 0 if all the files were processed, 1 if some
+	 *         failed, 2 if the command line is wrong
+	 */
+	public static int run(String[] args) {
+		if (args.length < 2) {
+			System.err.println(USAGE);
+			return 2;
+		}
+		List<String> options = new ArrayList<String>();
+		List<String> paths = new ArrayList<String>();
+		Pipeline pipeline = BatchProcessor.parsePipeline(args, 1, options, paths);
+		if (pipeline == null) {
+			return 2;
+		}
+		Coordinator coordinator = new Coordinator(pipeline, BatchProcessor.findFiles(paths));
+		for (int i = 0; i < options.size(); i++) {
+			String option = options.get(i);
+			if (option.equals("-s")) {
+				System.err.println("the files can't be streamed to the workers\n" + USAGE);
+				return 2;
+			}
+			String value = options.get(++i);
+			try {
+				if (option.equals("-port")) {
+					coordinator.mPort = Integer.parseInt(value);
+				} else if (option.equals("-bind")) {
+					coordinator.mBindAddress = value;
+				} else if (option.equals("-w")) {
+					coordinator.mLocalWorkers = Math.max(0, Integer.parseInt(value));
+				} else if (option.equals("-j")) {
+					coordinator.mLocalThreads = Math.max(1, Integer.parseInt(value));
+				} else if (option.equals("-retries")) {
+					coordinator.mRetries = Math.max(0, Integer.parseInt(value));
+				} else if (option.equals("-t")) {
+					coordinator.mTimeout = Math.max(1, Long.parseLong(value));
+				} else if (option.equals("-o")) {
+					coordinator.mOutputDirectory = new File(value);
+				} else if (option.equals("-f")) {
+					coordinator.mOutputFormat = value.toLowerCase();
+				} else if (option.equals("-r")) {
+					coordinator.mRangePolicy = Integer.parseInt(value);
+					if (coordinator.mRangePolicy < PixmapWriter.RANGE_CLAMP || coordinator.mRangePolicy > PixmapWriter.RANGE_16BIT) {
+						System.err.println("-r must be in the range [1, 3]");
+						return 2;
+					}
+				} else if (option.equals("-raw")) {
+					if (RawFormat.parse(value) == null) {
+						System.err.println("invalid raw format " + value);
+						return 2;
+					}
+					// the workers parse it again
+					coordinator.mRawFormat = value;
+				} else {
+					System.err.println("unknown option " + option + "\n" + USAGE);
+					return 2;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println(option + " must be an integer");
+				return 2;
+			}
+		}
+		if (coordinator.mFiles.isEmpty()) {
+			System.err.println("no image files given");
+			return 2;
+		}
+		String collision = BatchProcessor.findCollision(coordinator.mFiles, coordinator.mOutputDirectory, coordinator.mOutputFormat, pipeline.getName());
+		if (collision != null) {
+			System.err.println(collision);
+			return 2;
+		}
+		if (!coordinator.mOutputDirectory.isDirectory() && !coordinator.mOutputDirectory.mkdirs()) {
+			System.err.println("couldn't create " + coordinator.mOutputDirectory);
+			return 2;
+		}
+		try {
+			return coordinator.process() ? 0 : 1;
+		} catch (IOException e) {
+			System.err.println("couldn't start the coordinator " + e.getMessage());
+			return 1;
+		}
+	}
+
+	/**
+	 * Listens for the workers, starts the local ones, and waits until all the
+	 * files are processed or failed
+	 *
+	 * @return true if all the files were processed
+	 */
+	public boolean process() throws IOException {
+		long start = System.currentTimeMillis();
+		synchronized (mQueue) {
+			for (int i = 0; i < mFiles.size(); i++) {
+				File file = mFiles.get(i);
+				mQueue.add(new Task(i, file, BatchProcessor.getOutputFile(file, mOutputDirectory, mOutputFormat, mPipeline.getName())));
+			}
+			mRemaining = mQueue.size();
+		}
+		InetAddress address = mBindAddress != null ? InetAddress.getByName(mBindAddress) : InetAddress.getLoopbackAddress();
+		mServerSocket = new ServerSocket(mPort, 0, address);
+		Thread acceptor = new Thread("coordinator-accept") {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		report(mFiles.size() + " file(s), waiting for workers on " + address.getHostAddress() + ":" + mServerSocket.getLocalPort());
+		long elapsed;
+		try {
+			startLocalWorkers();
+			synchronized (mQueue) {
+				while (mRemaining > 0) {
+					if (mConnected == 0 && !mProcesses.isEmpty() && !isAnyLocalWorkerAlive()) {
+						failRemaining("no worker left");
+						break;
+					}
+					// the processes can exit without any notification
+					mQueue.wait(mProcesses.isEmpty() ? 0 : BACKUP_CHECK_INTERVAL);
+				}
+			}
+			elapsed = System.currentTimeMillis() - start;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			FileUtils.closeQuietly(mServerSocket);
+			stopConnections();
+			stopLocalWorkers();
+		}
+		report(getSummary(elapsed));
+		synchronized (mQueue) {
+			return mFailures == 0;
+		}
+	}
+
+	/**
+	 * @return the port the workers connect to, the one chosen if it was 0
+	 */
+	public int getPort() {
+		return mServerSocket != null ? mServerSocket.getLocalPort() : mPort;
+	}
+
+	/**
+	 * @return the totals of the batch, and the time spent on the files by
+	 *         each worker
+	 */
+	public String getSummary(long elapsed) {
+		synchronized (mQueue) {
+			StringBuilder summary = new StringBuilder();
+			summary.append(mFiles.size() + " file(s), " + mFailures + " failed, " + mRetried + " retried, " + mBackups + " copied, " + elapsed + "ms");
+			for (Map.Entry<String, WorkerStats> entry : mWorkerStats.entrySet()) {
+				WorkerStats stats = entry.getValue();
+				summary.append("\n  " + entry.getKey() + ": " + stats.mFiles + " file(s), read " + stats.mRead + "ms, process " + stats.mProcess + "ms, write " + stats.mWrite + "ms");
+			}
+			if (!mRoundTrips.isEmpty()) {
+				List<Long> roundTrips = new ArrayList<Long>(mRoundTrips);
+				Collections.sort(roundTrips);
+				summary.append("\n  round trip p50 " + getPercentile(roundTrips, 50) + "ms p90 " + getPercentile(roundTrips, 90) + "ms max " + roundTrips.get(roundTrips.size() - 1) + "ms");
+			}
+			return summary.toString();
+		}
+	}
+
+	private static long getPercentile(List<Long> values, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * values.size()) - 1;
+		return values.get(Math.max(0, index));
+	}
+
+	private boolean isAnyLocalWorkerAlive() {
+		for (Process process : mProcesses) {
+			try {
+				process.exitValue();
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Fails the files that are neither done nor running, called with the lock
+	 * of mQueue held
+	 */
+	private void failRemaining(String error) {
+		for (Task task : mQueue) {
+			task.mDone = true;
+			mRemaining--;
+			mFailures++;
+			report(task.mFile.getPath() + " failed: " + error);
+		}
+		mQueue.clear();
+		mQueue.notifyAll();
+	}
+
+	/**
+	 * Reads a file sent as its length followed by its bytes, checking the
+	 * length before allocating it
+	 */
+	static byte[] readFile(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FILE_SIZE) {
+			throw new IOException("invalid file length " + length);
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
+	private void acceptConnections() {
+		while (!mServerSocket.isClosed()) {
+			try {
+				final Socket socket = mServerSocket.accept();
+				mConnections.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (IOException e) {
+				// closed once the batch is done
+			}
+		}
+	}
+
+	/**
+	 * Starts the worker processes on this machine, with the same java and
+	 * classpath as this one
+	 */
+	private void startLocalWorkers() throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (int i = 0; i < mLocalWorkers; i++) {
+			List<String> command = new ArrayList<String>();
+			command.add(java);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(ImageProcess.class.getName());
+			command.add("-worker");
+			command.add(getLocalAddress() + ":" + getPort());
+			if (mLocalThreads > 0) {
+				command.add("-j");
+				command.add(String.valueOf(mLocalThreads));
+			}
+			mProcesses.add(new ProcessBuilder(command).inheritIO().start());
+		}
+	}
+
+	/**
+	 * @return the address the local workers connect to, the loopback if all
+	 *         the interfaces are listened to
+	 */
+	private String getLocalAddress() {
+		InetAddress address = mServerSocket.getInetAddress();
+		return (address.isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : address).getHostAddress();
+	}
+
+	/**
+	 * Gives the connections some time to send DONE to their workers, the ones
+	 * still running a copy of a file are cut
+	 */
+	private void stopConnections() {
+		mConnections.shutdown();
+		try {
+			if (!mConnections.awaitTermination(WORKERS_EXIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				mConnections.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			mConnections.shutdownNow();
+		}
+	}
+
+	/**
+	 * Gives the local workers some time to get DONE and exit, then kills them
+	 */
+	private void stopLocalWorkers() {
+		long deadline = System.currentTimeMillis() + WORKERS_EXIT_TIMEOUT;
+		for (Process process : mProcesses) {
+			while (true) {
+				try {
+					process.exitValue();
+					break;
+				} catch (IllegalThreadStateException e) {
+					// still running
+				}
+				if (System.currentTimeMillis() > deadline) {
+					process.destroy();
+					break;
+				}
+				try {
+					Thread.sleep(BACKUP_CHECK_INTERVAL);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					process.destroy();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Talks to a worker thread until there are no files left or the
+	 * connection fails, giving the file it had to another worker
+	 */
+	private void serve(Socket socket) {
+		String worker = String.valueOf(socket.getRemoteSocketAddress());
+		Task task = null;
+		String error = "connection closed";
+		synchronized (mQueue) {
+			mConnected++;
+		}
+		try {
+			socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, mTimeout * 1000));
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			int version = in.readInt();
+			if (version != PROTOCOL_VERSION) {
+				throw new IOException("protocol version " + version + " instead of " + PROTOCOL_VERSION);
+			}
+			worker = in.readUTF();
+			out.writeUTF(mPipeline.getName());
+			out.writeUTF(mPipeline.toString());
+			out.writeInt(mRangePolicy);
+			out.writeUTF(mRawFormat != null ? mRawFormat : "");
+			out.flush();
+			long sent = 0;
+			while (true) {
+				int message = in.readInt();
+				if (message == MESSAGE_TAKE) {
+					byte[] data = null;
+					while ((task = take()) != null && (data = FileUtils.readFileBytes(task.mFile)) == null) {
+						giveUp(task, "couldn't read the file");
+					}
+					if (task == null) {
+						out.writeInt(MESSAGE_DONE);
+						out.flush();
+						return;
+					}
+					out.writeInt(MESSAGE_FILE);
+					out.writeInt(task.mId);
+					out.writeUTF(task.mFile.getName());
+					out.writeUTF(FileUtils.getFileExtension(task.mOutput));
+					out.writeInt(data.length);
+					out.write(data);
+					out.flush();
+					sent = System.currentTimeMillis();
+				} else if (message == MESSAGE_RESULT) {
+					checkId(task, in.readInt());
+					int read = in.readInt();
+					int process = in.readInt();
+					int write = in.readInt();
+					byte[] result = readFile(in);
+					long roundTrip = System.currentTimeMillis() - sent;
+					Task done = task;
+					task = null;
+					if (claim(done)) {
+						complete(done, worker, result, read, process, write, roundTrip);
+					}
+				} else if (message == MESSAGE_FAILED) {
+					checkId(task, in.readInt());
+					String reason = in.readUTF();
+					Task failed = task;
+					task = null;
+					retry(failed, worker + ": " + reason);
+				} else {
+					throw new IOException("unexpected message " + message);
+				}
+			}
+		} catch (IOException e) {
+			error = worker + ": " + e;
+		} catch (InterruptedException e) {
+			error = "interrupted";
+		} catch (RuntimeException e) {
+			error = worker + ": " + e;
+		} catch (Error e) {
+			error = worker + ": " + e;
+			throw e;
+		} finally {
+			FileUtils.closeQuietly(socket);
+			// whatever ended the connection, the file goes to another worker
+			if (task != null) {
+				retry(task, error);
+			}
+			synchronized (mQueue) {
+				mConnected--;
+				mQueue.notifyAll();
+			}
+		}
+	}
+
+	private static void checkId(Task task, int id) throws IOException {
+		if (task == null || task.mId != id) {
+			throw new IOException("unexpected file " + id);
+		}
+	}
+
+	/**
+	 * Waits for a file in the queue, or a file taking much longer than the
+	 * others once the queue is empty
+	 *
+	 * @return the file, or null if all the files are done
+	 */
+	private Task take() throws InterruptedException {
+		synchronized (mQueue) {
+			while (mRemaining > 0) {
+				Task task = mQueue.poll();
+				if (task == null) {
+					task = findStraggler();
+				}
+				if (task != null) {
+					if (task.mCopies == 0) {
+						task.mStarted = System.currentTimeMillis();
+					}
+					task.mCopies++;
+					mRunning.add(task);
+					return task;
+				}
+				// check again for stragglers while some files are running
+				mQueue.wait(mRunning.isEmpty() ? 0 : BACKUP_CHECK_INTERVAL);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return the oldest running file taking longer than BACKUP_FACTOR times
+	 *         the average round trip, that wasn't copied yet, or null
+	 */
+	private Task findStraggler() {
+		if (mRoundTrips.isEmpty()) {
+			return null;
+		}
+		long threshold = Math.max(MIN_BACKUP_TIME, BACKUP_FACTOR * mRoundTripTotal / mRoundTrips.size());
+		long now = System.currentTimeMillis();
+		for (Task task : mRunning) {
+			if (!task.mCopied && now - task.mStarted > threshold) {
+				task.mCopied = true;
+				mBackups++;
+				return task;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if this is the first result of the file, the result of a
+	 *         copy that finishes later is dropped
+	 */
+	private boolean claim(Task task) {
+		synchronized (mQueue) {
+			task.mCopies--;
+			if (task.mDone) {
+				return false;
+			}
+			task.mDone = true;
+			mRunning.remove(task);
+			return true;
+		}
+	}
+
+	private void complete(Task task, String worker, byte[] result, int read, int process, int write, long roundTrip) {
+		String error = null;
+		try {
+			OutputStream out = new FileOutputStream(task.mOutput);
+			try {
+				out.write(result);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			error = e.toString();
+		}
+		synchronized (mQueue) {
+			mRemaining--;
+			if (error != null) {
+				mFailures++;
+			} else {
+				WorkerStats stats = mWorkerStats.get(worker);
+				if (stats == null) {
+					stats = new WorkerStats();
+					mWorkerStats.put(worker, stats);
+				}
+				stats.mFiles++;
+				stats.mRead += read;
+				stats.mProcess += process;
+				stats.mWrite += write;
+				mRoundTrips.add(Long.valueOf(roundTrip));
+				mRoundTripTotal += roundTrip;
+			}
+			mQueue.notifyAll();
+		}
+		if (error != null) {
+			report(task.mFile.getPath() + " failed: " + error);
+		} else {
+			report(task.mFile.getPath() + " -> " + task.mOutput.getPath() + ": read " + read + "ms, process " + process + "ms, write " + write + "ms, round trip " + roundTrip + "ms on " + worker);
+		}
+	}
+
+	/**
+	 * Gives the file to another worker, unless it failed too many times or
+	 * another copy of it is still running
+	 */
+	private void retry(Task task, String error) {
+		String message;
+		synchronized (mQueue) {
+			task.mCopies--;
+			if (task.mDone || task.mCopies > 0) {
+				return;
+			}
+			mRunning.remove(task);
+			task.mAttempts++;
+			if (task.mAttempts > mRetries) {
+				task.mDone = true;
+				mRemaining--;
+				mFailures++;
+				message = task.mFile.getPath() + " failed: " + error;
+			} else {
+				mRetried++;
+				task.mCopied = false;
+				mQueue.add(task);
+				message = task.mFile.getPath() + " will be retried: " + error;
+			}
+			mQueue.notifyAll();
+		}
+		report(message);
+	}
+
+	/**
+	 * Fails a file that was taken, without retrying it
+	 */
+	private void giveUp(Task task, String error) {
+		synchronized (mQueue) {
+			task.mCopies--;
+			mRunning.remove(task);
+			task.mDone = true;
+			mRemaining--;
+			mFailures++;
+			mQueue.notifyAll();
+		}
+		report(task.mFile.getPath() + " failed: " + error);
+	}
+
+	private void report(String message) {
+		synchronized (mOut) {
+			mOut.println(message);
+		}
+	}
+
+	private static class Task {
+
+		private int mId;
+		private File mFile;
+		private File mOutput;
+		private int mAttempts;
+		private int mCopies;
+		private boolean mCopied;
+		private boolean mDone;
+		private long mStarted;
+
+		public Task(int id, File file, File output) {
+			mId = id;
+			mFile = file;
+			mOutput = output;
+		}
+	}
+
+	private static class WorkerStats {
+
+		private int mFiles;
+		private long mRead;
+		private long mProcess;
+		private long mWrite;
+	}
+}
@@ -0,0 +1,279 @@
+package ar.edu.itba.imageprocess.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ar.edu.itba.imageprocess.Image;
+import ar.edu.itba.imageprocess.ImageLoader;
+import ar.edu.itba.imageprocess.Pipeline;
+import ar.edu.itba.imageprocess.utils.FileUtils;
+import ar.edu.itba.imageprocess.utils.RawFormat;
+
+/**
+ * Processes files for a Coordinator, on the same machine or another one:
+ *
+ * <pre>
+ * ImageProcess -worker &lt;host&gt;:&lt;port&gt; [-j &lt;threads&gt;]
+ * </pre>
+ *
+ * Each thread has its own connection, and asks for the next file as soon as
+ * it's done with the previous one, until the coordinator has no files left.
+ * The files are decoded and encoded through a temporary directory, as in a
+ * batch. A worker keeps trying to connect for a while, so it can be started
+ * before the coordinator
+ */
+public class Worker {
+
+	public static final String USAGE = "usage: ImageProcess -worker <host>:<port> [-j <threads>]";
+
+	private static final int CONNECT_ATTEMPTS = 30;
+	private static final long CONNECT_DELAY = 1000;
+
+	private String mHost;
+	private int mPort;
+	private int mThreads;
+	private String mName;
+	private AtomicInteger mProcessed;
+	private AtomicInteger mFailures;
+
+	public Worker(String host, int port, int threads) {
+		mHost = host;
+		mPort = port;
+		mThreads = threads;
+		// pid@host
+		mName = ManagementFactory.getRuntimeMXBean().getName();
+		mProcessed = new AtomicInteger();
+		mFailures = new AtomicInteger();
+	}
+
+	/**
+	 * Parses the command line and works until the coordinator is done
+	 *
+	 * @return the exit code: 0 if all the connections ended normally, 1 if
+	 *         some failed, 2 if the command line is wrong
+	 */
+	public static int run(String[] args) {
+		if (args.length < 2 || args[1].lastIndexOf(':') <= 0) {
+			System.err.println(USAGE);
+			return 2;
+		}
+		String address = args[1];
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		int port;
+		try {
+			port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+			for (int i = 2; i < args.length; i++) {
+				if (args[i].equals("-j") && i + 1 < args.length) {
+					threads = Math.max(1, Integer.parseInt(args[++i]));
+				} else {
+					System.err.println("unknown option " + args[i] + "\n" + USAGE);
+					return 2;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("the port and -j must be integers");
+			return 2;
+		}
+		Worker worker = new Worker(address.substring(0, address.lastIndexOf(':')), port, threads);
+		worker.work();
+		return worker.mFailures.get() == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Runs the connections and waits for them to end
+	 */
+	public void work() {
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < mThreads; i++) {
+			Thread thread = new Thread("worker-" + (i + 1)) {
+				@Override
+				public void run() {
+					runConnection();
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the files processed so far
+	 */
+	public int getProcessed() {
+		return mProcessed.get();
+	}
+
+	/**
+	 * Takes files until the coordinator is done. All the threads send the same
+	 * name, so the coordinator sums the times of the process
+	 */
+	private void runConnection() {
+		Socket socket = connect();
+		if (socket == null) {
+			mFailures.incrementAndGet();
+			System.err.println("couldn't connect to " + mHost + ":" + mPort);
+			return;
+		}
+		File directory = null;
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(Coordinator.PROTOCOL_VERSION);
+			out.writeUTF(mName);
+			out.flush();
+			String pipelineName = in.readUTF();
+			Pipeline pipeline = Pipeline.parse(pipelineName, in.readUTF());
+			int rangePolicy = in.readInt();
+			String rawSpec = in.readUTF();
+			RawFormat rawFormat = rawSpec.length() > 0 ? RawFormat.parse(rawSpec) : null;
+			directory = createDirectory();
+			while (true) {
+				out.writeInt(Coordinator.MESSAGE_TAKE);
+				out.flush();
+				int message = in.readInt();
+				if (message == Coordinator.MESSAGE_DONE) {
+					return;
+				} else if (message != Coordinator.MESSAGE_FILE) {
+					throw new IOException("unexpected message " + message);
+				}
+				int id = in.readInt();
+				// only the name, never a path from the other side
+				File input = new File(directory, new File(in.readUTF()).getName());
+				File output = new File(directory, id + "-result." + in.readUTF());
+				byte[] data = Coordinator.readFile(in);
+				try {
+					processFile(id, data, input, output, pipeline, rawFormat, rangePolicy, out);
+				} finally {
+					input.delete();
+					output.delete();
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			mFailures.incrementAndGet();
+			System.err.println(mName + ": " + e);
+		} catch (RuntimeException e) {
+			// a pipeline or raw format this version doesn't understand
+			mFailures.incrementAndGet();
+			System.err.println(mName + ": " + e);
+		} finally {
+			FileUtils.closeQuietly(socket);
+			if (directory != null) {
+				directory.delete();
+			}
+		}
+	}
+
+	/**
+	 * Processes a file as a batch does, and sends its result, or the error if
+	 * it couldn't be processed
+	 *
+	 * @throws IOException only if the connection fails
+	 */
+	private void processFile(int id, byte[] data, File input, File output, Pipeline pipeline, RawFormat rawFormat, int rangePolicy, DataOutputStream out) throws IOException {
+		byte[] result;
+		long start, decoded, processed, written;
+		try {
+			start = System.currentTimeMillis();
+			writeFile(input, data);
+			Image image = ImageLoader.decode(input, rawFormat);
+			if (image == null) {
+				throw new IOException("unsupported format");
+			}
+			decoded = System.currentTimeMillis();
+			Image resultImage = pipeline.apply(image);
+			processed = System.currentTimeMillis();
+			if (!ImageLoader.encode(resultImage, output, rangePolicy)) {
+				throw new IOException("unsupported output format " + FileUtils.getFileExtension(output));
+			}
+			result = FileUtils.readFileBytes(output);
+			if (result == null) {
+				throw new IOException("couldn't read the result");
+			}
+			written = System.currentTimeMillis();
+			// nothing else has them, the next files can reuse their channels
+			if (resultImage != image) {
+				resultImage.recycle();
+			}
+			image.recycle();
+		} catch (Exception e) {
+			sendFailure(id, e.toString(), out);
+			return;
+		} catch (OutOfMemoryError e) {
+			// another worker may have more memory
+			sendFailure(id, e.toString(), out);
+			return;
+		}
+		out.writeInt(Coordinator.MESSAGE_RESULT);
+		out.writeInt(id);
+		out.writeInt((int) (decoded - start));
+		out.writeInt((int) (processed - decoded));
+		out.writeInt((int) (written - processed));
+		out.writeInt(result.length);
+		out.write(result);
+		mProcessed.incrementAndGet();
+	}
+
+	private static void sendFailure(int id, String error, DataOutputStream out) throws IOException {
+		out.writeInt(Coordinator.MESSAGE_FAILED);
+		out.writeInt(id);
+		out.writeUTF(error);
+	}
+
+	/**
+	 * @return the connection to the coordinator, or null if it doesn't
+	 *         answer after all the attempts
+	 */
+	private Socket connect() {
+		for (int i = 0; i < CONNECT_ATTEMPTS; i++) {
+			try {
+				return new Socket(mHost, mPort);
+			} catch (IOException e) {
+				try {
+					Thread.sleep(CONNECT_DELAY);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static File createDirectory() throws IOException {
+		File directory = File.createTempFile("imageprocess", "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("couldn't create a temporary directory");
+		}
+		return directory;
+	}
+
+	private static void writeFile(File file, byte[] data) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
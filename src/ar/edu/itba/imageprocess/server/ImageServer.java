@@ -0,0 +1,650 @@
+package ar.edu.itba.imageprocess.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import ar.edu.itba.imageprocess.Image;
+import ar.edu.itba.imageprocess.ImageOperation;
+import ar.edu.itba.imageprocess.Operations;
+import ar.edu.itba.imageprocess.ParamAsker;
+import ar.edu.itba.imageprocess.ParamAsker.Param;
+import ar.edu.itba.imageprocess.Pipeline;
+import ar.edu.itba.imageprocess.utils.DaemonThreadFactory;
+import ar.edu.itba.imageprocess.utils.Log;
+import ar.edu.itba.imageprocess.utils.Progress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the operations over HTTP, without any window:
+ *
+ * <pre>
+ * POST /process?operation=median-mask&amp;width=5&amp;height=5&amp;format=png
+ * POST /process?pipeline=&lt;pipeline file contents, url encoded&gt;
+ * GET  /operations
+ * GET  /stats
+ * </pre>
+ *
+ * The body of a POST is an image in a format ImageIO reads, and the result is
+ * streamed back in the format asked, png by default, while it is encoded.
+ * <p>
+ * The requests go through two stages: the http threads read and decode the
+ * images and encode the results, and the workers apply the pipelines. Only
+ * queue requests can wait or run at a time, the others get 429 right away,
+ * before their image is even read, so a burst never piles up in memory. The
+ * requests with the same pipeline waiting together are taken as a single
+ * batch by a worker, for up to the batch window, and the same image sent
+ * several times in a batch is processed only once.
+ * <p>
+ * The bodies bigger than the body limit get 413, and so do the images with
+ * more pixels than the pixel limit, which is checked before they are decoded.
+ * A body that can't be decoded gets 400, or 415 if no reader knows its format
+ */
+public class ImageServer {
+
+	public static final String USAGE = "usage: ImageProcess -server [-port <port>] [-j <workers>] [-q <queue>] [-b <batch size>] [-w <batch window ms>] [-t <timeout s>] [-m <max body MB>] [-px <max megapixels>]";
+
+	private static final int DEFAULT_PORT = 8080;
+	private static final int DEFAULT_QUEUE = 64;
+	private static final int DEFAULT_BATCH_SIZE = 8;
+	private static final long DEFAULT_BATCH_WINDOW = 5;
+	private static final long DEFAULT_TIMEOUT = 60;
+	private static final String DEFAULT_FORMAT = "png";
+	private static final long DEFAULT_MAX_BODY = 64;
+	private static final long DEFAULT_MAX_PIXELS = 64;
+
+	private int mPort;
+	private int mWorkers;
+	private int mBatchSize;
+	private long mBatchWindow;
+	private long mTimeout;
+	private long mMaxBody;
+	private long mMaxPixels;
+	private Semaphore mSlots;
+	private LinkedHashMap<String, List<Request>> mPending;
+	private HttpServer mServer;
+	private ExecutorService mHttpThreads;
+	private ExecutorService mWorkerThreads;
+	private CountDownLatch mStopped;
+	private volatile boolean mStopping;
+
+	private AtomicLong mAccepted;
+	private AtomicLong mRejected;
+	private AtomicLong mFailed;
+	private AtomicLong mBatches;
+	private AtomicLong mDeduplicated;
+
+	/**
+	 * @param port the port to listen to, 0 for any free port
+	 * @param workers the requests processed at the same time
+	 * @param queue the requests that can wait or run at the same time
+	 * @param batchSize the most requests in a batch
+	 * @param batchWindow the milliseconds a request can wait for others with
+	 *            the same pipeline
+	 * @param timeout the seconds a request can wait for its result
+	 */
+	public ImageServer(int port, int workers, int queue, int batchSize, long batchWindow, long timeout) {
+		mPort = port;
+		mWorkers = workers;
+		mBatchSize = batchSize;
+		mBatchWindow = batchWindow;
+		mTimeout = timeout;
+		mMaxBody = DEFAULT_MAX_BODY * 1024 * 1024;
+		mMaxPixels = DEFAULT_MAX_PIXELS * 1000 * 1000;
+		mSlots = new Semaphore(queue);
+		mPending = new LinkedHashMap<String, List<Request>>();
+		mStopped = new CountDownLatch(1);
+		mAccepted = new AtomicLong();
+		mRejected = new AtomicLong();
+		mFailed = new AtomicLong();
+		mBatches = new AtomicLong();
+		mDeduplicated = new AtomicLong();
+		// enough http threads for the requests in the queue, and a few more
+		// to reject the others
+		mHttpThreads = Executors.newFixedThreadPool(queue + workers, new DaemonThreadFactory("http"));
+		mWorkerThreads = Executors.newFixedThreadPool(workers, new DaemonThreadFactory("server"));
+	}
+
+	/**
+	 * Parses the command line and serves until the process is stopped
+	 *
+	 * @return the exit code, 2 if the command line is wrong
+	 */
+	public static int run(String[] args) {
+		int port = DEFAULT_PORT;
+		int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+		int queue = DEFAULT_QUEUE;
+		int batchSize = DEFAULT_BATCH_SIZE;
+		long batchWindow = DEFAULT_BATCH_WINDOW;
+		long timeout = DEFAULT_TIMEOUT;
+		long maxBody = DEFAULT_MAX_BODY;
+		long maxPixels = DEFAULT_MAX_PIXELS;
+		for (int i = 1; i < args.length; i++) {
+			if (i + 1 == args.length) {
+				System.err.println("missing value for " + args[i] + "\n" + USAGE);
+				return 2;
+			}
+			String option = args[i];
+			String value = args[++i];
+			try {
+				if (option.equals("-port")) {
+					port = Integer.parseInt(value);
+				} else if (option.equals("-j")) {
+					workers = Math.max(1, Integer.parseInt(value));
+				} else if (option.equals("-q")) {
+					queue = Math.max(1, Integer.parseInt(value));
+				} else if (option.equals("-b")) {
+					batchSize = Math.max(1, Integer.parseInt(value));
+				} else if (option.equals("-w")) {
+					batchWindow = Math.max(0, Long.parseLong(value));
+				} else if (option.equals("-t")) {
+					timeout = Math.max(1, Long.parseLong(value));
+				} else if (option.equals("-m")) {
+					maxBody = Math.max(1, Long.parseLong(value));
+				} else if (option.equals("-px")) {
+					maxPixels = Math.max(1, Long.parseLong(value));
+				} else {
+					System.err.println("unknown option " + option + "\n" + USAGE);
+					return 2;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println(option + " must be an integer");
+				return 2;
+			}
+		}
+		final ImageServer server = new ImageServer(port, workers, queue, batchSize, batchWindow, timeout);
+		server.setLimits(maxBody * 1024 * 1024, maxPixels * 1000 * 1000);
+		try {
+			server.start();
+		} catch (IOException e) {
+			System.err.println("couldn't start the server " + e.getMessage());
+			return 1;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.stop();
+			}
+		});
+		System.out.println("listening on port " + server.getPort() + ", " + workers + " worker(s), queue of " + queue);
+		server.await();
+		return 0;
+	}
+
+	/**
+	 * @param maxBody the most bytes of a request body
+	 * @param maxPixels the most pixels of a request image
+	 */
+	public void setLimits(long maxBody, long maxPixels) {
+		mMaxBody = maxBody;
+		mMaxPixels = maxPixels;
+	}
+
+	public void start() throws IOException {
+		// encode straight to the response, without a temporary file
+		ImageIO.setUseCache(false);
+		mServer = HttpServer.create(new InetSocketAddress(mPort), 0);
+		mServer.setExecutor(mHttpThreads);
+		mServer.createContext("/process", new ProcessHandler());
+		mServer.createContext("/operations", new OperationsHandler());
+		mServer.createContext("/stats", new StatsHandler());
+		for (int i = 0; i < mWorkers; i++) {
+			mWorkerThreads.execute(new Runnable() {
+				@Override
+				public void run() {
+					runWorker();
+				}
+			});
+		}
+		mServer.start();
+	}
+
+	/**
+	 * Stops accepting requests, and cancels the ones waiting
+	 */
+	public void stop() {
+		if (mStopping) {
+			return;
+		}
+		mStopping = true;
+		if (mServer != null) {
+			mServer.stop(0);
+		}
+		synchronized (mPending) {
+			for (List<Request> group : mPending.values()) {
+				for (Request request : group) {
+					request.mProgress.cancel();
+					request.mDone.countDown();
+				}
+			}
+			mPending.clear();
+			mPending.notifyAll();
+		}
+		mWorkerThreads.shutdownNow();
+		mHttpThreads.shutdownNow();
+		mStopped.countDown();
+	}
+
+	/**
+	 * Waits until the server is stopped
+	 */
+	public void await() {
+		try {
+			mStopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the port listened to, the one chosen if it was 0
+	 */
+	public int getPort() {
+		return mServer != null ? mServer.getAddress().getPort() : mPort;
+	}
+
+	/**
+	 * @return the counters shown by /stats
+	 */
+	public String getStats() {
+		return "accepted=" + mAccepted.get() + " rejected=" + mRejected.get() + " failed=" + mFailed.get() + " batches=" + mBatches.get() + " deduplicated=" + mDeduplicated.get();
+	}
+
+	private void enqueue(Request request) {
+		synchronized (mPending) {
+			List<Request> group = mPending.get(request.mKey);
+			if (group == null) {
+				group = new ArrayList<Request>();
+				mPending.put(request.mKey, group);
+			}
+			group.add(request);
+			mPending.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until the oldest group of requests is full or has waited for the
+	 * batch window, and takes it
+	 *
+	 * @return the requests, or null if the server is stopping
+	 */
+	private List<Request> takeBatch() throws InterruptedException {
+		synchronized (mPending) {
+			while (!mStopping) {
+				if (mPending.isEmpty()) {
+					mPending.wait();
+					continue;
+				}
+				Iterator<Map.Entry<String, List<Request>>> groups = mPending.entrySet().iterator();
+				Map.Entry<String, List<Request>> oldest = groups.next();
+				List<Request> group = oldest.getValue();
+				long wait = group.get(0).mQueued + mBatchWindow - System.currentTimeMillis();
+				if (group.size() < mBatchSize && wait > 0) {
+					mPending.wait(wait);
+					continue;
+				}
+				if (group.size() <= mBatchSize) {
+					groups.remove();
+					return group;
+				}
+				List<Request> batch = new ArrayList<Request>(group.subList(0, mBatchSize));
+				group.subList(0, mBatchSize).clear();
+				return batch;
+			}
+			return null;
+		}
+	}
+
+	private void runWorker() {
+		try {
+			List<Request> batch;
+			while ((batch = takeBatch()) != null) {
+				processBatch(batch);
+			}
+		} catch (InterruptedException e) {
+			// stopping
+		}
+	}
+
+	/**
+	 * Applies the pipeline of the batch to each image, computing the same
+	 * image only once. The images are recycled once the whole batch is done,
+	 * since the later images are compared with the earlier ones
+	 */
+	private void processBatch(List<Request> batch) {
+		mBatches.incrementAndGet();
+		Pipeline pipeline = batch.get(0).mPipeline;
+		// the first request computed for each hash
+		Map<Long, Request> computed = new HashMap<Long, Request>();
+		for (Request request : batch) {
+			Progress.bind(request.mProgress);
+			try {
+				request.mProgress.checkCancelled();
+				Long hash = Long.valueOf(request.mImage.getContentHash());
+				Request same = pipeline.isDeterministic() ? computed.get(hash) : null;
+				// the hashes can collide, the pixels tell
+				if (same != null && same.mResult != null && same.mImage.hasSameContent(request.mImage)) {
+					mDeduplicated.incrementAndGet();
+					request.mResult = same.mResult;
+				} else {
+					request.mResult = pipeline.apply(request.mImage);
+					if (same == null) {
+						computed.put(hash, request);
+					}
+				}
+			} catch (CancellationException e) {
+				// the client stopped waiting
+			} catch (OutOfMemoryError e) {
+				request.mError = e;
+			} catch (Exception e) {
+				request.mError = e;
+			} finally {
+				Progress.unbind();
+				request.mDone.countDown();
+			}
+		}
+		for (Request request : batch) {
+			if (!isResult(request.mImage, batch)) {
+				// only the requests of the batch had the decoded images
+				request.mImage.recycle();
+			}
+		}
+	}
+
+	private static boolean isResult(Image image, List<Request> batch) {
+		for (Request request : batch) {
+			if (request.mResult == image) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the body and decodes it, answering the request if it can't
+	 *
+	 * @return the image, or null if the request was already answered
+	 * @throws IOException only if the client went away
+	 */
+	private BufferedImage readImage(HttpExchange exchange) throws IOException {
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		try {
+			if (length != null && Long.parseLong(length) > mMaxBody) {
+				sendText(exchange, 413, "the body is bigger than " + mMaxBody + " bytes");
+				return null;
+			}
+		} catch (NumberFormatException e) {
+			sendText(exchange, 400, "invalid Content-Length");
+			return null;
+		}
+		// without a length the body is sent in chunks, it's counted as it's read
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+		InputStream in = exchange.getRequestBody();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			if (bytes.size() + read > mMaxBody) {
+				sendText(exchange, 413, "the body is bigger than " + mMaxBody + " bytes");
+				return null;
+			}
+			bytes.write(buffer, 0, read);
+		}
+		ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			sendText(exchange, 415, "unsupported image");
+			return null;
+		}
+		ImageReader reader = readers.next();
+		String error;
+		try {
+			reader.setInput(stream, true, true);
+			long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+			if (pixels <= mMaxPixels) {
+				return reader.read(0);
+			}
+			error = null;
+		} catch (IOException e) {
+			// the data of the image, not the connection
+			error = "corrupt image " + e.getMessage();
+		} catch (RuntimeException e) {
+			// some readers fail this way on truncated data
+			error = "corrupt image " + e;
+		} finally {
+			reader.dispose();
+			stream.close();
+		}
+		if (error != null) {
+			sendText(exchange, 400, error);
+		} else {
+			sendText(exchange, 413, "the image has more than " + mMaxPixels + " pixels");
+		}
+		return null;
+	}
+
+	/**
+	 * @return the pipeline of the query: the pipeline param, or a single
+	 *         operation with its params
+	 */
+	private static Pipeline createPipeline(Map<String, String> query) throws IOException {
+		if (query.containsKey("pipeline")) {
+			Pipeline pipeline = Pipeline.parse("request", query.get("pipeline"));
+			if (pipeline.size() == 0) {
+				throw new IOException("empty pipeline");
+			}
+			return pipeline;
+		}
+		String name = query.get("operation");
+		if (name == null) {
+			throw new IOException("missing operation or pipeline");
+		}
+		ImageOperation operation = Operations.get(name);
+		if (operation == null) {
+			throw new IOException("unknown operation " + name);
+		}
+		ParamAsker params = operation.getParams();
+		for (Map.Entry<String, String> entry : query.entrySet()) {
+			if (!entry.getKey().matches("operation|format")) {
+				String error = params.setValue(entry.getKey(), entry.getValue());
+				if (error.length() > 0) {
+					throw new IOException(error);
+				}
+			}
+		}
+		String error = params.setDefaultValues();
+		if (error.length() > 0) {
+			throw new IOException(error);
+		}
+		Pipeline pipeline = new Pipeline(name);
+		pipeline.add(operation, params);
+		return pipeline;
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int equals = pair.indexOf('=');
+				if (equals > 0) {
+					params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+		return params;
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] bytes = (text + "\n").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private class ProcessHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!exchange.getRequestMethod().equals("POST")) {
+					sendText(exchange, 405, "use POST");
+					return;
+				}
+				Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+				String format = query.containsKey("format") ? query.get("format").toLowerCase() : DEFAULT_FORMAT;
+				if (!format.matches("png|jpg|bmp|gif")) {
+					sendText(exchange, 400, "unsupported format " + format);
+					return;
+				}
+				Pipeline pipeline;
+				try {
+					pipeline = createPipeline(query);
+				} catch (IOException e) {
+					sendText(exchange, 400, e.getMessage());
+					return;
+				}
+				if (!mSlots.tryAcquire()) {
+					mRejected.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					sendText(exchange, 429, "too many requests");
+					return;
+				}
+				mAccepted.incrementAndGet();
+				Request request;
+				try {
+					Image image;
+					try {
+						BufferedImage input = readImage(exchange);
+						if (input == null) {
+							mFailed.incrementAndGet();
+							return;
+						}
+						image = new Image(input);
+					} catch (OutOfMemoryError e) {
+						// the other requests can go on
+						mFailed.incrementAndGet();
+						sendText(exchange, 503, "not enough memory");
+						return;
+					}
+					request = new Request(pipeline, image);
+					enqueue(request);
+					if (!request.mDone.await(mTimeout, TimeUnit.SECONDS)) {
+						request.mProgress.cancel();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} finally {
+					mSlots.release();
+				}
+				if (request.mResult == null) {
+					mFailed.incrementAndGet();
+					if (request.mError != null) {
+						Log.d("request failed! " + request.mError);
+						sendText(exchange, 500, String.valueOf(request.mError));
+					} else {
+						sendText(exchange, 503, "timed out");
+					}
+					return;
+				}
+				exchange.getResponseHeaders().set("Content-Type", "image/" + (format.equals("jpg") ? "jpeg" : format));
+				// no length, the image is sent in chunks while it's encoded
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					ImageIO.write(request.mResult.getBufferedImage(), format, out);
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				// the client went away
+				Log.d("couldn't answer request " + e);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private class OperationsHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				StringBuilder text = new StringBuilder();
+				for (ImageOperation operation : Operations.getAll()) {
+					text.append(operation.getName());
+					for (Param param : operation.getParams().getParams()) {
+						text.append(' ').append(param.getName()).append('=').append(param.getDefaultValue());
+					}
+					text.append('\n');
+				}
+				sendText(exchange, 200, text.toString().trim());
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private class StatsHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				sendText(exchange, 200, getStats());
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private static class Request {
+
+		private Pipeline mPipeline;
+		private String mKey;
+		private Image mImage;
+		private long mQueued;
+		private Progress mProgress;
+		private CountDownLatch mDone;
+		private volatile Image mResult;
+		private volatile Throwable mError;
+
+		public Request(Pipeline pipeline, Image image) {
+			mPipeline = pipeline;
+			mKey = pipeline.toString();
+			mImage = image;
+			mQueued = System.currentTimeMillis();
+			mProgress = new Progress();
+			mDone = new CountDownLatch(1);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package ar.edu.itba.imageprocess.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ar.edu.itba.imageprocess.utils.FileUtils;
+
+/**
+ * Sends the same image to an ImageServer from several threads at once, each
+ * thread sending its next request as soon as it gets the previous response,
+ * and reports the throughput and the latency percentiles:
+ *
+ * <pre>
+ * ImageProcess -load &lt;url&gt; &lt;image file&gt; [-c &lt;clients&gt;] [-n &lt;requests&gt;]
+ * </pre>
+ *
+ * For example -load "http://localhost:8080/process?operation=median-mask"
+ * image.png -c 16 -n 2000. The rejected requests (429) are counted apart and
+ * left out of the latencies
+ */
+public class LoadGenerator {
+
+	public static final String USAGE = "usage: ImageProcess -load <url> <image file> [-c <clients>] [-n <requests>]";
+
+	private static final int DEFAULT_CLIENTS = 8;
+	private static final int DEFAULT_REQUESTS = 1000;
+
+	private URL mUrl;
+	private byte[] mImage;
+	private int mClients;
+	private int mRequests;
+	private AtomicInteger mSent;
+	private AtomicInteger mRejected;
+	private AtomicInteger mFailed;
+	private List<Long> mLatencies;
+	private long mElapsed;
+
+	public LoadGenerator(URL url, byte[] image, int clients, int requests) {
+		mUrl = url;
+		mImage = image;
+		mClients = clients;
+		mRequests = requests;
+		mSent = new AtomicInteger();
+		mRejected = new AtomicInteger();
+		mFailed = new AtomicInteger();
+		mLatencies = new ArrayList<Long>();
+		mElapsed = 0;
+	}
+
+	/**
+	 * Parses the command line and runs the load
+	 *
+	 * @return the exit code: 0 if no request failed, 1 if some failed, 2 if
+	 *         the command line is wrong
+	 */
+	public static int run(String[] args) {
+		if (args.length < 3) {
+			System.err.println(USAGE);
+			return 2;
+		}
+		int clients = DEFAULT_CLIENTS;
+		int requests = DEFAULT_REQUESTS;
+		for (int i = 3; i < args.length; i++) {
+			if (i + 1 == args.length) {
+				System.err.println("missing value for " + args[i] + "\n" + USAGE);
+				return 2;
+			}
+			String option = args[i];
+			String value = args[++i];
+			try {
+				if (option.equals("-c")) {
+					clients = Math.max(1, Integer.parseInt(value));
+				} else if (option.equals("-n")) {
+					requests = Math.max(1, Integer.parseInt(value));
+				} else {
+					System.err.println("unknown option " + option + "\n" + USAGE);
+					return 2;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println(option + " must be an integer");
+				return 2;
+			}
+		}
+		byte[] image = FileUtils.readFileBytes(new File(args[2]));
+		if (image == null) {
+			System.err.println("couldn't read " + args[2]);
+			return 2;
+		}
+		LoadGenerator generator;
+		try {
+			generator = new LoadGenerator(new URL(args[1]), image, clients, requests);
+		} catch (IOException e) {
+			System.err.println("invalid url " + args[1]);
+			return 2;
+		}
+		generator.runLoad();
+		System.out.println(generator.getReport());
+		return generator.mFailed.get() == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Sends all the requests and waits for their responses
+	 */
+	public void runLoad() {
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < mClients; i++) {
+			Thread thread = new Thread("load-" + (i + 1)) {
+				@Override
+				public void run() {
+					while (mSent.incrementAndGet() <= mRequests) {
+						sendRequest();
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		mElapsed = System.nanoTime() - start;
+	}
+
+	/**
+	 * @return the throughput of the processed requests, and the percentiles
+	 *         of their latencies in milliseconds
+	 */
+	public String getReport() {
+		List<Long> latencies;
+		synchronized (mLatencies) {
+			latencies = new ArrayList<Long>(mLatencies);
+		}
+		Collections.sort(latencies);
+		double seconds = mElapsed / 1e9;
+		StringBuilder report = new StringBuilder();
+		report.append(mRequests + " request(s) from " + mClients + " client(s) in " + String.format("%.2f", seconds) + "s: ");
+		report.append(latencies.size() + " ok, " + mRejected.get() + " rejected, " + mFailed.get() + " failed\n");
+		report.append(String.format("throughput %.1f req/s", latencies.size() / seconds));
+		if (!latencies.isEmpty()) {
+			report.append(String.format(", latency p50 %.1fms p90 %.1fms p99 %.1fms max %.1fms", getPercentile(latencies, 50), getPercentile(latencies, 90), getPercentile(latencies, 99), latencies.get(latencies.size() - 1) / 1e6));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * @return the percentile of the sorted latencies, in milliseconds
+	 */
+	private static double getPercentile(List<Long> latencies, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * latencies.size()) - 1;
+		return latencies.get(Math.max(0, index)) / 1e6;
+	}
+
+	private void sendRequest() {
+		long start = System.nanoTime();
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) mUrl.openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(mImage.length);
+			connection.setRequestProperty("Content-Type", "application/octet-stream");
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(mImage);
+			} finally {
+				out.close();
+			}
+			int status = connection.getResponseCode();
+			// read the whole response, the latency includes the transfer
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null) {
+				try {
+					byte[] buffer = new byte[64 * 1024];
+					while (in.read(buffer) != -1) {
+						// discard
+					}
+				} finally {
+					in.close();
+				}
+			}
+			if (status == 200) {
+				long latency = System.nanoTime() - start;
+				synchronized (mLatencies) {
+					mLatencies.add(latency);
+				}
+			} else if (status == 429) {
+				mRejected.incrementAndGet();
+			} else {
+				mFailed.incrementAndGet();
+			}
+		} catch (IOException e) {
+			mFailed.incrementAndGet();
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package ar.edu.itba.imageprocess.tiles;
+
+/**
+ * A rectangular piece of a TiledImage. The tiles on the right and bottom
+ * edges of the image can be smaller than the tile size
+ */
+public class Tile {
+
+	private int mTileX;
+	private int mTileY;
+	private int mWidth;
+	private int mHeight;
+	private int[][][] mChannels;
+	private boolean mDirty;
+
+	public Tile(int tileX, int tileY, int width, int height) {
+		mTileX = tileX;
+		mTileY = tileY;
+		mWidth = width;
+		mHeight = height;
+		mChannels = new int[3][width][height];
+		mDirty = false;
+	}
+
+	public int getTileX() {
+		return mTileX;
+	}
+
+	public int getTileY() {
+		return mTileY;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return the red, green and blue channels, as [width][height] planes
+	 */
+	public int[][][] getChannels() {
+		return mChannels;
+	}
+
+	/**
+	 * @return true if the tile was modified since it was last stored
+	 */
+	public boolean isDirty() {
+		return mDirty;
+	}
+
+	public void setDirty(boolean dirty) {
+		mDirty = dirty;
+	}
+
+	public long getMemorySize() {
+		return 3L * mWidth * mHeight * 4;
+	}
+}
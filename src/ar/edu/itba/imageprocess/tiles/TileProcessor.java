@@ -0,0 +1,107 @@
+package ar.edu.itba.imageprocess.tiles;
+
+import java.io.IOException;
+
+import ar.edu.itba.imageprocess.Image;
+import ar.edu.itba.imageprocess.ImageFunction;
+import ar.edu.itba.imageprocess.utils.RowReader;
+import ar.edu.itba.imageprocess.utils.RowWriter;
+
+/**
+ * Applies a point or neighborhood operation to a TiledImage one tile at a
+ * time. Each tile is extended with the halo of pixels around it that the
+ * operation needs, processed as an Image, and only its center is stored in
+ * the destination. As in StripProcessor, the result is the same as processing
+ * the whole image at once
+ */
+public class TileProcessor {
+
+	private static final int MIN_TILE_SIZE = 16;
+
+	/**
+	 * Processes an image read by rows and writes it by rows, through tiles
+	 * kept in temporary stores. It's used by a batch for the images too wide
+	 * for StripProcessor to fit even a single row with its halo in memory.
+	 * The reader and the writer are closed
+	 *
+	 * @param halo the number of pixels around a pixel the function needs, see
+	 *            Filters.getMaskHalo
+	 * @param memoryBudget the memory budget of each of the source and the
+	 *            destination tiles
+	 */
+	public static void process(RowReader reader, RowWriter writer, ImageFunction function, int halo, long memoryBudget) throws IOException {
+		int tileSize = getTileSize(reader.getWidth(), memoryBudget);
+		TiledImage source = null;
+		TiledImage dest = null;
+		try {
+			source = TiledImage.fromRows(reader, tileSize, memoryBudget);
+			dest = new TiledImage(source.getWidth(), source.getHeight(), tileSize, memoryBudget, new TileStore(tileSize));
+			apply(source, dest, function, halo);
+			dest.writeRows(writer);
+		} finally {
+			reader.close();
+			writer.close();
+			if (source != null) {
+				source.close();
+			}
+			if (dest != null) {
+				dest.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the side of the tiles so that a row of them, as filled by
+	 *         TiledImage.fromRows, takes at most half of the budget
+	 */
+	public static int getTileSize(int width, long memoryBudget) {
+		// 3 channels of 4 bytes per pixel
+		long size = memoryBudget / 2 / (12L * width);
+		return (int) Math.max(MIN_TILE_SIZE, Math.min(TiledImage.DEFAULT_TILE_SIZE, size));
+	}
+
+	/**
+	 * Processes all the tiles of the image
+	 *
+	 * @param halo the number of pixels around a pixel the function needs, see
+	 *            Filters.getMaskHalo
+	 */
+	public static void apply(TiledImage source, TiledImage dest, ImageFunction function, int halo) throws IOException {
+		apply(source, dest, function, halo, 0, 0, source.getWidth(), source.getHeight());
+	}
+
+	/**
+	 * Processes only the tiles touching a region of the image, the other
+	 * tiles of the destination are left untouched
+	 */
+	public static void apply(TiledImage source, TiledImage dest, ImageFunction function, int halo, int regionX, int regionY, int regionWidth, int regionHeight) throws IOException {
+		if (source.getWidth() != dest.getWidth() || source.getHeight() != dest.getHeight() || source.getTileSize() != dest.getTileSize()) {
+			throw new IllegalArgumentException("images must be the same size");
+		}
+		int tileSize = source.getTileSize();
+		int firstTileX = Math.max(0, regionX / tileSize);
+		int firstTileY = Math.max(0, regionY / tileSize);
+		int lastTileX = Math.min(source.getTilesX() - 1, (regionX + regionWidth - 1) / tileSize);
+		int lastTileY = Math.min(source.getTilesY() - 1, (regionY + regionHeight - 1) / tileSize);
+
+		for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+			for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+				int x = tileX * tileSize;
+				int y = tileY * tileSize;
+				int width = Math.min(tileSize, source.getWidth() - x);
+				int height = Math.min(tileSize, source.getHeight() - y);
+
+				// process the tile with its halo
+				Image input = source.getRegion(x - halo, y - halo, width + 2 * halo, height + 2 * halo);
+				Image output = function.apply(input);
+				if (output == null || output.getWidth() != input.getWidth() || output.getHeight() != input.getHeight()) {
+					throw new IOException("the function must keep the size of the image");
+				}
+
+				// and keep only its center
+				dest.setRegion(output, halo, halo, x, y, width, height);
+			}
+		}
+		dest.flush();
+	}
+}
@@ -0,0 +1,93 @@
+package ar.edu.itba.imageprocess.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import ar.edu.itba.imageprocess.utils.FileUtils;
+
+/**
+ * Keeps the tiles of a TiledImage in a file. Each tile has a fixed slot in the
+ * file, big enough for a full tile, holding its three channels one after the
+ * other, column by column. Tiles never stored read as black
+ */
+public class TileStore {
+
+	private File mFile;
+	private boolean mTemporary;
+	private RandomAccessFile mRandomAccessFile;
+	private FileChannel mChannel;
+	private int mTileSize;
+	private BitSet mStoredTiles;
+	private ByteBuffer mBuffer;
+
+	/**
+	 * Creates a store in a temporary file, deleted when the store is closed
+	 */
+	public TileStore(int tileSize) throws IOException {
+		this(File.createTempFile("tiles", ".bin"), tileSize);
+		mTemporary = true;
+		mFile.deleteOnExit();
+	}
+
+	public TileStore(File file, int tileSize) throws IOException {
+		mFile = file;
+		mTemporary = false;
+		mRandomAccessFile = new RandomAccessFile(file, "rw");
+		mChannel = mRandomAccessFile.getChannel();
+		mTileSize = tileSize;
+		mStoredTiles = new BitSet();
+		mBuffer = ByteBuffer.allocateDirect(getSlotSize());
+	}
+
+	public synchronized void read(int index, Tile tile) throws IOException {
+		if (!mStoredTiles.get(index)) {
+			return;
+		}
+		mBuffer.clear();
+		long position = (long) index * getSlotSize();
+		while (mBuffer.hasRemaining()) {
+			if (mChannel.read(mBuffer, position + mBuffer.position()) < 0) {
+				throw new IOException("tile " + index + " is truncated");
+			}
+		}
+		mBuffer.flip();
+		IntBuffer ints = mBuffer.asIntBuffer();
+		for (int[][] channel : tile.getChannels()) {
+			for (int[] column : channel) {
+				ints.get(column);
+			}
+		}
+	}
+
+	public synchronized void write(int index, Tile tile) throws IOException {
+		mBuffer.clear();
+		IntBuffer ints = mBuffer.asIntBuffer();
+		for (int[][] channel : tile.getChannels()) {
+			for (int[] column : channel) {
+				ints.put(column);
+			}
+		}
+		mBuffer.limit(getSlotSize());
+		long position = (long) index * getSlotSize();
+		while (mBuffer.hasRemaining()) {
+			mChannel.write(mBuffer, position + mBuffer.position());
+		}
+		mStoredTiles.set(index);
+	}
+
+	public synchronized void close() {
+		FileUtils.closeQuietly(mRandomAccessFile);
+		if (mTemporary) {
+			mFile.delete();
+		}
+	}
+
+	private int getSlotSize() {
+		return 3 * mTileSize * mTileSize * 4;
+	}
+}
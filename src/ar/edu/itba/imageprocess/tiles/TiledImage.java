@@ -0,0 +1,263 @@
+package ar.edu.itba.imageprocess.tiles;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import ar.edu.itba.imageprocess.Image;
+import ar.edu.itba.imageprocess.utils.Log;
+import ar.edu.itba.imageprocess.utils.RowReader;
+import ar.edu.itba.imageprocess.utils.RowWriter;
+
+/**
+ * An image split in square tiles kept in a TileStore. Only the recently used
+ * tiles are kept in memory, in a LRU cache bounded by a memory budget. Tiles
+ * are loaded when first accessed, and the modified (dirty) tiles are written
+ * back to the store when they are evicted or when the image is flushed. Like
+ * in Image, the pixels outside of the image give the ones of the border
+ */
+public class TiledImage {
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+	public static final long DEFAULT_MEMORY_BUDGET = 256 * 1024 * 1024;
+
+	private int mWidth;
+	private int mHeight;
+	private int mTileSize;
+	private int mTilesX;
+	private int mTilesY;
+	private TileStore mStore;
+	private long mMemoryBudget;
+	private long mMemoryUsed;
+	private LinkedHashMap<Integer, Tile> mCache;
+	private int mLoads;
+	private int mEvictions;
+
+	public TiledImage(int width, int height) throws IOException {
+		this(width, height, DEFAULT_TILE_SIZE, DEFAULT_MEMORY_BUDGET, new TileStore(DEFAULT_TILE_SIZE));
+	}
+
+	public TiledImage(int width, int height, int tileSize, long memoryBudget, TileStore store) {
+		mWidth = width;
+		mHeight = height;
+		mTileSize = tileSize;
+		mTilesX = (width + tileSize - 1) / tileSize;
+		mTilesY = (height + tileSize - 1) / tileSize;
+		mStore = store;
+		mMemoryBudget = memoryBudget;
+		mMemoryUsed = 0;
+		// access ordered, so the first entry is the least recently used tile
+		mCache = new LinkedHashMap<Integer, Tile>(16, 0.75f, true);
+	}
+
+	/**
+	 * Creates a tiled image out of the rows of the reader, one row of tiles at
+	 * a time. The memory budget must hold at least one row of tiles
+	 */
+	public static TiledImage fromRows(RowReader reader, int tileSize, long memoryBudget) throws IOException {
+		TiledImage image = new TiledImage(reader.getWidth(), reader.getHeight(), tileSize, memoryBudget, new TileStore(tileSize));
+		int[][] row = new int[reader.getChannels()][reader.getWidth()];
+		try {
+			for (int y = 0; y < image.mHeight; y++) {
+				reader.readRow(row);
+				int[] red = row[0];
+				int[] green = row.length == 3 ? row[1] : row[0];
+				int[] blue = row.length == 3 ? row[2] : row[0];
+				for (int tileX = 0; tileX < image.mTilesX; tileX++) {
+					Tile tile = image.getTile(tileX, y / tileSize);
+					int[][][] channels = tile.getChannels();
+					int offsetX = tileX * tileSize;
+					int tileY = y % tileSize;
+					for (int x = 0; x < tile.getWidth(); x++) {
+						channels[0][x][tileY] = red[offsetX + x];
+						channels[1][x][tileY] = green[offsetX + x];
+						channels[2][x][tileY] = blue[offsetX + x];
+					}
+					tile.setDirty(true);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return image;
+	}
+
+	/**
+	 * Writes all the rows of the image, one row of tiles at a time
+	 */
+	public void writeRows(RowWriter writer) throws IOException {
+		int[][] row = new int[3][mWidth];
+		try {
+			for (int y = 0; y < mHeight; y++) {
+				for (int tileX = 0; tileX < mTilesX; tileX++) {
+					Tile tile = getTile(tileX, y / mTileSize);
+					int[][][] channels = tile.getChannels();
+					int offsetX = tileX * mTileSize;
+					int tileY = y % mTileSize;
+					for (int x = 0; x < tile.getWidth(); x++) {
+						row[0][offsetX + x] = channels[0][x][tileY];
+						row[1][offsetX + x] = channels[1][x][tileY];
+						row[2][offsetX + x] = channels[2][x][tileY];
+					}
+				}
+				writer.writeRow(row);
+			}
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getTileSize() {
+		return mTileSize;
+	}
+
+	public int getTilesX() {
+		return mTilesX;
+	}
+
+	public int getTilesY() {
+		return mTilesY;
+	}
+
+	/**
+	 * @return the number of tiles loaded from the store and evicted from the
+	 *         cache so far
+	 */
+	public int[] getCacheStats() {
+		return new int[] { mLoads, mEvictions };
+	}
+
+	/**
+	 * Gets a tile, loading it from the store if it isn't in the cache
+	 */
+	public synchronized Tile getTile(int tileX, int tileY) throws IOException {
+		int index = tileY * mTilesX + tileX;
+		Tile tile = mCache.get(index);
+		if (tile == null) {
+			int width = Math.min(mTileSize, mWidth - tileX * mTileSize);
+			int height = Math.min(mTileSize, mHeight - tileY * mTileSize);
+			tile = new Tile(tileX, tileY, width, height);
+			mStore.read(index, tile);
+			mLoads++;
+			mCache.put(index, tile);
+			mMemoryUsed += tile.getMemorySize();
+			evict(tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Copies a region of the image into a new Image. The region can go
+	 * outside of the image, the border pixels are repeated there
+	 */
+	public Image getRegion(int regionX, int regionY, int width, int height) throws IOException {
+		int[][][] channels = new int[3][width][height];
+		for (int x = 0; x < width; x++) {
+			int imageX = Math.max(0, Math.min(mWidth - 1, regionX + x));
+			int tileX = imageX % mTileSize;
+			Tile tile = null;
+			for (int y = 0; y < height; y++) {
+				int imageY = Math.max(0, Math.min(mHeight - 1, regionY + y));
+				// only look the tile up when the column enters a new tile
+				if (tile == null || tile.getTileY() != imageY / mTileSize) {
+					tile = getTile(imageX / mTileSize, imageY / mTileSize);
+				}
+				int[][][] tileChannels = tile.getChannels();
+				int tileY = imageY % mTileSize;
+				channels[0][x][y] = tileChannels[0][tileX][tileY];
+				channels[1][x][y] = tileChannels[1][tileX][tileY];
+				channels[2][x][y] = tileChannels[2][tileX][tileY];
+			}
+		}
+		return new Image(channels[0], channels[1], channels[2]);
+	}
+
+	/**
+	 * Copies a region of an image into this image
+	 *
+	 * @param source the image to copy from
+	 * @param sourceX the left of the region in the source image
+	 * @param sourceY the top of the region in the source image
+	 * @param regionX the left of the region in this image
+	 * @param regionY the top of the region in this image
+	 */
+	public void setRegion(Image source, int sourceX, int sourceY, int regionX, int regionY, int width, int height) throws IOException {
+		int[][] red = source.getRedChannel();
+		int[][] green = source.getGreenChannel();
+		int[][] blue = source.getBlueChannel();
+		for (int x = 0; x < width; x++) {
+			int imageX = regionX + x;
+			int tileX = imageX % mTileSize;
+			int[] redColumn = red[sourceX + x];
+			int[] greenColumn = green[sourceX + x];
+			int[] blueColumn = blue[sourceX + x];
+			Tile tile = null;
+			for (int y = 0; y < height; y++) {
+				int imageY = regionY + y;
+				// only look the tile up when the column enters a new tile
+				if (tile == null || tile.getTileY() != imageY / mTileSize) {
+					tile = getTile(imageX / mTileSize, imageY / mTileSize);
+					tile.setDirty(true);
+				}
+				int[][][] tileChannels = tile.getChannels();
+				int tileY = imageY % mTileSize;
+				tileChannels[0][tileX][tileY] = redColumn[sourceY + y];
+				tileChannels[1][tileX][tileY] = greenColumn[sourceY + y];
+				tileChannels[2][tileX][tileY] = blueColumn[sourceY + y];
+			}
+		}
+	}
+
+	/**
+	 * Writes all the dirty tiles to the store
+	 */
+	public synchronized void flush() throws IOException {
+		for (Entry<Integer, Tile> entry : mCache.entrySet()) {
+			if (entry.getValue().isDirty()) {
+				mStore.write(entry.getKey(), entry.getValue());
+				entry.getValue().setDirty(false);
+			}
+		}
+	}
+
+	public synchronized void close() {
+		mCache.clear();
+		mMemoryUsed = 0;
+		mStore.close();
+	}
+
+	/**
+	 * Evicts the least recently used tiles until the cache fits in the
+	 * memory budget, writing back the dirty ones
+	 */
+	private void evict(Tile keep) throws IOException {
+		Iterator<Entry<Integer, Tile>> it = mCache.entrySet().iterator();
+		while (mMemoryUsed > mMemoryBudget && it.hasNext()) {
+			Entry<Integer, Tile> entry = it.next();
+			Tile tile = entry.getValue();
+			if (tile == keep) {
+				continue;
+			}
+			if (tile.isDirty()) {
+				mStore.write(entry.getKey(), tile);
+				tile.setDirty(false);
+			}
+			it.remove();
+			mMemoryUsed -= tile.getMemorySize();
+			mEvictions++;
+		}
+		if (mMemoryUsed > mMemoryBudget) {
+			Log.d("tile cache over budget, " + mMemoryUsed + " bytes used");
+		}
+	}
+}
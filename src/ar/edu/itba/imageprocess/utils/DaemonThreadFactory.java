@@ -0,0 +1,26 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so the worker pools never keep the
+ * application alive
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	private String mName;
+	private AtomicInteger mCount;
+
+	public DaemonThreadFactory(String name) {
+		mName = name;
+		mCount = new AtomicInteger();
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
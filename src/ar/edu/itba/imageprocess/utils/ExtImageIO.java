@@ -1,98 +1,112 @@
 package ar.edu.itba.imageprocess.utils;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 
 public class ExtImageIO {
 
-	public static int[][] readRawImageChannel(File file, int width, int height) {
-		int[][] grayChannel = new int[width][height];
-		byte[] fileData = FileUtils.readFileBytes(file);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				grayChannel[x][y] = fileData[y * width + x] & 0xFF;
-			}
+	/**
+	 * Decodes a headerless raw file with bulk row copies from the mapped file
+	 * 
+	 * @return one channel for a gray format, three (red, green, blue) for a
+	 *         rgb format
+	 */
+	public static int[][][] readRawImageChannels(File file, RawFormat format) throws IOException {
+		RawReader reader = new RawReader(file, format);
+		try {
+			int[][][] channels = new int[reader.getChannels()][reader.getWidth()][reader.getHeight()];
+			reader.readChannels(channels);
+			return channels;
+		} finally {
+			reader.close();
 		}
-		return grayChannel;
 	}
 
-	public static int[][] readPgmImageChannel(File file) throws IOException {
-		PixmapData pixmapData = extractPixmapData(file);
-		int[][] grayChannel = new int[pixmapData.width][pixmapData.height];
-		for (int x = 0; x < pixmapData.width; x++) {
-			for (int y = 0; y < pixmapData.height; y++) {
-				grayChannel[x][y] = pixmapData.data[y * pixmapData.width + x] & 0xFF;
-			}
+	/**
+	 * Decodes any of the P2, P3, P5 and P6 formats in a single pass
+	 * 
+	 * @return one channel for a graymap, three (red, green, blue) for a pixmap
+	 */
+	public static int[][][] readPixmapChannels(File file) throws IOException {
+		PixmapReader reader = new PixmapReader(file);
+		try {
+			int[][][] channels = new int[reader.getChannels()][reader.getWidth()][reader.getHeight()];
+			reader.readChannels(channels);
+			return channels;
+		} finally {
+			reader.close();
 		}
-		return grayChannel;
 	}
 
-	public static int[][][] readPpmImageChannels(File file) throws IOException {
-		PixmapData pixmapData = extractPixmapData(file);
-		int[][] redChannel = new int[pixmapData.width][pixmapData.height];
-		int[][] greenChannel = new int[pixmapData.width][pixmapData.height];
-		int[][] blueChannel = new int[pixmapData.width][pixmapData.height];
-		for (int x = 0; x < pixmapData.width; x++) {
-			for (int y = 0; y < pixmapData.height; y++) {
-				redChannel[x][y] = pixmapData.data[(y * pixmapData.width + x) * 3] & 0xFF;
-				greenChannel[x][y] = pixmapData.data[(y * pixmapData.width + x) * 3 + 1] & 0xFF;
-				blueChannel[x][y] = pixmapData.data[(y * pixmapData.width + x) * 3 + 2] & 0xFF;
+	/**
+	 * Writes the channels as a raw, pgm or ppm file depending on the file
+	 * extension
+	 * 
+	 * @param channels one (gray) or three (red, green, blue) channel planes
+	 * @param rangePolicy one of the PixmapWriter.RANGE_ policies, used for the
+	 *            values outside of [0, 255]
+	 */
+	public static void write(int[][][] channels, File file, int rangePolicy) throws IOException {
+		int format = PixmapWriter.getFormat(file);
+		if (format == 0) {
+			throw new IOException("unsupported format " + FileUtils.getFileExtension(file));
+		}
+		int width = channels[0].length;
+		int height = channels[0][0].length;
+		PixmapWriter writer = new PixmapWriter(file, format, width, height, rangePolicy);
+		try {
+			if (rangePolicy == PixmapWriter.RANGE_RESCALE) {
+				int low = ArrayUtils.min(channels[0]);
+				int high = ArrayUtils.max(channels[0]);
+				for (int c = 1; c < channels.length; c++) {
+					low = Math.min(low, ArrayUtils.min(channels[c]));
+					high = Math.max(high, ArrayUtils.max(channels[c]));
+				}
+				writer.setSourceRange(low, high);
 			}
+			if (writer.getChannels() == 3 && channels.length == 1) {
+				channels = new int[][][] { channels[0], channels[0], channels[0] };
+			}
+			writer.writeChannels(channels);
+			writer.finish();
+		} finally {
+			writer.close();
 		}
-		return new int[][][] { redChannel, greenChannel, blueChannel };
 	}
 
-	public static void write(BufferedImage image, File file) throws IOException {
-		// write the image data to a file
+	/**
+	 * Opens a pgm, ppm or raw file to be read row by row
+	 * 
+	 * @param rawFormat the format of a raw file, if null it is looked up with
+	 *            RawFormats
+	 */
+	public static RowReader openRowReader(File file, RawFormat rawFormat) throws IOException {
 		String extension = FileUtils.getFileExtension(file);
-		FileOutputStream out = new FileOutputStream(file);
 		if (extension.equals("raw")) {
-			out.write(((DataBufferByte) image.getData().getDataBuffer()).getData());
-		} else if (extension.equals("pgm")) {
-			// TODO
-		} else if (extension.equals("ppm")) {
-			// TODO
+			if (rawFormat == null) {
+				rawFormat = RawFormats.find(file);
+			}
+			if (rawFormat == null) {
+				throw new IOException("unknown raw format for " + file.getName());
+			}
+			return new RawReader(file, rawFormat);
+		} else if (extension.matches("pgm|ppm")) {
+			return new PixmapReader(file);
+		} else {
+			throw new IOException("unsupported format " + extension);
 		}
-		out.close();
 	}
 
-	private static PixmapData extractPixmapData(File file) throws IOException {
-		PixmapData headerData = new PixmapData();
-		InputStream is = new FileInputStream(file);
-		BufferedReader br = new BufferedReader(new InputStreamReader(is));
-
-		// skip the first line
-		br.readLine();
-
-		// extract the image dimension from the second line
-		String[] dimensions = br.readLine().split(" ");
-		headerData.width = Integer.parseInt(dimensions[0]);
-		headerData.height = Integer.parseInt(dimensions[1]);
-
-		// skip the third line
-		br.readLine();
-
-		// read the rest of the file
-		String data = "";
-		String line;
-		while ((line = br.readLine()) != null) {
-			data += line;
+	/**
+	 * Opens a pgm, ppm or raw file to be written row by row. Since the range
+	 * of the image isn't known in advance, only the RANGE_CLAMP and
+	 * RANGE_16BIT policies can be used
+	 */
+	public static RowWriter openRowWriter(File file, int width, int height, int rangePolicy) throws IOException {
+		int format = PixmapWriter.getFormat(file);
+		if (format == 0) {
+			throw new IOException("unsupported format " + FileUtils.getFileExtension(file));
 		}
-		is.close();
-		headerData.data = data.getBytes();
-		return headerData;
-	}
-
-	private static class PixmapData {
-		int width;
-		int height;
-		byte[] data;
+		return new PixmapWriter(file, format, width, height, rangePolicy);
 	}
 }
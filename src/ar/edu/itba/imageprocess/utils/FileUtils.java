@@ -1,41 +1,110 @@
 package ar.edu.itba.imageprocess.utils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class FileUtils {
 
+	/**
+	 * Files up to this size are read into a heap buffer, bigger files are
+	 * memory mapped
+	 */
+	public static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+
 	public static String getFileExtension(File file) {
 		return file.getName().substring(file.getName().lastIndexOf(".") + 1).toLowerCase();
 	}
 
+	/**
+	 * Reads the whole file into a byte array with bulk channel reads
+	 *
+	 * @return the content of the file, or null if it couldn't be read
+	 */
 	public static byte[] readFileBytes(File file) {
 		FileInputStream is = null;
-		ByteArrayOutputStream ous = null;
 		try {
 			is = new FileInputStream(file);
-			ous = new ByteArrayOutputStream();
-			int i = is.read();
-			while (i != -1) {
-				ous.write(i);
-				i = is.read();
+			FileChannel channel = is.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				Log.d("file too big to fit in an array " + file.getName());
+				return null;
 			}
-			return ous.toByteArray();
+			byte[] data = new byte[(int) size];
+			readFully(channel, ByteBuffer.wrap(data), 0);
+			return data;
 		} catch (IOException e) {
 			return null;
 		} finally {
-			try {
-				if (ous != null)
-					ous.close();
-			} catch (IOException e) {
+			closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Gives a read only view of the whole file. Small files are read at once
+	 * into a pre-sized heap buffer, big files are memory mapped so no copy of
+	 * the data is made until it is decoded
+	 */
+	public static ByteBuffer readFileBuffer(File file) throws IOException {
+		FileInputStream is = new FileInputStream(file);
+		try {
+			FileChannel channel = is.getChannel();
+			long size = channel.size();
+			if (size <= MAP_THRESHOLD) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) size);
+				readFully(channel, buffer, 0);
+				buffer.flip();
+				return buffer;
 			}
-			try {
-				if (is != null)
-					is.close();
-			} catch (IOException e) {
+			return mapRegion(channel, 0, size);
+		} finally {
+			// a mapping stays valid after its channel is closed
+			closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Maps a region of the file. A single mapping can't be bigger than 2GB so
+	 * bigger files must be mapped region by region
+	 */
+	public static ByteBuffer mapFileRegion(File file, long position, long size) throws IOException {
+		FileInputStream is = new FileInputStream(file);
+		try {
+			return mapRegion(is.getChannel(), position, size);
+		} finally {
+			closeQuietly(is);
+		}
+	}
+
+	public static void closeQuietly(Closeable closeable) {
+		try {
+			if (closeable != null)
+				closeable.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static ByteBuffer mapRegion(FileChannel channel, long position, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("region too big to be mapped at once (" + size + " bytes)");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
+	/**
+	 * Fills the buffer with the bytes of the channel from that position
+	 */
+	public static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("unexpected end of file");
 			}
+			position += read;
 		}
 	}
 }
@@ -15,7 +15,7 @@ public class ImageFilter extends FileFilter {
 		}
 
 		String extension = FileUtils.getFileExtension(f);
-		if (extension.matches("png|jpe?g|gif|w?bmp|tiff?|pgm|ppm|raw")) {
+		if (extension.matches("png|jpe?g|gif|w?bmp|tiff?|pgm|ppm|raw|" + NativeImageIO.EXTENSION)) {
 			return true;
 		} else {
 			return false;
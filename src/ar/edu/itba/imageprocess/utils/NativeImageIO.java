@@ -0,0 +1,340 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the native ".ipi" format, which keeps the channels exactly
+ * as they are in an Image, including the values outside of [0, 255], so it
+ * can be used to checkpoint intermediate results.
+ *
+ * The file starts with a header of HEADER_SIZE bytes: the magic "IPIM", the
+ * version, the width, the height, the number of channels (1 or 3), the bits
+ * per sample (8 and 16 for unsigned samples, 32 for signed ones, the smallest
+ * one holding all the values is used), the compression and the CRC32 of the
+ * uncompressed data. The data follows, channel by channel and column by
+ * column, so each column of the file is a column of an Image channel. It is
+ * either stored as is, so it can be read straight from a memory mapping of
+ * the file, or compressed by blocks of BLOCK_SIZE bytes, in which case a
+ * table with the compressed length of each block comes first.
+ */
+public class NativeImageIO {
+
+	public static final String EXTENSION = "ipi";
+	public static final int COMPRESSION_NONE = 0;
+	public static final int COMPRESSION_DEFLATE = 1;
+
+	private static final int MAGIC = 0x4950494D;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * Writes the channels to the file
+	 *
+	 * @param channels one (gray) or three (red, green, blue) channel planes,
+	 *            three equal channels are stored as one
+	 * @param compression COMPRESSION_NONE or COMPRESSION_DEFLATE
+	 */
+	public static void write(int[][][] channels, File file, int compression) throws IOException {
+		if (channels.length == 3 && Arrays.deepEquals(channels[0], channels[1]) && Arrays.deepEquals(channels[1], channels[2])) {
+			channels = new int[][][] { channels[0] };
+		}
+		int width = channels[0].length;
+		int height = channels[0][0].length;
+		int bits = getBitsPerSample(channels);
+		long dataSize = (long) channels.length * width * height * (bits / 8);
+		int blocks = (int) ((dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel fileChannel = raf.getChannel();
+			BlockWriter writer = new BlockWriter(fileChannel, compression, blocks);
+			ByteBuffer column = ByteBuffer.allocate(height * (bits / 8));
+			for (int[][] channel : channels) {
+				for (int x = 0; x < width; x++) {
+					column.clear();
+					putColumn(column, channel[x], bits);
+					column.flip();
+					writer.write(column);
+				}
+			}
+			writer.finish();
+
+			// the header is written last since it holds the checksum
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+			header.putInt(channels.length).putInt(bits).putInt(compression);
+			header.putLong(writer.getChecksum());
+			header.clear();
+			writeFully(fileChannel, header, 0);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the channels of the file. An uncompressed file is read straight
+	 * from its memory mapping
+	 *
+	 * @return one channel for a gray image, three (red, green, blue) for a
+	 *         color image
+	 */
+	public static int[][][] read(File file) throws IOException {
+		ByteBuffer buffer = FileUtils.readFileBuffer(file);
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException(file.getName() + " is not an " + EXTENSION + " file");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("unsupported version " + buffer.getInt(4));
+		}
+		int width = buffer.getInt(8);
+		int height = buffer.getInt(12);
+		int channelCount = buffer.getInt(16);
+		int bits = buffer.getInt(20);
+		int compression = buffer.getInt(24);
+		long checksum = buffer.getLong(28);
+		if (bits != 8 && bits != 16 && bits != 32) {
+			throw new IOException("unsupported bits per sample " + bits);
+		}
+
+		int[][][] channels = new int[channelCount][width][height];
+		ChannelFiller filler = new ChannelFiller(channels, bits);
+		CRC32 crc = new CRC32();
+		buffer.position(HEADER_SIZE);
+		if (compression == COMPRESSION_NONE) {
+			ByteBuffer data = buffer.slice();
+			updateChecksum(crc, data.duplicate());
+			filler.fill(data);
+		} else if (compression == COMPRESSION_DEFLATE) {
+			long dataSize = (long) channelCount * width * height * (bits / 8);
+			int blocks = (int) ((dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			int[] lengths = new int[blocks];
+			for (int i = 0; i < blocks; i++) {
+				lengths[i] = buffer.getInt();
+			}
+			Inflater inflater = new Inflater();
+			byte[] compressed = new byte[0];
+			byte[] block = new byte[BLOCK_SIZE];
+			try {
+				for (int i = 0; i < blocks; i++) {
+					if (compressed.length < lengths[i]) {
+						compressed = new byte[lengths[i]];
+					}
+					buffer.get(compressed, 0, lengths[i]);
+					inflater.reset();
+					inflater.setInput(compressed, 0, lengths[i]);
+					int size = (int) Math.min(BLOCK_SIZE, dataSize - (long) i * BLOCK_SIZE);
+					int inflated = 0;
+					while (inflated < size) {
+						int count = inflater.inflate(block, inflated, size - inflated);
+						if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+							throw new IOException("block " + i + " is truncated");
+						}
+						inflated += count;
+					}
+					crc.update(block, 0, size);
+					filler.fill(ByteBuffer.wrap(block, 0, size));
+					Progress.update(i + 1, blocks);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("corrupted data " + e.getMessage());
+			} finally {
+				inflater.end();
+			}
+		} else {
+			throw new IOException("unsupported compression " + compression);
+		}
+		if (crc.getValue() != checksum) {
+			throw new IOException("wrong checksum for " + file.getName());
+		}
+		return channels;
+	}
+
+	/**
+	 * @return the smallest bits per sample holding all the values
+	 */
+	private static int getBitsPerSample(int[][][] channels) {
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for (int[][] channel : channels) {
+			min = Math.min(min, ArrayUtils.min(channel));
+			max = Math.max(max, ArrayUtils.max(channel));
+		}
+		if (min >= 0 && max <= 255) {
+			return 8;
+		} else if (min >= 0 && max <= 65535) {
+			return 16;
+		} else {
+			return 32;
+		}
+	}
+
+	private static void putColumn(ByteBuffer buffer, int[] column, int bits) {
+		if (bits == 8) {
+			for (int value : column) {
+				buffer.put((byte) value);
+			}
+		} else if (bits == 16) {
+			for (int value : column) {
+				buffer.putShort((short) value);
+			}
+		} else {
+			buffer.asIntBuffer().put(column);
+			buffer.position(buffer.position() + column.length * 4);
+		}
+	}
+
+	private static void updateChecksum(CRC32 crc, ByteBuffer data) {
+		if (data.hasArray()) {
+			crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		byte[] chunk = new byte[64 * 1024];
+		while (data.hasRemaining()) {
+			int count = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, count);
+			crc.update(chunk, 0, count);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Writes the data, either as is or compressed by blocks, and computes its
+	 * checksum
+	 */
+	private static class BlockWriter {
+
+		private FileChannel mChannel;
+		private CRC32 mCrc;
+		private long mPosition;
+		private ByteBuffer mBlock;
+		private Deflater mDeflater;
+		private byte[] mCompressed;
+		private ByteBuffer mLengths;
+
+		public BlockWriter(FileChannel channel, int compression, int blocks) {
+			mChannel = channel;
+			mCrc = new CRC32();
+			mBlock = ByteBuffer.allocate(BLOCK_SIZE);
+			if (compression == COMPRESSION_DEFLATE) {
+				mDeflater = new Deflater(Deflater.BEST_SPEED);
+				mCompressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 100 + 64];
+				mLengths = ByteBuffer.allocate(4 * blocks);
+				mPosition = HEADER_SIZE + 4L * blocks;
+			} else {
+				mPosition = HEADER_SIZE;
+			}
+		}
+
+		public void write(ByteBuffer data) throws IOException {
+			mCrc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			while (data.hasRemaining()) {
+				int count = Math.min(mBlock.remaining(), data.remaining());
+				mBlock.put(data.array(), data.arrayOffset() + data.position(), count);
+				data.position(data.position() + count);
+				if (!mBlock.hasRemaining()) {
+					flushBlock();
+				}
+			}
+		}
+
+		public void finish() throws IOException {
+			if (mBlock.position() > 0) {
+				flushBlock();
+			}
+			if (mDeflater != null) {
+				mDeflater.end();
+				mLengths.flip();
+				writeFully(mChannel, mLengths, HEADER_SIZE);
+			}
+		}
+
+		public long getChecksum() {
+			return mCrc.getValue();
+		}
+
+		private void flushBlock() throws IOException {
+			mBlock.flip();
+			ByteBuffer output = mBlock;
+			if (mDeflater != null) {
+				mDeflater.reset();
+				mDeflater.setInput(mBlock.array(), 0, mBlock.limit());
+				mDeflater.finish();
+				int length = 0;
+				while (!mDeflater.finished()) {
+					if (length == mCompressed.length) {
+						mCompressed = Arrays.copyOf(mCompressed, mCompressed.length * 2);
+					}
+					length += mDeflater.deflate(mCompressed, length, mCompressed.length - length);
+				}
+				mLengths.putInt(length);
+				output = ByteBuffer.wrap(mCompressed, 0, length);
+			}
+			int length = output.remaining();
+			writeFully(mChannel, output, mPosition);
+			mPosition += length;
+			mBlock.clear();
+		}
+	}
+
+	/**
+	 * Fills the channel planes, channel by channel and column by column, with
+	 * the samples of consecutive buffers
+	 */
+	private static class ChannelFiller {
+
+		private int[][][] mChannels;
+		private int mBytesPerSample;
+		private int mChannel;
+		private int mX;
+		private int mY;
+
+		public ChannelFiller(int[][][] channels, int bits) {
+			mChannels = channels;
+			mBytesPerSample = bits / 8;
+		}
+
+		public void fill(ByteBuffer data) {
+			while (data.remaining() >= mBytesPerSample && mChannel < mChannels.length) {
+				int[] column = mChannels[mChannel][mX];
+				int count = Math.min(column.length - mY, data.remaining() / mBytesPerSample);
+				if (mBytesPerSample == 4) {
+					data.asIntBuffer().get(column, mY, count);
+					data.position(data.position() + count * 4);
+				} else if (mBytesPerSample == 2) {
+					for (int i = 0; i < count; i++) {
+						column[mY + i] = data.getShort() & 0xFFFF;
+					}
+				} else {
+					for (int i = 0; i < count; i++) {
+						column[mY + i] = data.get() & 0xFF;
+					}
+				}
+				mY += count;
+				if (mY == column.length) {
+					mY = 0;
+					mX++;
+					if (mX == mChannels[mChannel].length) {
+						mX = 0;
+						mChannel++;
+					}
+				}
+			}
+		}
+	}
+}
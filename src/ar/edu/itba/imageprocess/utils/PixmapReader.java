@@ -0,0 +1,236 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder for the Netpbm gray and color formats: P2 and P3 (ascii)
+ * and P5 and P6 (binary, 8 or 16 bits per sample). The header is parsed when
+ * the reader is created and the pixels are then read one row at a time, so
+ * the only memory used besides the destination is a single row buffer
+ */
+public class PixmapReader implements RowReader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private InputStream mInput;
+	private byte[] mBuffer;
+	private int mBufferPos;
+	private int mBufferLimit;
+	private int mWidth;
+	private int mHeight;
+	private int mMaxValue;
+	private int mChannels;
+	private boolean mBinary;
+	private int mBytesPerSample;
+	private int mRowsRead;
+	private byte[] mRowBuffer;
+
+	public PixmapReader(File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	public PixmapReader(InputStream input) throws IOException {
+		mInput = input;
+		mBuffer = new byte[BUFFER_SIZE];
+		try {
+			readHeader();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int getWidth() {
+		return mWidth;
+	}
+
+	@Override
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getMaxValue() {
+		return mMaxValue;
+	}
+
+	/**
+	 * @return 1 for graymaps, 3 for pixmaps
+	 */
+	@Override
+	public int getChannels() {
+		return mChannels;
+	}
+
+	public boolean isBinary() {
+		return mBinary;
+	}
+
+	public int getRowsRead() {
+		return mRowsRead;
+	}
+
+	/**
+	 * Reads the next row of the image. The samples are stored without any
+	 * scaling, so a 16 bits image keeps its values above 255
+	 *
+	 * @param row one array of at least width samples per channel
+	 */
+	@Override
+	public void readRow(int[][] row) throws IOException {
+		if (mRowsRead >= mHeight) {
+			throw new EOFException("all the rows were already read");
+		}
+		if (mBinary) {
+			readBinaryRow(row);
+		} else {
+			for (int x = 0; x < mWidth; x++) {
+				for (int c = 0; c < mChannels; c++) {
+					row[c][x] = readInt();
+				}
+			}
+		}
+		mRowsRead++;
+	}
+
+	/**
+	 * Reads the remaining rows straight into column major channel planes, as
+	 * the ones used by the Image class. The progress is reported to the
+	 * Progress of the current thread
+	 *
+	 * @param channels one plane of [width][height] per channel
+	 */
+	public void readChannels(int[][][] channels) throws IOException {
+		int[][] row = new int[mChannels][mWidth];
+		while (mRowsRead < mHeight) {
+			int y = mRowsRead;
+			readRow(row);
+			Progress.update(y + 1, getHeight());
+			for (int c = 0; c < mChannels; c++) {
+				int[][] plane = channels[c];
+				int[] samples = row[c];
+				for (int x = 0; x < mWidth; x++) {
+					plane[x][y] = samples[x];
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		FileUtils.closeQuietly(mInput);
+	}
+
+	private void readHeader() throws IOException {
+		if (read() != 'P') {
+			throw new IOException("not a netpbm file");
+		}
+		int type = read();
+		if (type == '2' || type == '5') {
+			mChannels = 1;
+		} else if (type == '3' || type == '6') {
+			mChannels = 3;
+		} else {
+			throw new IOException("unsupported netpbm type P" + (char) type);
+		}
+		mBinary = type == '5' || type == '6';
+		mWidth = readInt();
+		mHeight = readInt();
+		mMaxValue = readInt();
+		if (mWidth <= 0 || mHeight <= 0 || mMaxValue <= 0 || mMaxValue > 65535) {
+			throw new IOException("invalid header " + mWidth + "x" + mHeight + " maxval=" + mMaxValue);
+		}
+		mBytesPerSample = mMaxValue < 256 ? 1 : 2;
+
+		// the raster of the binary formats starts right after the single
+		// whitespace following maxval, which readInt already consumed
+		if (mBinary) {
+			mRowBuffer = new byte[mWidth * mChannels * mBytesPerSample];
+		}
+	}
+
+	private void readBinaryRow(int[][] row) throws IOException {
+		// read the whole row at once, first from what is left in the buffer
+		int offset = Math.min(mRowBuffer.length, mBufferLimit - mBufferPos);
+		System.arraycopy(mBuffer, mBufferPos, mRowBuffer, 0, offset);
+		mBufferPos += offset;
+		while (offset < mRowBuffer.length) {
+			if (!fillBuffer()) {
+				throw new EOFException("unexpected end of file at row " + mRowsRead);
+			}
+			int count = Math.min(mRowBuffer.length - offset, mBufferLimit - mBufferPos);
+			System.arraycopy(mBuffer, mBufferPos, mRowBuffer, offset, count);
+			mBufferPos += count;
+			offset += count;
+		}
+
+		// and split it in channels, 16 bits samples are big endian
+		int i = 0;
+		for (int x = 0; x < mWidth; x++) {
+			for (int c = 0; c < mChannels; c++) {
+				if (mBytesPerSample == 1) {
+					row[c][x] = mRowBuffer[i++] & 0xFF;
+				} else {
+					row[c][x] = ((mRowBuffer[i] & 0xFF) << 8) | (mRowBuffer[i + 1] & 0xFF);
+					i += 2;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads an ascii integer, skipping the whitespaces and the comments before
+	 * it
+	 */
+	private int readInt() throws IOException {
+		int b = read();
+		while (true) {
+			if (b == '#') {
+				while (b != '\n' && b != '\r' && b != -1) {
+					b = read();
+				}
+			} else if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f') {
+				b = read();
+			} else {
+				break;
+			}
+		}
+		if (b < '0' || b > '9') {
+			throw new IOException(b == -1 ? "unexpected end of file" : "unexpected character '" + (char) b + "'");
+		}
+		int value = 0;
+		while (b >= '0' && b <= '9') {
+			value = value * 10 + (b - '0');
+			b = read();
+		}
+		// the character after the number is consumed, it must be a whitespace
+		// (or a comment in the header)
+		if (b == '#') {
+			while (b != '\n' && b != '\r' && b != -1) {
+				b = read();
+			}
+		}
+		return value;
+	}
+
+	private int read() throws IOException {
+		if (mBufferPos == mBufferLimit && !fillBuffer()) {
+			return -1;
+		}
+		return mBuffer[mBufferPos++] & 0xFF;
+	}
+
+	private boolean fillBuffer() throws IOException {
+		int read = mInput.read(mBuffer);
+		if (read <= 0) {
+			return false;
+		}
+		mBufferPos = 0;
+		mBufferLimit = read;
+		return true;
+	}
+}
@@ -0,0 +1,182 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming encoder for headerless raw graymaps and binary P5 and P6 files.
+ * The rows are written one at a time, so the image doesn't need to be copied
+ * to an intermediate buffer. Since the channels of an image can hold values
+ * outside of [0, 255], one of the RANGE_ policies decides how they are stored
+ */
+public class PixmapWriter implements RowWriter {
+
+	public static final int FORMAT_RAW = 1;
+	public static final int FORMAT_PGM = 2;
+	public static final int FORMAT_PPM = 3;
+
+	/** values are trimmed to [0, 255] */
+	public static final int RANGE_CLAMP = 1;
+	/** values are linearly mapped from the image range to [0, 255] */
+	public static final int RANGE_RESCALE = 2;
+	/** values are stored on 16 bits, only trimmed to [0, 65535] */
+	public static final int RANGE_16BIT = 3;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private OutputStream mOutput;
+	private int mFormat;
+	private int mWidth;
+	private int mHeight;
+	private int mRangePolicy;
+	private int mMaxValue;
+	private double mFactor;
+	private double mOffset;
+	private byte[] mRowBuffer;
+	private int mRowsWritten;
+
+	public PixmapWriter(File file, int format, int width, int height, int rangePolicy) throws IOException {
+		this(new FileOutputStream(file), format, width, height, rangePolicy);
+	}
+
+	public PixmapWriter(OutputStream output, int format, int width, int height, int rangePolicy) throws IOException {
+		mOutput = new BufferedOutputStream(output, BUFFER_SIZE);
+		mFormat = format;
+		mWidth = width;
+		mHeight = height;
+		mRangePolicy = rangePolicy;
+		mMaxValue = rangePolicy == RANGE_16BIT ? 65535 : 255;
+		mFactor = 1;
+		mOffset = 0;
+		int bytesPerSample = mMaxValue > 255 ? 2 : 1;
+		mRowBuffer = new byte[width * getChannels() * bytesPerSample];
+		try {
+			writeHeader();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public static int getFormat(File file) {
+		String extension = FileUtils.getFileExtension(file);
+		if (extension.equals("pgm")) {
+			return FORMAT_PGM;
+		} else if (extension.equals("ppm")) {
+			return FORMAT_PPM;
+		} else if (extension.equals("raw")) {
+			return FORMAT_RAW;
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return 3 for the color formats, 1 for the others
+	 */
+	public int getChannels() {
+		return mFormat == FORMAT_PPM ? 3 : 1;
+	}
+
+	/**
+	 * Sets the range of the values of the image, only used by the
+	 * RANGE_RESCALE policy. Must be called before writing the first row
+	 */
+	public void setSourceRange(int low, int high) {
+		if (mRangePolicy == RANGE_RESCALE && high > low) {
+			mFactor = (double) mMaxValue / (high - low);
+			mOffset = -mFactor * low;
+		}
+	}
+
+	/**
+	 * Writes the next row of the image
+	 *
+	 * @param row the samples of the row, one array per channel. A gray format
+	 *            accepts either 1 channel or 3 channels, which are then
+	 *            converted to gray
+	 */
+	@Override
+	public void writeRow(int[][] row) throws IOException {
+		int i = 0;
+		boolean toGray = getChannels() == 1 && row.length >= 3;
+		for (int x = 0; x < mWidth; x++) {
+			for (int c = 0; c < getChannels(); c++) {
+				int value;
+				if (toGray && (row[0][x] != row[1][x] || row[1][x] != row[2][x])) {
+					// same conversion as Image.getGray, skipped for gray
+					// pixels since the weights don't add up to exactly 1
+					value = (int) (0.2126 * row[0][x] + 0.7152 * row[1][x] + 0.0722 * row[2][x]);
+				} else {
+					value = row[c][x];
+				}
+				value = mapValue(value);
+				if (mMaxValue > 255) {
+					mRowBuffer[i++] = (byte) (value >> 8);
+				}
+				mRowBuffer[i++] = (byte) value;
+			}
+		}
+		mOutput.write(mRowBuffer, 0, i);
+		mRowsWritten++;
+	}
+
+	/**
+	 * Writes all the rows of column major channel planes, as the ones used by
+	 * the Image class
+	 */
+	public void writeChannels(int[][][] channels) throws IOException {
+		int[][] row = new int[channels.length][mWidth];
+		for (int y = mRowsWritten; y < mHeight; y++) {
+			for (int c = 0; c < channels.length; c++) {
+				int[][] plane = channels[c];
+				int[] samples = row[c];
+				for (int x = 0; x < mWidth; x++) {
+					samples[x] = plane[x][y];
+				}
+			}
+			writeRow(row);
+		}
+	}
+
+	/**
+	 * Flushes the pending data and closes the file. Must be called once all
+	 * the rows were written
+	 */
+	@Override
+	public void finish() throws IOException {
+		try {
+			if (mRowsWritten != mHeight) {
+				throw new IOException("only " + mRowsWritten + " of " + mHeight + " rows were written");
+			}
+			mOutput.flush();
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		FileUtils.closeQuietly(mOutput);
+	}
+
+	private int mapValue(int value) {
+		if (mRangePolicy == RANGE_RESCALE) {
+			value = (int) (value * mFactor + mOffset);
+		}
+		return Math.min(mMaxValue, Math.max(0, value));
+	}
+
+	private void writeHeader() throws IOException {
+		if (mFormat == FORMAT_PGM || mFormat == FORMAT_PPM) {
+			String type = mFormat == FORMAT_PGM ? "P5" : "P6";
+			String header = type + "\n" + mWidth + " " + mHeight + "\n" + mMaxValue + "\n";
+			mOutput.write(header.getBytes("US-ASCII"));
+		} else if (mFormat != FORMAT_RAW) {
+			throw new IOException("unsupported format " + mFormat);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Progress and cancellation state of a background task. The task binds it to
+ * its thread, and the long loops of the decoders and filters report their
+ * progress through the static methods, which do nothing when no progress is
+ * bound to the current thread. A cancelled task is stopped the next time one
+ * of its loops reports progress
+ */
+public class Progress {
+
+	private static final ThreadLocal<Progress> sCurrent = new ThreadLocal<Progress>();
+
+	private volatile int mPercent;
+	private volatile boolean mCancelled;
+
+	/**
+	 * Binds a progress to the current thread, until unbind is called
+	 */
+	public static void bind(Progress progress) {
+		sCurrent.set(progress);
+	}
+
+	public static void unbind() {
+		sCurrent.remove();
+	}
+
+	/**
+	 * @return the progress bound to the current thread, or null
+	 */
+	public static Progress current() {
+		return sCurrent.get();
+	}
+
+	/**
+	 * Reports the progress of the current thread task
+	 *
+	 * @throws CancellationException if the task was cancelled
+	 */
+	public static void update(long done, long total) {
+		Progress progress = sCurrent.get();
+		if (progress != null) {
+			progress.setPercent(total > 0 ? (int) (100 * done / total) : 0);
+			progress.checkCancelled();
+		}
+	}
+
+	/**
+	 * @throws CancellationException if the current thread task was cancelled
+	 */
+	public static void check() {
+		Progress progress = sCurrent.get();
+		if (progress != null) {
+			progress.checkCancelled();
+		}
+	}
+
+	public int getPercent() {
+		return mPercent;
+	}
+
+	public void setPercent(int percent) {
+		mPercent = Math.max(0, Math.min(100, percent));
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public void checkCancelled() {
+		if (mCancelled) {
+			throw new CancellationException();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package ar.edu.itba.imageprocess.utils;
+
+/**
+ * Describes the layout of a headerless raw image: dimensions, bits per sample,
+ * byte order for 16 bits samples and channel organization. A format can be
+ * written as a short spec, for example "389x164", "1280x1024 16 le" or
+ * "640x480 rgb planar"
+ */
+public class RawFormat {
+
+	private int mWidth;
+	private int mHeight;
+	private int mBitsPerSample;
+	private boolean mBigEndian;
+	private int mChannels;
+	private boolean mPlanar;
+
+	public RawFormat(int width, int height) {
+		this(width, height, 8, false, 1, false);
+	}
+
+	public RawFormat(int width, int height, int bitsPerSample, boolean bigEndian, int channels, boolean planar) {
+		mWidth = width;
+		mHeight = height;
+		mBitsPerSample = bitsPerSample;
+		mBigEndian = bigEndian;
+		mChannels = channels;
+		mPlanar = planar;
+	}
+
+	/**
+	 * Parses a format spec: the dimensions followed by any of "8", "16",
+	 * "le", "be", "gray", "rgb", "interleaved" and "planar"
+	 *
+	 * @return the format, or null if the spec is invalid
+	 */
+	public static RawFormat parse(String spec) {
+		String[] tokens = spec.trim().toLowerCase().split("[\\s,]+");
+		String[] dimensions = tokens[0].split("x");
+		if (dimensions.length != 2) {
+			return null;
+		}
+		RawFormat format = new RawFormat(0, 0);
+		try {
+			format.mWidth = Integer.parseInt(dimensions[0]);
+			format.mHeight = Integer.parseInt(dimensions[1]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		for (int i = 1; i < tokens.length; i++) {
+			String token = tokens[i];
+			if (token.equals("8") || token.equals("16")) {
+				format.mBitsPerSample = Integer.parseInt(token);
+			} else if (token.equals("le") || token.equals("be")) {
+				format.mBigEndian = token.equals("be");
+			} else if (token.equals("gray") || token.equals("rgb")) {
+				format.mChannels = token.equals("rgb") ? 3 : 1;
+			} else if (token.equals("interleaved") || token.equals("planar")) {
+				format.mPlanar = token.equals("planar");
+			} else {
+				return null;
+			}
+		}
+		if (format.mWidth <= 0 || format.mHeight <= 0) {
+			return null;
+		}
+		return format;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getBitsPerSample() {
+		return mBitsPerSample;
+	}
+
+	public int getBytesPerSample() {
+		return mBitsPerSample > 8 ? 2 : 1;
+	}
+
+	public boolean isBigEndian() {
+		return mBigEndian;
+	}
+
+	public int getChannels() {
+		return mChannels;
+	}
+
+	public boolean isPlanar() {
+		return mPlanar;
+	}
+
+	/**
+	 * @return the number of bytes of a file in this format
+	 */
+	public long getFileSize() {
+		return (long) mWidth * mHeight * mChannels * getBytesPerSample();
+	}
+
+	public RawFormat withBigEndian(boolean bigEndian) {
+		return new RawFormat(mWidth, mHeight, mBitsPerSample, bigEndian, mChannels, mPlanar);
+	}
+
+	@Override
+	public String toString() {
+		return mWidth + "x" + mHeight + " " + mBitsPerSample + (mBigEndian ? " be" : " le") + (mChannels == 3 ? " rgb" : " gray") + (mPlanar ? " planar" : " interleaved");
+	}
+}
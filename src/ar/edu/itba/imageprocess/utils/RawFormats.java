@@ -0,0 +1,275 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Finds the format of a headerless raw file, so it can be loaded without
+ * asking its dimensions. The lookup order is:
+ * <ol>
+ * <li>a sidecar file named like the image plus ".info", holding the format
+ * spec (see RawFormat.parse)</li>
+ * <li>a "raw-formats.properties" registry in the directory of the image,
+ * mapping file names to format specs. The "*" key gives the format of all the
+ * files not listed, which suits directories of frames of the same camera</li>
+ * <li>the built-in table of known files</li>
+ * <li>guessing from the file size, trying common dimensions and square
+ * images for 8 bits gray, 16 bits gray and 8 bits rgb samples, and keeping
+ * the one that makes the smoothest image</li>
+ * </ol>
+ */
+public class RawFormats {
+
+	public static final String SIDECAR_EXTENSION = ".info";
+	public static final String REGISTRY_FILE = "raw-formats.properties";
+
+	private static final int[][] COMMON_DIMENSIONS = new int[][] { { 640, 480 }, { 800, 600 }, { 1024, 768 }, { 1280, 720 }, { 1280, 960 }, { 1280, 1024 }, { 1360, 1024 }, { 1600, 1200 }, { 1920, 1080 }, { 2048, 1536 }, { 2448, 2048 }, { 2560, 1920 }, { 3840, 2160 }, { 4096, 3072 } };
+	private static final int SNIFF_ROWS = 16;
+
+	private static final HashMap<String, RawFormat> sKnownFiles = new HashMap<String, RawFormat>();
+	private static final HashMap<File, Properties> sRegistries = new HashMap<File, Properties>();
+
+	static {
+		sKnownFiles.put("girl.raw", new RawFormat(389, 164));
+		sKnownFiles.put("girl2.raw", new RawFormat(256, 256));
+		sKnownFiles.put("barco.raw", new RawFormat(290, 207));
+		sKnownFiles.put("lena.raw", new RawFormat(256, 256));
+		sKnownFiles.put("lenax.raw", new RawFormat(256, 256));
+		sKnownFiles.put("fractal.raw", new RawFormat(200, 200));
+	}
+
+	/**
+	 * Registers the format of the files with that name
+	 */
+	public static synchronized void register(String fileName, RawFormat format) {
+		sKnownFiles.put(fileName.toLowerCase(), format);
+	}
+
+	/**
+	 * @return the format of the file, or null if it couldn't be found
+	 */
+	public static RawFormat find(File file) {
+		RawFormat format = findDeclared(file);
+		if (format == null) {
+			format = guess(file);
+			if (format != null) {
+				Log.d("guessed raw format " + format + " for " + file.getName());
+			}
+		}
+		return format;
+	}
+
+	/**
+	 * @return the format declared by the sidecar file, the directory registry
+	 *         or the built-in table, or null if the file isn't declared
+	 */
+	public static RawFormat findDeclared(File file) {
+		// sidecar file
+		File sidecar = new File(file.getPath() + SIDECAR_EXTENSION);
+		if (sidecar.isFile()) {
+			byte[] spec = FileUtils.readFileBytes(sidecar);
+			if (spec != null) {
+				RawFormat format = RawFormat.parse(new String(spec));
+				if (format != null) {
+					return format;
+				}
+				Log.d("invalid raw format in " + sidecar.getName());
+			}
+		}
+
+		// directory registry
+		Properties registry = getRegistry(file.getAbsoluteFile().getParentFile());
+		if (registry != null) {
+			String spec = registry.getProperty(file.getName());
+			if (spec == null) {
+				spec = registry.getProperty("*");
+			}
+			if (spec != null) {
+				RawFormat format = RawFormat.parse(spec);
+				if (format != null && format.getFileSize() == file.length()) {
+					return format;
+				}
+			}
+		}
+
+		// built-in table
+		synchronized (RawFormats.class) {
+			return sKnownFiles.get(file.getName().toLowerCase());
+		}
+	}
+
+	/**
+	 * Guesses the format from the size of the file. Every layout and
+	 * dimensions matching the size is a candidate, for example 921600 bytes
+	 * are both 640x480 rgb and 1280x720 gray, and the candidate whose rows
+	 * are the smoothest is chosen. When 16 bits samples are guessed, the
+	 * byte order is chosen by looking at the first rows
+	 */
+	public static RawFormat guess(File file) {
+		long size = file.length();
+		int[][] sampleLayouts = new int[][] { { 8, 1 }, { 16, 1 }, { 8, 3 } };
+		List<RawFormat> candidates = new ArrayList<RawFormat>();
+		for (int[] layout : sampleLayouts) {
+			int bytesPerPixel = layout[0] / 8 * layout[1];
+			if (size % bytesPerPixel != 0) {
+				continue;
+			}
+			for (int[] dimensions : guessDimensions(size / bytesPerPixel)) {
+				RawFormat format = new RawFormat(dimensions[0], dimensions[1], layout[0], false, layout[1], false);
+				if (layout[0] == 16) {
+					format = format.withBigEndian(isBigEndian(file, format));
+				}
+				candidates.add(format);
+			}
+		}
+		if (candidates.size() <= 1) {
+			return candidates.isEmpty() ? null : candidates.get(0);
+		}
+		RawFormat best = null;
+		double bestRoughness = Double.MAX_VALUE;
+		for (RawFormat format : candidates) {
+			double roughness = getRoughness(file, format);
+			// the first one wins the ties, in the order of the layouts
+			if (roughness < bestRoughness) {
+				best = format;
+				bestRoughness = roughness;
+			}
+		}
+		return best != null ? best : candidates.get(0);
+	}
+
+	/**
+	 * @return the common dimensions and the square with that many pixels
+	 */
+	private static List<int[]> guessDimensions(long pixels) {
+		List<int[]> candidates = new ArrayList<int[]>();
+		for (int[] dimensions : COMMON_DIMENSIONS) {
+			if ((long) dimensions[0] * dimensions[1] == pixels) {
+				candidates.add(dimensions);
+			}
+		}
+		long side = Math.round(Math.sqrt(pixels));
+		if (side * side == pixels && side > 1) {
+			candidates.add(new int[] { (int) side, (int) side });
+		}
+		return candidates;
+	}
+
+	/**
+	 * Natural images are smooth, read with the wrong width or layout the
+	 * neighbor samples belong to other rows or channels. The roughness is
+	 * the mean difference of each sample of some rows with the one of
+	 * the same channel on its left and above, relative to the deviation of
+	 * the samples, so 16 bits samples using only a few bits aren't taken as
+	 * smoother
+	 *
+	 * @return the roughness, or Double.MAX_VALUE if the rows can't be read
+	 */
+	private static double getRoughness(File file, RawFormat format) {
+		int width = format.getWidth();
+		int channels = format.getChannels();
+		int bytesPerSample = format.getBytesPerSample();
+		long rows = Math.min(SNIFF_ROWS, format.getHeight());
+		if (rows < 2 || format.isPlanar()) {
+			return Double.MAX_VALUE;
+		}
+		// the rows in the middle, the first ones are often a flat background
+		long rowSize = (long) width * channels * bytesPerSample;
+		long firstRow = (format.getHeight() - rows) / 2;
+		try {
+			ByteBuffer buffer = FileUtils.mapFileRegion(file, firstRow * rowSize, rows * rowSize);
+			buffer.order(format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			int rowSamples = width * channels;
+			double differences = 0;
+			double sum = 0;
+			double squares = 0;
+			long count = 0;
+			for (int y = 1; y < rows; y++) {
+				for (int i = channels; i < rowSamples; i++) {
+					int sample = getSample(buffer, y * rowSamples + i, bytesPerSample);
+					differences += Math.abs(sample - getSample(buffer, y * rowSamples + i - channels, bytesPerSample));
+					differences += Math.abs(sample - getSample(buffer, (y - 1) * rowSamples + i, bytesPerSample));
+					sum += sample;
+					squares += (double) sample * sample;
+					count++;
+				}
+			}
+			if (count == 0) {
+				return Double.MAX_VALUE;
+			}
+			double mean = sum / count;
+			double deviation = Math.sqrt(Math.max(0, squares / count - mean * mean));
+			return differences / (2 * count) / (deviation + 1);
+		} catch (IOException e) {
+			return Double.MAX_VALUE;
+		}
+	}
+
+	private static int getSample(ByteBuffer buffer, int index, int bytesPerSample) {
+		if (bytesPerSample == 2) {
+			return buffer.getShort(index * 2) & 0xFFFF;
+		}
+		return buffer.get(index) & 0xFF;
+	}
+
+	/**
+	 * Natural images are smooth, so the byte order giving the smallest
+	 * differences between neighbor samples is most likely the right one
+	 */
+	private static boolean isBigEndian(File file, RawFormat format) {
+		try {
+			long rows = Math.min(SNIFF_ROWS, format.getHeight());
+			long length = rows * format.getWidth() * format.getBytesPerSample();
+			ByteBuffer buffer = FileUtils.mapFileRegion(file, 0, length);
+			long littleDiff = sumOfDifferences(buffer.order(ByteOrder.LITTLE_ENDIAN));
+			long bigDiff = sumOfDifferences(buffer.order(ByteOrder.BIG_ENDIAN));
+			return bigDiff < littleDiff;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static long sumOfDifferences(ByteBuffer buffer) {
+		long sum = 0;
+		int previous = buffer.getShort(0) & 0xFFFF;
+		for (int i = 2; i + 1 < buffer.limit(); i += 2) {
+			int value = buffer.getShort(i) & 0xFFFF;
+			sum += Math.abs(value - previous);
+			previous = value;
+		}
+		return sum;
+	}
+
+	private static synchronized Properties getRegistry(File directory) {
+		if (directory == null) {
+			return null;
+		}
+		File registryFile = new File(directory, REGISTRY_FILE);
+		if (!registryFile.isFile()) {
+			return null;
+		}
+		// the registry is read once per directory
+		Properties registry = sRegistries.get(directory);
+		if (registry == null) {
+			registry = new Properties();
+			FileInputStream is = null;
+			try {
+				is = new FileInputStream(registryFile);
+				registry.load(is);
+			} catch (IOException e) {
+				Log.d("couldn't read " + registryFile + " " + e);
+			} finally {
+				FileUtils.closeQuietly(is);
+			}
+			sRegistries.put(directory, registry);
+		}
+		return registry;
+	}
+}
@@ -0,0 +1,163 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a headerless raw image described by a RawFormat one row at a time.
+ * The file is memory mapped by windows of whole rows (one window per channel
+ * for planar files), so files bigger than 2GB can be read and each row is
+ * copied in bulk out of the mapping
+ */
+public class RawReader implements RowReader {
+
+	private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private RawFormat mFormat;
+	private int mRowsRead;
+	private int mRowSize;
+	private int mRowsPerWindow;
+	private ByteBuffer[] mWindows;
+	private int[] mWindowFirstRows;
+	private byte[] mByteRow;
+	private short[] mShortRow;
+
+	public RawReader(File file, RawFormat format) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		mChannel = mFile.getChannel();
+		mFormat = format;
+		if (mChannel.size() < format.getFileSize()) {
+			close();
+			throw new IOException(file.getName() + " is too small for " + format);
+		}
+
+		// a planar file stores one plane per channel, an interleaved file
+		// stores all the channels of a pixel next to each other
+		int planes = format.isPlanar() ? format.getChannels() : 1;
+		int samplesPerRow = format.getWidth() * format.getChannels() / planes;
+		mRowSize = samplesPerRow * format.getBytesPerSample();
+		mRowsPerWindow = (int) Math.max(1, Math.min(format.getHeight(), WINDOW_SIZE / mRowSize));
+		mWindows = new ByteBuffer[planes];
+		mWindowFirstRows = new int[planes];
+		if (format.getBytesPerSample() == 1) {
+			mByteRow = new byte[samplesPerRow];
+		} else {
+			mShortRow = new short[samplesPerRow];
+		}
+	}
+
+	@Override
+	public int getWidth() {
+		return mFormat.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return mFormat.getHeight();
+	}
+
+	@Override
+	public int getChannels() {
+		return mFormat.getChannels();
+	}
+
+	public int getRowsRead() {
+		return mRowsRead;
+	}
+
+	/**
+	 * Reads the next row of the image. 16 bits samples are not scaled
+	 *
+	 * @param row one array of at least width samples per channel
+	 */
+	@Override
+	public void readRow(int[][] row) throws IOException {
+		if (mRowsRead >= getHeight()) {
+			throw new EOFException("all the rows were already read");
+		}
+		int width = getWidth();
+		int channels = getChannels();
+		for (int plane = 0; plane < mWindows.length; plane++) {
+			ByteBuffer source = getRowBuffer(plane, mRowsRead);
+
+			// the channel of the first sample and the distance between two
+			// samples of the same channel
+			int firstChannel = mFormat.isPlanar() ? plane : 0;
+			int stride = mFormat.isPlanar() ? 1 : channels;
+			int channelCount = mFormat.isPlanar() ? 1 : channels;
+			if (mByteRow != null) {
+				source.get(mByteRow);
+				for (int c = 0; c < channelCount; c++) {
+					int[] samples = row[firstChannel + c];
+					for (int x = 0, i = c; x < width; x++, i += stride) {
+						samples[x] = mByteRow[i] & 0xFF;
+					}
+				}
+			} else {
+				source.asShortBuffer().get(mShortRow);
+				for (int c = 0; c < channelCount; c++) {
+					int[] samples = row[firstChannel + c];
+					for (int x = 0, i = c; x < width; x++, i += stride) {
+						samples[x] = mShortRow[i] & 0xFFFF;
+					}
+				}
+			}
+		}
+		mRowsRead++;
+	}
+
+	/**
+	 * Reads the remaining rows into column major channel planes, as the ones
+	 * used by the Image class. The progress is reported to the Progress of
+	 * the current thread
+	 */
+	public void readChannels(int[][][] channels) throws IOException {
+		int[][] row = new int[getChannels()][getWidth()];
+		while (mRowsRead < getHeight()) {
+			int y = mRowsRead;
+			readRow(row);
+			Progress.update(y + 1, getHeight());
+			for (int c = 0; c < channels.length; c++) {
+				int[][] plane = channels[c];
+				int[] samples = row[c];
+				for (int x = 0; x < samples.length; x++) {
+					plane[x][y] = samples[x];
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		mWindows = null;
+		FileUtils.closeQuietly(mFile);
+	}
+
+	/**
+	 * Gives a buffer positioned at the start of the row, mapping the window
+	 * holding it if needed
+	 */
+	private ByteBuffer getRowBuffer(int plane, int y) throws IOException {
+		ByteBuffer window = mWindows[plane];
+		if (window == null || y < mWindowFirstRows[plane] || y >= mWindowFirstRows[plane] + mRowsPerWindow) {
+			int rows = Math.min(mRowsPerWindow, getHeight() - y);
+			long planeOffset = (long) plane * getHeight() * mRowSize;
+			long position = planeOffset + (long) y * mRowSize;
+			window = mChannel.map(FileChannel.MapMode.READ_ONLY, position, (long) rows * mRowSize);
+			window.order(mFormat.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			mWindows[plane] = window;
+			mWindowFirstRows[plane] = y;
+		}
+		window.clear();
+		window.position((y - mWindowFirstRows[plane]) * mRowSize);
+		window.limit(window.position() + mRowSize);
+		return window.slice().order(window.order());
+	}
+}
@@ -0,0 +1,29 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of image rows, read from top to bottom
+ */
+public interface RowReader extends Closeable {
+
+	public int getWidth();
+
+	public int getHeight();
+
+	/**
+	 * @return 1 for gray images, 3 for color images
+	 */
+	public int getChannels();
+
+	/**
+	 * Reads the next row of the image
+	 *
+	 * @param row one array of at least width samples per channel
+	 */
+	public void readRow(int[][] row) throws IOException;
+
+	@Override
+	public void close();
+}
@@ -0,0 +1,26 @@
+package ar.edu.itba.imageprocess.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination of image rows, written from top to bottom
+ */
+public interface RowWriter extends Closeable {
+
+	/**
+	 * Writes the next row of the image
+	 *
+	 * @param row the samples of the row, one array per channel
+	 */
+	public void writeRow(int[][] row) throws IOException;
+
+	/**
+	 * Flushes the pending data and closes the destination. Must be called
+	 * once all the rows were written
+	 */
+	public void finish() throws IOException;
+
+	@Override
+	public void close();
+}
@@ -0,0 +1,54 @@
+package ar.edu.itba.imageprocess;
+
+/**
+ * Checks that the pool stays within its budget when the planes of several
+ * sizes go over it. Run it with the classes of src in the classpath:
+ *
+ * <pre>
+ * java ar.edu.itba.imageprocess.PlanePoolTest
+ * </pre>
+ */
+public class PlanePoolTest {
+
+	public static void main(String[] args) {
+		testOverflowAcrossSizes();
+		testLeastRecentlyUsedSizeDropped();
+		System.out.println("PlanePoolTest passed");
+	}
+
+	/**
+	 * A budget of about four 10x10 planes, overflowed by a second size
+	 */
+	private static void testOverflowAcrossSizes() {
+		PlanePool pool = new PlanePool(2000);
+		pool.release(new int[10][10]);
+		pool.release(new int[10][10]);
+		pool.release(new int[12][12]);
+		pool.release(new int[10][10]);
+		check(pool.getMemoryUsed() <= 2000, "over the budget: " + pool.getMemoryUsed());
+		for (int i = 0; i < 20; i++) {
+			pool.release(new int[10 + i % 3][10]);
+		}
+		check(pool.getMemoryUsed() <= 2000, "over the budget after many sizes: " + pool.getMemoryUsed());
+	}
+
+	private static void testLeastRecentlyUsedSizeDropped() {
+		// room for two 10x10 planes, 560 bytes each
+		PlanePool pool = new PlanePool(1200);
+		pool.release(new int[10][10]);
+		pool.release(new int[11][10]);
+		// uses the 10x10 bucket, the 11x10 one becomes the eldest
+		int[][] plane = pool.acquire(10, 10);
+		pool.release(plane);
+		pool.release(new int[10][10]);
+		pool.acquire(11, 10);
+		int[] stats = pool.getStats();
+		check(stats[0] == 1 && stats[1] == 1, "the 11x10 plane should have been dropped, hits " + stats[0] + " misses " + stats[1]);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
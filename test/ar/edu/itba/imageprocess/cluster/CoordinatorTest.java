@@ -0,0 +1,181 @@
+package ar.edu.itba.imageprocess.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import ar.edu.itba.imageprocess.utils.FileUtils;
+
+/**
+ * Runs batches through worker processes started by the coordinator, in a
+ * temporary directory. Run it with the classes of src and the libraries in
+ * the classpath, the workers are started with the same one:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true ar.edu.itba.imageprocess.cluster.CoordinatorTest
+ * </pre>
+ */
+public class CoordinatorTest {
+
+	private static final int FILES = 6;
+	private static final int WIDTH = 8;
+	private static final int HEIGHT = 4;
+
+	public static void main(String[] args) throws Exception {
+		File directory = createDirectory();
+		try {
+			File input = new File(directory, "in");
+			input.mkdir();
+			for (int i = 0; i < FILES; i++) {
+				writePgm(new File(input, "image" + i + ".pgm"), i * 10);
+			}
+			testTwoWorkers(input, new File(directory, "out"));
+			testNoWorkerLeft(input, new File(directory, "failed"));
+			testInvalidLength(input, new File(directory, "retried"));
+		} finally {
+			delete(directory);
+		}
+		System.out.println("CoordinatorTest passed");
+	}
+
+	private static void testTwoWorkers(File input, File output) throws IOException {
+		int code = Coordinator.run(new String[] { "-coordinator", "negative", "-w", "2", "-port", "0", "-o", output.getPath(), input.getPath() });
+		check(code == 0, "the batch exited with " + code);
+		File[] results = output.listFiles();
+		check(results != null && results.length == FILES, "wrong number of results");
+		for (File result : results) {
+			String name = result.getName();
+			// image<n>-negative.pgm
+			int gray = Integer.parseInt(name.substring("image".length(), name.indexOf('-'))) * 10;
+			byte[] data = FileUtils.readFileBytes(result);
+			int pixel = data[data.length - 1] & 0xFF;
+			check(pixel == 255 - gray, name + " is not the negative: " + pixel);
+		}
+	}
+
+	/**
+	 * The only worker can't start, so the batch has to fail instead of
+	 * waiting for a connection
+	 */
+	private static void testNoWorkerLeft(File input, File output) {
+		String classPath = System.getProperty("java.class.path");
+		System.setProperty("java.class.path", new File(output, "missing").getPath());
+		int code;
+		try {
+			code = Coordinator.run(new String[] { "-coordinator", "negative", "-w", "1", "-port", "0", "-o", output.getPath(), input.getPath() });
+		} finally {
+			System.setProperty("java.class.path", classPath);
+		}
+		check(code == 1, "the batch without workers exited with " + code);
+	}
+
+	/**
+	 * A worker answers with a negative length and disconnects, its file has
+	 * to be retried by the next worker
+	 */
+	private static void testInvalidLength(final File input, final File output) throws Exception {
+		ServerSocket free = new ServerSocket(0);
+		final int port = free.getLocalPort();
+		free.close();
+		final int[] code = new int[1];
+		Thread coordinator = new Thread() {
+			@Override
+			public void run() {
+				code[0] = Coordinator.run(new String[] { "-coordinator", "negative", "-port", String.valueOf(port), "-o", output.getPath(), input.getPath() });
+			}
+		};
+		coordinator.start();
+		Socket socket = connect(port);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(Coordinator.PROTOCOL_VERSION);
+			out.writeUTF("broken");
+			out.writeInt(Coordinator.MESSAGE_TAKE);
+			out.flush();
+			in.readUTF();
+			in.readUTF();
+			in.readInt();
+			in.readUTF();
+			check(in.readInt() == Coordinator.MESSAGE_FILE, "no file sent");
+			int id = in.readInt();
+			in.readUTF();
+			in.readUTF();
+			Coordinator.readFile(in);
+			out.writeInt(Coordinator.MESSAGE_RESULT);
+			out.writeInt(id);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(-1);
+			out.flush();
+			// the coordinator closes the connection
+			check(in.read() == -1, "the connection is still open");
+		} finally {
+			socket.close();
+		}
+		new Worker(InetAddress.getLoopbackAddress().getHostAddress(), port, 1).work();
+		coordinator.join();
+		check(code[0] == 0, "the retried batch exited with " + code[0]);
+		File[] results = output.listFiles();
+		check(results != null && results.length == FILES, "wrong number of retried results");
+	}
+
+	private static Socket connect(int port) throws Exception {
+		for (int i = 0; i < 50; i++) {
+			try {
+				return new Socket(InetAddress.getLoopbackAddress(), port);
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IOException("the coordinator didn't start");
+	}
+
+	private static void writePgm(File file, int gray) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(("P5\n" + WIDTH + " " + HEIGHT + "\n255\n").getBytes("US-ASCII"));
+		for (int i = 0; i < WIDTH * HEIGHT; i++) {
+			bytes.write(gray);
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			bytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static File createDirectory() throws IOException {
+		File directory = File.createTempFile("coordinatortest", "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("couldn't create a temporary directory");
+		}
+		return directory;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package ar.edu.itba.imageprocess.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Sends requests to a server listening on localhost: valid images, corrupt
+ * and unknown bodies, and bodies or images over the limits. Run it with the
+ * classes of src in the classpath:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true ar.edu.itba.imageprocess.server.ImageServerTest
+ * </pre>
+ */
+public class ImageServerTest {
+
+	private static final long MAX_BODY = 64 * 1024;
+	private static final long MAX_PIXELS = 100 * 100;
+
+	public static void main(String[] args) throws IOException {
+		ImageServer server = new ImageServer(0, 2, 8, 4, 20, 10);
+		server.setLimits(MAX_BODY, MAX_PIXELS);
+		server.start();
+		try {
+			String url = "http://localhost:" + server.getPort() + "/process?operation=negative";
+			testValidImage(url);
+			testCorruptImage(url);
+			testUnknownBody(url);
+			testBodyOverLimit(url);
+			testImageOverLimit(url);
+		} finally {
+			server.stop();
+		}
+		System.out.println("ImageServerTest passed");
+	}
+
+	private static void testValidImage(String url) throws IOException {
+		byte[] png = createPng(16, 8, 40);
+		HttpURLConnection connection = post(url, png, false);
+		check(connection.getResponseCode() == 200, "valid image answered " + connection.getResponseCode());
+		InputStream in = connection.getInputStream();
+		try {
+			BufferedImage result = ImageIO.read(in);
+			check(result.getWidth() == 16 && result.getHeight() == 8, "wrong result size");
+			check((result.getRGB(0, 0) & 0xFF) == 255 - 40, "not the negative: " + (result.getRGB(0, 0) & 0xFF));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A png cut in the middle of its data
+	 */
+	private static void testCorruptImage(String url) throws IOException {
+		byte[] png = createPng(64, 64, 0);
+		byte[] corrupt = Arrays.copyOf(png, 60);
+		int status = post(url, corrupt, false).getResponseCode();
+		check(status == 400, "corrupt image answered " + status);
+	}
+
+	private static void testUnknownBody(String url) throws IOException {
+		int status = post(url, "not an image".getBytes("UTF-8"), false).getResponseCode();
+		check(status == 415, "unknown body answered " + status);
+	}
+
+	/**
+	 * Over the limit with a Content-Length, and in chunks without one
+	 */
+	private static void testBodyOverLimit(String url) throws IOException {
+		byte[] body = new byte[(int) MAX_BODY + 1];
+		int status = post(url, body, false).getResponseCode();
+		check(status == 413, "big body answered " + status);
+		status = post(url, body, true).getResponseCode();
+		check(status == 413, "big chunked body answered " + status);
+	}
+
+	/**
+	 * A small file, all the same color, with more pixels than allowed
+	 */
+	private static void testImageOverLimit(String url) throws IOException {
+		byte[] png = createPng(200, 200, 0);
+		check(png.length < MAX_BODY, "the png should be small");
+		int status = post(url, png, false).getResponseCode();
+		check(status == 413, "big image answered " + status);
+	}
+
+	private static HttpURLConnection post(String url, byte[] body, boolean chunked) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		if (chunked) {
+			connection.setChunkedStreamingMode(4096);
+		} else {
+			connection.setFixedLengthStreamingMode(body.length);
+		}
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body);
+		} catch (IOException e) {
+			// the server can answer before the whole body is sent
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// same
+			}
+		}
+		return connection;
+	}
+
+	private static byte[] createPng(int width, int height, int gray) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				image.setRGB(x, y, gray * 0x010101);
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", bytes);
+		return bytes.toByteArray();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}